@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the auth plugin benchmarks at 1, 8 and 64 threads, reporting throughput, latency percentiles and,
+ * through the GC profiler, the bytes allocated per login ({@code gc.alloc.rate.norm}).
+ *
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar [benchmark regex] [result directory]}, where the
+ * regex defaults to all benchmarks. The results of each thread count go to their own JSON file, which can be
+ * compared between plugin versions, for example with https://jmh.morethan.io.
+ */
+public class AuthBenchmarks
+{
+    private static final int[] THREAD_COUNTS = {1, 8, 64};
+
+    public static void main( String[] args ) throws RunnerException
+    {
+        String include = args.length > 0 ? args[0] : AuthBenchmarks.class.getPackageName() + ".*Benchmark";
+        String resultDirectory = args.length > 1 ? args[1] : ".";
+
+        for ( int threads : THREAD_COUNTS )
+        {
+            Options options = new OptionsBuilder()
+                    .include( include )
+                    .threads( threads )
+                    .addProfiler( GCProfiler.class )
+                    .resultFormat( ResultFormatType.JSON )
+                    .result( resultDirectory + "/jmh-result-" + threads + "-threads.json" )
+                    .build();
+            new Runner( options ).run();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * Stands in for the operations Neo4j hands to a plugin, with a throwaway home directory and a log
+ * that discards everything, so that a benchmark measures the plugin and not the logging.
+ */
+class BenchmarkAuthProviderOperations implements AuthProviderOperations
+{
+    private static final Log SILENT_LOG = new Log()
+    {
+        @Override
+        public void debug( String message )
+        {
+        }
+
+        @Override
+        public void info( String message )
+        {
+        }
+
+        @Override
+        public void warn( String message )
+        {
+        }
+
+        @Override
+        public void error( String message )
+        {
+        }
+
+        @Override
+        public boolean isDebugEnabled()
+        {
+            return false;
+        }
+    };
+
+    private final Path home;
+
+    BenchmarkAuthProviderOperations()
+    {
+        try
+        {
+            home = Files.createTempDirectory( "auth-plugin-benchmark" );
+            Files.createDirectories( home.resolve( "conf" ) );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Write a config file, relative to the home directory, for the plugin to pick up in initialize.
+     */
+    void writeConfig( String fileName, String... lines )
+    {
+        try
+        {
+            Files.write( home.resolve( "conf" ).resolve( fileName ), Arrays.asList( lines ) );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    void deleteHome()
+    {
+        try ( Stream<Path> files = Files.walk( home ) )
+        {
+            files.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @Override
+    public Path neo4jHome()
+    {
+        return home;
+    }
+
+    @Override
+    public String neo4jVersion()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public Clock clock()
+    {
+        return Clock.systemUTC();
+    }
+
+    @Override
+    public Log log()
+    {
+        return SILENT_LOG;
+    }
+
+    @Override
+    public void setAuthenticationCachingEnabled( boolean authenticationCachingEnabled )
+    {
+    }
+
+    @Override
+    public void setAuthorizationCachingEnabled( boolean authorizationCachingEnabled )
+    {
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import java.util.Map;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+
+/**
+ * A pre-built login token. Benchmarks reuse the same instance for every invocation, so building the
+ * token is not part of what is measured.
+ */
+class BenchmarkAuthToken implements AuthToken
+{
+    private final String principal;
+    private final char[] credentials;
+    private final Map<String,Object> parameters;
+
+    BenchmarkAuthToken( String principal, char[] credentials, Map<String,Object> parameters )
+    {
+        this.principal = principal;
+        this.credentials = credentials;
+        this.parameters = parameters;
+    }
+
+    static BenchmarkAuthToken basic( String principal, String password )
+    {
+        return new BenchmarkAuthToken( principal, password.toCharArray(), Map.of() );
+    }
+
+    @Override
+    public String principal()
+    {
+        return principal;
+    }
+
+    @Override
+    public char[] credentials()
+    {
+        return credentials;
+    }
+
+    @Override
+    public Map<String,Object> parameters()
+    {
+        return parameters;
+    }
+}
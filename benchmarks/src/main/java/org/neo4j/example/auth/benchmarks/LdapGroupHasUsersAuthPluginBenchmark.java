@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.annotations.LoadSchema;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.junit.runner.Description;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import org.neo4j.example.auth.plugin.ldap.LdapGroupHasUsersAuthPlugin;
+
+/**
+ * Logs in against the same in-process ApacheDS server and test data as LdapGroupHasUsersAuthPluginIT,
+ * on a different port so that both can run on the same machine.
+ */
+@CreateDS(
+        name = "Benchmark",
+        partitions = { @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com" )
+        },
+        loadedSchemas = {
+                @LoadSchema( name = "nis" ),
+        } )
+@CreateLdapServer(
+        transports = { @CreateTransport( protocol = "LDAP", port = 10390, address = "localhost" ) }
+)
+@ApplyLdifFiles( "ldap_group_has_users_test_data.ldif" )
+@State( Scope.Benchmark )
+@BenchmarkMode( {Mode.Throughput, Mode.SampleTime} )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class LdapGroupHasUsersAuthPluginBenchmark
+{
+    private static final String LDAP_SERVER_URL = "ldap://localhost:10390";
+
+    private DirectoryService directoryService;
+    private LdapServer ldapServer;
+    private BenchmarkAuthProviderOperations api;
+    private LdapGroupHasUsersAuthPlugin plugin;
+    private BenchmarkAuthToken reader;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Description description = Description.createSuiteDescription( LdapGroupHasUsersAuthPluginBenchmark.class.getSimpleName(),
+                LdapGroupHasUsersAuthPluginBenchmark.class.getAnnotations() );
+        directoryService = DSAnnotationProcessor.getDirectoryService( description );
+        DSAnnotationProcessor.applyLdifs( description, directoryService );
+        ldapServer = ServerAnnotationProcessor.createLdapServer( description, directoryService );
+        ldapServer.setConfidentialityRequired( false );
+
+        api = new BenchmarkAuthProviderOperations();
+        api.writeConfig( "ldap.conf", LdapGroupHasUsersAuthPlugin.LDAP_SERVER_URL_SETTING + "=" + LDAP_SERVER_URL );
+        plugin = new LdapGroupHasUsersAuthPlugin();
+        plugin.initialize( api );
+
+        reader = BenchmarkAuthToken.basic( "neo", "abc123" );
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        plugin.shutdown();
+        ldapServer.stop();
+        directoryService.shutdown();
+        api.deleteHome();
+    }
+
+    @Benchmark
+    public AuthInfo login() throws AuthenticationException
+    {
+        return plugin.authenticateAndAuthorize( reader );
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import org.neo4j.example.auth.plugin.MyAuthPlugin;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( {Mode.Throughput, Mode.SampleTime} )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class MyAuthPluginBenchmark
+{
+    private BenchmarkAuthProviderOperations api;
+    private MyAuthPlugin plugin;
+    private BenchmarkAuthToken admin;
+    private BenchmarkAuthToken wrongPassword;
+
+    @Setup
+    public void setUp()
+    {
+        api = new BenchmarkAuthProviderOperations();
+        api.writeConfig( "MyAuthPlugin.conf", "my.auth.property=benchmark" );
+        plugin = new MyAuthPlugin();
+        plugin.initialize( api );
+
+        admin = BenchmarkAuthToken.basic( "moraeus", "suearom" );
+        wrongPassword = BenchmarkAuthToken.basic( "moraeus", "wrong" );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        plugin.shutdown();
+        api.deleteHome();
+    }
+
+    @Benchmark
+    public AuthInfo login() throws AuthenticationException
+    {
+        return plugin.authenticateAndAuthorize( admin );
+    }
+
+    @Benchmark
+    public AuthInfo rejectedLogin() throws AuthenticationException
+    {
+        return plugin.authenticateAndAuthorize( wrongPassword );
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import org.neo4j.example.auth.plugin.pki.KeyAlgorithm;
+import org.neo4j.example.auth.plugin.pki.PkiAuthPlugin;
+import org.neo4j.example.auth.plugin.pki.PkiRepository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Logs in with each kind of PKI token, with the verified token cache both enabled and disabled. With
+ * the cache enabled every invocation after the first is a cache hit, with it disabled every invocation
+ * does the full public-key operation.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( {Mode.Throughput, Mode.SampleTime} )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class PkiAuthPluginBenchmark
+{
+    private static final String USERNAME = "benchmark";
+
+    public enum Login
+    {
+        RSA_ENCRYPTED_USERNAME( "RSA" ),
+        RSA_SIGNATURE( "RSA" ),
+        EC_SIGNATURE( "EC" ),
+        ED25519_SIGNATURE( "Ed25519" );
+
+        private final String keyAlgorithm;
+
+        Login( String keyAlgorithm )
+        {
+            this.keyAlgorithm = keyAlgorithm;
+        }
+    }
+
+    @Param
+    public Login login;
+
+    @Param( {"true", "false"} )
+    public boolean tokenCache;
+
+    private BenchmarkAuthProviderOperations api;
+    private PkiAuthPlugin plugin;
+    private BenchmarkAuthToken token;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        KeyPair defaultUserKeys = generateKeyPair( "RSA" );
+        api = new BenchmarkAuthProviderOperations();
+        api.writeConfig( "pki.conf",
+                PkiAuthPlugin.DEFAULT_USER_PUBLIC_KEY_SETTING + "=" + encode( defaultUserKeys.getPublic().getEncoded() ),
+                PkiAuthPlugin.TOKEN_CACHE_MAX_SIZE_SETTING + "=" + (tokenCache ? 10000 : 0),
+                // The token is created once, so it must stay fresh for the whole run
+                PkiAuthPlugin.MAX_CLOCK_SKEW_SECONDS_SETTING + "=" + TimeUnit.DAYS.toSeconds( 1 ) );
+        plugin = new PkiAuthPlugin();
+        plugin.initialize( api );
+
+        KeyPair keyPair = generateKeyPair( login.keyAlgorithm );
+        PkiRepository.add( USERNAME, encode( keyPair.getPublic().getEncoded() ), PredefinedRoles.READER );
+        token = login == Login.RSA_ENCRYPTED_USERNAME ? encryptedUsernameToken( keyPair ) : signatureToken( keyPair );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        plugin.shutdown();
+        PkiRepository.reset();
+        api.deleteHome();
+    }
+
+    @Benchmark
+    public AuthInfo login()
+    {
+        return plugin.authenticateAndAuthorize( token );
+    }
+
+    private static BenchmarkAuthToken encryptedUsernameToken( KeyPair keyPair ) throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance( PkiAuthPlugin.CRYPTO_ALGORITHM );
+        cipher.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+        String encryptedUsername = encode( cipher.doFinal( USERNAME.getBytes( UTF_8 ) ) );
+        return new BenchmarkAuthToken( USERNAME, new char[0],
+                Map.of( PkiAuthPlugin.ENCRYPTED_USERNAME_PARAMETER_NAME, encryptedUsername ) );
+    }
+
+    private BenchmarkAuthToken signatureToken( KeyPair keyPair ) throws GeneralSecurityException
+    {
+        long timestamp = api.clock().millis();
+        KeyAlgorithm algorithm = KeyAlgorithm.of( keyPair.getPublic().getEncoded() );
+        Signature signer = Signature.getInstance( algorithm.signatureAlgorithm() );
+        signer.initSign( keyPair.getPrivate() );
+        signer.update( PkiAuthPlugin.signedMessage( USERNAME, timestamp ) );
+        return new BenchmarkAuthToken( USERNAME, new char[0],
+                Map.of( PkiAuthPlugin.SIGNATURE_PARAMETER_NAME, encode( signer.sign() ),
+                        PkiAuthPlugin.TIMESTAMP_PARAMETER_NAME, timestamp ) );
+    }
+
+    private static KeyPair generateKeyPair( String algorithm ) throws GeneralSecurityException
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( algorithm );
+        if ( algorithm.equals( "RSA" ) )
+        {
+            generator.initialize( 2048 );
+        }
+        else if ( algorithm.equals( "EC" ) )
+        {
+            generator.initialize( new ECGenParameterSpec( "secp256r1" ) );
+        }
+        return generator.generateKeyPair();
+    }
+
+    private static String encode( byte[] bytes )
+    {
+        return Base64.getEncoder().encodeToString( bytes );
+    }
+}
@@ -18,47 +18,89 @@
  */
 package org.neo4j.example.auth.plugin;
 
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Properties;
+import java.time.Duration;
+import java.util.Collection;
 
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
-import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthPlugin;
+import org.neo4j.example.auth.plugin.audit.AuditLog;
+import org.neo4j.example.auth.plugin.config.ConfigWatcher;
+import org.neo4j.example.auth.plugin.config.PluginConfig;
+import org.neo4j.example.auth.plugin.config.WatchedConfig;
+import org.neo4j.example.auth.plugin.metrics.AuthMetrics;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Authenticates users against a file of users with salted password hashes and roles, see {@link PasswordFileStore}.
+ * Without a users file it falls back to the example users {@code moraeus} (admin) and {@code neo4j} (reader).
+ *
+ * Changes to the config file and to the users file are picked up while Neo4j is running.
+ */
 public class MyAuthPlugin extends AuthPlugin.Adapter
 {
+    public static final String USERS_FILE_SETTING = "my.auth.users.file";
+    public static final String PASSWORD_HASH_ITERATIONS_SETTING = "my.auth.password.hash.iterations";
+    public static final String MAX_CONCURRENT_VERIFICATIONS_SETTING = "my.auth.max.concurrent.verifications";
+    public static final String VERIFICATION_TIMEOUT_MILLIS_SETTING = "my.auth.verification.timeout.millis";
+    public static final String DEFAULT_USERS_FILE = "conf/MyAuthPlugin.users";
+
+    static final int DEFAULT_PASSWORD_HASH_ITERATIONS = 100000;
+    private static final int DEFAULT_VERIFICATION_TIMEOUT_MILLIS = 5000;
+    private static final String EXAMPLE_USERS = "MyAuthPlugin.users";
+
+    private static final AuthMetrics metrics = AuthMetrics.forPlugin( MyAuthPlugin.class.getName() );
+
+    private static final String[] USERS_SETTINGS = {USERS_FILE_SETTING, PASSWORD_HASH_ITERATIONS_SETTING,
+            MAX_CONCURRENT_VERIFICATIONS_SETTING, VERIFICATION_TIMEOUT_MILLIS_SETTING};
+
     private AuthProviderOperations api;
+    private WatchedConfig config;
+    private volatile AuditLog auditLog = AuditLog.DISABLED;
+    private volatile PasswordFileStore users;
+    private ConfigWatcher.Registration usersFileWatch;
 
     @Override
     public AuthInfo authenticateAndAuthorize( AuthToken authToken ) throws AuthenticationException
     {
+        long start = System.nanoTime();
         String username = authToken.principal();
-        char[] password = authToken.credentials();
-
-        api.log().info( "Log in attempted for user '" + username + "'.");
+        AuthInfo authInfo;
+        try
+        {
+            authInfo = users.authenticate( username, authToken.credentials() );
+        }
+        catch ( AuthenticationException e )
+        {
+            recordLogin( username, AuditLog.Outcome.ERROR, start, null );
+            throw e;
+        }
 
-        if ( username != null && password != null )
+        // Logins are recorded in the audit log, rather than logged one by one on the login thread
+        if ( authInfo == null )
         {
-            if ( username.equals( "moraeus" ) && Arrays.equals( password, "suearom".toCharArray() ) )
-            {
-                api.log().info( "Successful log in. Welcome Kalle Moraeus! You are granted admin permissions." );
-                return AuthInfo.of( "moraeus", Collections.singleton( PredefinedRoles.ADMIN ) );
-            }
-            else if ( username.equals( "neo4j" ) && Arrays.equals( password, "neo4j".toCharArray() ) )
-            {
-                api.log().info( "Successful log in. You are granted reader permissions." );
-                return AuthInfo.of( "neo4j", Collections.singleton( PredefinedRoles.READER ) );
-            }
+            recordLogin( username, AuditLog.Outcome.FAILURE, start, null );
         }
-        return null;
+        else
+        {
+            recordLogin( username, AuditLog.Outcome.SUCCESS, start, authInfo.roles() );
+        }
+        return authInfo;
+    }
+
+    private void recordLogin( String username, AuditLog.Outcome outcome, long start, Collection<String> roles )
+    {
+        long latency = System.nanoTime() - start;
+        metrics.recordLogin( outcome, latency );
+        auditLog.record( username, outcome, latency, roles );
     }
 
     @Override
@@ -67,36 +109,135 @@ public class MyAuthPlugin extends AuthPlugin.Adapter
         api = authProviderOperations;
         api.log().info( "initialized!" );
 
-        loadConfig();
+        config = WatchedConfig.open( resolveConfigFilePath(), false, api.log(), this::configure );
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        if ( config != null )
+        {
+            config.close();
+            config = null;
+        }
+        if ( usersFileWatch != null )
+        {
+            usersFileWatch.close();
+            usersFileWatch = null;
+        }
+        auditLog.close();
+        auditLog = AuditLog.DISABLED;
+    }
+
+    private synchronized void configure( PluginConfig previous, PluginConfig config )
+    {
+        if ( config.changed( previous, "my.auth.property" ) )
+        {
+            api.log().info( "my.auth.property=" + config.get( "my.auth.property" ) );
+        }
+
+        // Both are built before either is swapped in, so a config that cannot be applied changes nothing
+        boolean usersChanged = config.changed( previous, USERS_SETTINGS );
+        PasswordFileStore newUsers = usersChanged ? loadUsers( config ) : null;
+        AuditLog newAuditLog = AuditLog.settingsChanged( previous, config ) ? AuditLog.fromConfig( name(), config, api ) : null;
+
+        if ( usersChanged )
+        {
+            users = newUsers;
+            watchUsersFile( config );
+        }
+
+        if ( newAuditLog != null )
+        {
+            AuditLog previousAuditLog = auditLog;
+            auditLog = newAuditLog;
+            previousAuditLog.close();
+        }
     }
 
-    private void loadConfig()
+    private void watchUsersFile( PluginConfig config )
     {
-        Path configFile = resolveConfigFilePath();
-        Properties properties = loadProperties( configFile );
+        if ( usersFileWatch != null )
+        {
+            usersFileWatch.close();
+            usersFileWatch = null;
+        }
+        Path usersFile = usersFile( config );
+        try
+        {
+            usersFileWatch = ConfigWatcher.watch( usersFile, this::reloadUsers );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            api.log().warn( "Changes to '" + usersFile + "' will not be picked up until Neo4j is restarted: " + e );
+        }
+    }
 
-        String myProperty = properties.getProperty( "my.auth.property" );
-        api.log().info( "my.auth.property=" + myProperty );
+    private synchronized void reloadUsers()
+    {
+        WatchedConfig watchedConfig = config;
+        if ( watchedConfig == null )
+        {
+            return;
+        }
+        try
+        {
+            users = loadUsers( watchedConfig.current() );
+        }
+        catch ( IllegalStateException e )
+        {
+            api.log().error( "Failed to reload users, keeping the previous ones: " + e.getMessage() );
+        }
     }
 
-    private Path resolveConfigFilePath()
+    private Path usersFile( PluginConfig config )
     {
-        return api.neo4jHome().resolve( "conf/MyAuthPlugin.conf" );
+        return api.neo4jHome().resolve( config.get( USERS_FILE_SETTING, DEFAULT_USERS_FILE ).trim() );
     }
 
-    private Properties loadProperties( Path configFile )
+    private PasswordFileStore loadUsers( PluginConfig config )
     {
-        Properties properties = new Properties();
+        int iterations = config.intSetting( PASSWORD_HASH_ITERATIONS_SETTING, DEFAULT_PASSWORD_HASH_ITERATIONS );
+        // By default leave half of the cores to queries, however many logins come in at once
+        int maxConcurrentVerifications = config.intSetting( MAX_CONCURRENT_VERIFICATIONS_SETTING,
+                Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+        Duration verificationTimeout = Duration.ofMillis(
+                config.intSetting( VERIFICATION_TIMEOUT_MILLIS_SETTING, DEFAULT_VERIFICATION_TIMEOUT_MILLIS ) );
 
+        String usersFileSetting = config.get( USERS_FILE_SETTING );
+        Path usersFile = usersFile( config );
         try
         {
-            InputStream inputStream = new FileInputStream( configFile.toFile() );
-            properties.load( inputStream );
+            PasswordFileStore store;
+            if ( usersFileSetting == null && Files.notExists( usersFile ) )
+            {
+                api.log().warn( "No users file '" + usersFile + "', only the example users can log in." );
+                try ( BufferedReader reader = new BufferedReader(
+                        new InputStreamReader( MyAuthPlugin.class.getResourceAsStream( EXAMPLE_USERS ), UTF_8 ) ) )
+                {
+                    store = PasswordFileStore.read( reader, EXAMPLE_USERS, iterations, maxConcurrentVerifications,
+                            verificationTimeout );
+                }
+            }
+            else
+            {
+                try ( BufferedReader reader = Files.newBufferedReader( usersFile ) )
+                {
+                    store = PasswordFileStore.read( reader, usersFile.toString(), iterations, maxConcurrentVerifications,
+                            verificationTimeout );
+                }
+            }
+            api.log().info( "Loaded " + store.size() + " users." );
+            return store;
         }
         catch ( IOException e )
         {
-            api.log().error( "Failed to load config file '" + configFile.toString() + "'." );
+            throw new IllegalStateException( "Failed to load users from '" + usersFile + "': " + e.getMessage(), e );
         }
-        return properties;
+    }
+
+    private Path resolveConfigFilePath()
+    {
+        return api.neo4jHome().resolve( "conf/MyAuthPlugin.conf" );
     }
 }
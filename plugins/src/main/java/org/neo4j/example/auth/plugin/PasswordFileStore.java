@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+
+/**
+ * The users of {@link MyAuthPlugin}, with a salted password hash and roles each, read from a file with a line
+ * per user in the format
+ *
+ * <pre>
+ * username:PBKDF2WithHmacSHA256,iterations,base64 salt,base64 hash:role1,role2
+ * </pre>
+ *
+ * Empty lines and lines starting with {@code #} are ignored. Run {@link #main(String[])} to hash a password
+ * into such a line.
+ *
+ * Hashing a password is deliberately slow, so only a limited number of logins are verified at a time and
+ * the rest wait for their turn, which keeps a burst of logins from taking every core away from queries.
+ */
+public final class PasswordFileStore
+{
+    static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Map<String,User> users;
+    // Verified when the user does not exist, so that unknown users take as long to reject as wrong passwords.
+    // Hashed with as many iterations as the strongest password, to not stand out against any of the users
+    private final User unknownUser;
+    private final Semaphore verifications;
+    private final long verificationTimeoutMillis;
+
+    private PasswordFileStore( Map<String,User> users, int iterations, int maxConcurrentVerifications, Duration verificationTimeout )
+    {
+        this.users = users;
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes( salt );
+        this.unknownUser = new User( iterations, salt, hash( new char[0], salt, iterations ), Set.of() );
+        this.verifications = new Semaphore( maxConcurrentVerifications, true );
+        this.verificationTimeoutMillis = verificationTimeout.toMillis();
+    }
+
+    /**
+     * @param source where the users are read from, for error messages
+     * @param minimumIterations the lowest work factor that a password hash may have
+     * @throws IllegalStateException if a line is malformed, or hashed with too few iterations
+     */
+    static PasswordFileStore read( BufferedReader reader, String source, int minimumIterations, int maxConcurrentVerifications,
+            Duration verificationTimeout ) throws IOException
+    {
+        Map<String,User> users = new HashMap<>();
+        // Share a single immutable set between all users with the same roles
+        Map<Set<String>,Set<String>> roleSets = new HashMap<>();
+        int maxIterations = minimumIterations;
+        int lineNumber = 0;
+        String line;
+        while ( (line = reader.readLine()) != null )
+        {
+            lineNumber++;
+            String trimmed = line.trim();
+            if ( trimmed.isEmpty() || trimmed.startsWith( "#" ) )
+            {
+                continue;
+            }
+            String[] fields = trimmed.split( ":", -1 );
+            String[] hash = fields.length == 3 ? fields[1].split( ",", -1 ) : new String[0];
+            if ( fields[0].isEmpty() || hash.length != 4 || !hash[0].equals( ALGORITHM ) )
+            {
+                throw new IllegalStateException( "Malformed user on line " + lineNumber + " of '" + source +
+                        "', expected username:" + ALGORITHM + ",iterations,salt,hash:role1,role2" );
+            }
+
+            int iterations;
+            byte[] salt;
+            byte[] expected;
+            try
+            {
+                iterations = Integer.parseInt( hash[1] );
+                salt = Base64.getDecoder().decode( hash[2] );
+                expected = Base64.getDecoder().decode( hash[3] );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                throw new IllegalStateException( "Malformed password hash on line " + lineNumber + " of '" + source + "'", e );
+            }
+            if ( iterations < minimumIterations )
+            {
+                throw new IllegalStateException( "The password of user '" + fields[0] + "' in '" + source + "' is hashed with " +
+                        iterations + " iterations, fewer than the minimum of " + minimumIterations + ". Hash it again." );
+            }
+            maxIterations = Math.max( maxIterations, iterations );
+
+            Set<String> roles = new LinkedHashSet<>();
+            for ( String role : fields[2].split( "," ) )
+            {
+                if ( !role.isBlank() )
+                {
+                    roles.add( role.trim() );
+                }
+            }
+            Set<String> sharedRoles = roleSets.computeIfAbsent( Set.copyOf( roles ), r -> r );
+            if ( users.put( fields[0], new User( iterations, salt, expected, sharedRoles ) ) != null )
+            {
+                throw new IllegalStateException( "User '" + fields[0] + "' is listed more than once in '" + source + "'" );
+            }
+        }
+        return new PasswordFileStore( Map.copyOf( users ), maxIterations, maxConcurrentVerifications, verificationTimeout );
+    }
+
+    /**
+     * @return the user with their roles, or null if the user does not exist or the password is wrong
+     * @throws AuthenticationException if too many other logins are being verified to get a turn in time
+     */
+    AuthInfo authenticate( String username, char[] password ) throws AuthenticationException
+    {
+        if ( username == null || password == null )
+        {
+            return null;
+        }
+        User user = users.get( username );
+
+        try
+        {
+            if ( !verifications.tryAcquire( verificationTimeoutMillis, TimeUnit.MILLISECONDS ) )
+            {
+                throw new AuthenticationException( "Too many logins are being verified at the same time, try again later" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationException( "Interrupted while waiting to verify the password" );
+        }
+        try
+        {
+            if ( user == null )
+            {
+                unknownUser.matches( password );
+                return null;
+            }
+            return user.matches( password ) ? AuthInfo.of( username, user.roles ) : null;
+        }
+        finally
+        {
+            verifications.release();
+        }
+    }
+
+    int size()
+    {
+        return users.size();
+    }
+
+    /**
+     * @return the password hashed with a new salt, in the format of the users file
+     */
+    public static String hash( char[] password, int iterations )
+    {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes( salt );
+        Base64.Encoder base64 = Base64.getEncoder();
+        return ALGORITHM + "," + iterations + "," + base64.encodeToString( salt ) + "," +
+                base64.encodeToString( hash( password, salt, iterations ) );
+    }
+
+    /**
+     * Print a line for the users file. Takes the username, the roles separated by commas and optionally the
+     * number of iterations, and asks for the password.
+     */
+    public static void main( String[] args )
+    {
+        Console console = System.console();
+        if ( args.length < 2 || console == null )
+        {
+            System.err.println( "Usage: java " + PasswordFileStore.class.getName() + " <username> <role1,role2> [iterations]" );
+            System.exit( 1 );
+        }
+        int iterations = args.length > 2 ? Integer.parseInt( args[2] ) : MyAuthPlugin.DEFAULT_PASSWORD_HASH_ITERATIONS;
+        char[] password = console.readPassword( "Password for '%s': ", args[0] );
+        System.out.println( args[0] + ":" + hash( password, iterations ) + ":" + args[1] );
+        Arrays.fill( password, '\0' );
+    }
+
+    private static byte[] hash( char[] password, byte[] salt, int iterations )
+    {
+        PBEKeySpec spec = new PBEKeySpec( password, salt, iterations, HASH_BITS );
+        try
+        {
+            return SecretKeyFactory.getInstance( ALGORITHM ).generateSecret( spec ).getEncoded();
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "Failed to hash password with " + ALGORITHM + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    private static final class User
+    {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final Set<String> roles;
+
+        User( int iterations, byte[] salt, byte[] hash, Set<String> roles )
+        {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+            this.roles = roles;
+        }
+
+        boolean matches( char[] password )
+        {
+            // Compares in constant time, not to give away how much of the hash matched
+            return MessageDigest.isEqual( hash, PasswordFileStore.hash( password, salt, iterations ) );
+        }
+    }
+}
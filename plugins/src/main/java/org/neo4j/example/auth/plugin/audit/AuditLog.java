@@ -0,0 +1,401 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.audit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import org.neo4j.example.auth.plugin.config.PluginConfig;
+
+/**
+ * Records login events of an auth plugin, and writes them out on a background thread, so that a login
+ * does not wait for its own log line to be formatted and written.
+ *
+ * Events go into a ring buffer of slots that are allocated up front. Logins claim a slot with a
+ * compare-and-set, fill it in and publish it, without taking any lock. When the buffer is full the
+ * event is dropped and counted instead of making the login wait; the writer reports how many were
+ * dropped. Each event is written as a line of JSON.
+ */
+public class AuditLog
+{
+    public static final String AUDIT_ENABLED_SETTING = "dbms.security.plugin.audit.enabled";
+    public static final String AUDIT_FILE_SETTING = "dbms.security.plugin.audit.file";
+    public static final String AUDIT_BUFFER_SIZE_SETTING = "dbms.security.plugin.audit.buffer.size";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+    private static final long DROP_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 10 );
+
+    public static final AuditLog DISABLED = new AuditLog();
+
+    public enum Outcome
+    {
+        /**
+         * The plugin authenticated the user.
+         */
+        SUCCESS,
+        /**
+         * The plugin did not accept the credentials.
+         */
+        FAILURE,
+        /**
+         * The plugin could not tell, for instance because a server it depends on could not be reached.
+         */
+        ERROR
+    }
+
+    private final String plugin;
+    private final Clock clock;
+    private final AuditSink sink;
+    private final AuthProviderOperations.Log log;
+    private final Event[] slots;
+    private final int mask;
+    // The sequence number of the event in each slot, once it has been published
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    // Only written by the writer, the sequence number of the next event to write
+    private volatile long next;
+    private volatile boolean running;
+
+    private AuditLog()
+    {
+        this.plugin = null;
+        this.clock = null;
+        this.sink = null;
+        this.log = null;
+        this.slots = null;
+        this.mask = 0;
+        this.published = null;
+        this.writer = null;
+    }
+
+    /**
+     * @param bufferSize the number of events that can wait to be written, rounded up to a power of two
+     */
+    public AuditLog( String plugin, int bufferSize, AuditSink sink, Clock clock, AuthProviderOperations.Log log )
+    {
+        if ( bufferSize < 1 || bufferSize > 1 << 30 )
+        {
+            throw new IllegalArgumentException( "The audit buffer size must be between 1 and 2^30" );
+        }
+        int capacity = Integer.highestOneBit( bufferSize - 1 ) << 1;
+        capacity = Math.max( 1, capacity );
+        this.plugin = plugin;
+        this.clock = clock;
+        this.sink = sink;
+        this.log = log;
+        this.slots = new Event[capacity];
+        for ( int i = 0; i < capacity; i++ )
+        {
+            slots[i] = new Event();
+        }
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray( capacity );
+        for ( int i = 0; i < capacity; i++ )
+        {
+            published.set( i, -1 );
+        }
+
+        running = true;
+        writer = new Thread( this::writeUntilClosed, "auth-audit-writer-" + plugin );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    /**
+     * Create the audit log of a plugin from the {@value #AUDIT_ENABLED_SETTING}, {@value #AUDIT_FILE_SETTING}
+     * and {@value #AUDIT_BUFFER_SIZE_SETTING} settings in its config. Events go to the Neo4j log unless a
+     * file, relative to the Neo4j home directory, is set.
+     */
+    public static AuditLog fromConfig( String plugin, PluginConfig config, AuthProviderOperations api )
+    {
+        if ( !config.booleanSetting( AUDIT_ENABLED_SETTING, true ) )
+        {
+            return DISABLED;
+        }
+
+        int size = config.intSetting( AUDIT_BUFFER_SIZE_SETTING, DEFAULT_BUFFER_SIZE );
+        String file = config.get( AUDIT_FILE_SETTING );
+        AuditSink sink;
+        if ( file == null )
+        {
+            sink = AuditSink.log( api.log() );
+        }
+        else
+        {
+            Path path = api.neo4jHome().resolve( file.trim() );
+            try
+            {
+                sink = AuditSink.file( path );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( "Failed to open audit log file '" + path + "': " + e.getMessage(), e );
+            }
+        }
+        return new AuditLog( plugin, size, sink, api.clock(), api.log() );
+    }
+
+    /**
+     * @param previous the config before, or null if there was none
+     * @return whether the audit log has to be created again for the config
+     */
+    public static boolean settingsChanged( PluginConfig previous, PluginConfig config )
+    {
+        return config.changed( previous, AUDIT_ENABLED_SETTING, AUDIT_FILE_SETTING, AUDIT_BUFFER_SIZE_SETTING );
+    }
+
+    /**
+     * Record a login attempt. Never blocks, and does not allocate.
+     *
+     * @param roles the roles of the user if they were authenticated, or null
+     * @return false if the event was dropped because the buffer is full
+     */
+    public boolean record( String principal, Outcome outcome, long latencyNanos, Collection<String> roles )
+    {
+        if ( slots == null )
+        {
+            return true;
+        }
+
+        long sequence;
+        do
+        {
+            sequence = claimed.get();
+            if ( sequence - next >= slots.length || !running )
+            {
+                dropped.increment();
+                return false;
+            }
+        }
+        while ( !claimed.compareAndSet( sequence, sequence + 1 ) );
+
+        int index = (int) sequence & mask;
+        Event event = slots[index];
+        event.timestamp = clock.millis();
+        event.principal = principal;
+        event.outcome = outcome;
+        event.latencyNanos = latencyNanos;
+        event.roles = roles;
+        // Publishing the sequence number makes the fields above visible to the writer
+        published.set( index, sequence );
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped so far because the buffer was full
+     */
+    public long droppedEvents()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Stop recording, write out the events that have been recorded and close the sink.
+     */
+    public void close()
+    {
+        if ( writer == null || !running )
+        {
+            return;
+        }
+        running = false;
+        LockSupport.unpark( writer );
+        try
+        {
+            writer.join( TimeUnit.SECONDS.toMillis( 5 ) );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeUntilClosed()
+    {
+        StringBuilder line = new StringBuilder( 256 );
+        long reportedDropped = 0;
+        long lastDropWarning = System.nanoTime() - DROP_WARNING_INTERVAL_NANOS;
+        try
+        {
+            while ( running )
+            {
+                int written = drain( line );
+                long droppedSoFar = dropped.sum();
+                // Warn at most every so often, a sustained overload would otherwise flood the log
+                if ( droppedSoFar != reportedDropped && System.nanoTime() - lastDropWarning >= DROP_WARNING_INTERVAL_NANOS )
+                {
+                    log.warn( "The audit log of " + plugin + " was full and dropped " + (droppedSoFar - reportedDropped) +
+                            " events, " + droppedSoFar + " in total." );
+                    reportedDropped = droppedSoFar;
+                    lastDropWarning = System.nanoTime();
+                }
+                if ( written == 0 )
+                {
+                    if ( claimed.get() != next )
+                    {
+                        // A login is filling in the next slot right now
+                        Thread.yield();
+                    }
+                    else
+                    {
+                        LockSupport.parkNanos( IDLE_PARK_NANOS );
+                    }
+                }
+            }
+            // Logins that claimed a slot just before closing may still be filling it in
+            LockSupport.parkNanos( IDLE_PARK_NANOS );
+            drain( line );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            running = false;
+            log.error( "The audit log of " + plugin + " failed, no more login events are written: " + e.getMessage() );
+        }
+        finally
+        {
+            try
+            {
+                sink.close();
+            }
+            catch ( IOException e )
+            {
+                log.error( "Failed to close the audit log of " + plugin + ": " + e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * @return the number of events written
+     */
+    private int drain( StringBuilder line ) throws IOException
+    {
+        int written = 0;
+        long sequence = next;
+        int index = (int) sequence & mask;
+        while ( published.get( index ) == sequence )
+        {
+            Event event = slots[index];
+            line.setLength( 0 );
+            event.format( plugin, line );
+            event.clear();
+            sink.write( line );
+            next = ++sequence;
+            index = (int) sequence & mask;
+            written++;
+        }
+        if ( written > 0 )
+        {
+            sink.flush();
+        }
+        return written;
+    }
+
+    /**
+     * A slot in the ring buffer, reused for every event that lands in it.
+     */
+    private static final class Event
+    {
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        private long timestamp;
+        private String principal;
+        private Outcome outcome;
+        private long latencyNanos;
+        private Collection<String> roles;
+
+        void format( String plugin, StringBuilder line )
+        {
+            line.append( "{\"time\":\"" );
+            DateTimeFormatter.ISO_INSTANT.formatTo( Instant.ofEpochMilli( timestamp ), line );
+            line.append( "\",\"plugin\":" );
+            appendString( line, plugin );
+            line.append( ",\"principal\":" );
+            appendString( line, principal );
+            line.append( ",\"outcome\":\"" ).append( outcome ).append( '"' );
+            line.append( ",\"latencyMicros\":" ).append( TimeUnit.NANOSECONDS.toMicros( latencyNanos ) );
+            line.append( ",\"roles\":[" );
+            if ( roles != null )
+            {
+                boolean first = true;
+                for ( String role : roles )
+                {
+                    if ( !first )
+                    {
+                        line.append( ',' );
+                    }
+                    appendString( line, role );
+                    first = false;
+                }
+            }
+            line.append( "]}" );
+        }
+
+        void clear()
+        {
+            // Do not keep principals and roles reachable until the slot is reused
+            principal = null;
+            roles = null;
+        }
+
+        private static void appendString( StringBuilder line, String value )
+        {
+            if ( value == null )
+            {
+                line.append( "null" );
+                return;
+            }
+            // The principal comes straight from the client, so everything that could break the line is escaped
+            line.append( '"' );
+            for ( int i = 0; i < value.length(); i++ )
+            {
+                char c = value.charAt( i );
+                if ( c == '"' || c == '\\' )
+                {
+                    line.append( '\\' ).append( c );
+                }
+                else if ( c < 0x20 || c == 0x2028 || c == 0x2029 )
+                {
+                    line.append( "\\u" );
+                    for ( int shift = 12; shift >= 0; shift -= 4 )
+                    {
+                        line.append( HEX_DIGITS[(c >> shift) & 0xF] );
+                    }
+                }
+                else
+                {
+                    line.append( c );
+                }
+            }
+            line.append( '"' );
+        }
+    }
+}
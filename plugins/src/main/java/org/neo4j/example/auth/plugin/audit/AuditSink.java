@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.audit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Where the background writer of an {@link AuditLog} writes the events to, one line per event.
+ * Only ever called from that one thread.
+ */
+public interface AuditSink
+{
+    void write( CharSequence line ) throws IOException;
+
+    /**
+     * Called after every batch of events.
+     */
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Write events to the Neo4j log, at info level.
+     */
+    static AuditSink log( AuthProviderOperations.Log log )
+    {
+        return new AuditSink()
+        {
+            @Override
+            public void write( CharSequence line )
+            {
+                log.info( line.toString() );
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Append events to a file of their own, which is created if needed.
+     */
+    static AuditSink file( Path file ) throws IOException
+    {
+        Path directory = file.toAbsolutePath().getParent();
+        if ( directory != null )
+        {
+            Files.createDirectories( directory );
+        }
+        Writer writer = Files.newBufferedWriter( file, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+        return new AuditSink()
+        {
+            @Override
+            public void write( CharSequence line ) throws IOException
+            {
+                writer.append( line ).append( '\n' );
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                writer.flush();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                writer.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.config;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files for changes, on a single thread shared by all plugins, and tells whoever registered for a
+ * file when it has changed. The thread starts with the first registration and stops with the last one.
+ *
+ * Editors and deployment tools often write a file in several steps, so a change is only reported once the
+ * directory has been quiet for a little while, and then only once.
+ */
+public final class ConfigWatcher
+{
+    private static final long QUIET_PERIOD_MILLIS = 200;
+
+    // Guarded by the class
+    private static ConfigWatcher instance;
+
+    private final WatchService watchService;
+    private final Map<WatchKey,Path> directories = new ConcurrentHashMap<>();
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    private ConfigWatcher() throws IOException
+    {
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread( this::watch, "auth-plugin-config-watcher" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Call {@code onChange} on the watcher thread whenever the file is created or modified. It should not
+     * take long, as all other files wait for it.
+     *
+     * @throws IOException if the directory of the file cannot be watched, for instance because it does not exist
+     */
+    public static synchronized Registration watch( Path file, Runnable onChange ) throws IOException
+    {
+        Path absolute = file.toAbsolutePath().normalize();
+        Path directory = absolute.getParent();
+        boolean started = instance == null;
+        if ( started )
+        {
+            instance = new ConfigWatcher();
+        }
+        try
+        {
+            // Registering a directory again returns the key it already has
+            WatchKey key = directory.register( instance.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY );
+            instance.directories.put( key, directory );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            if ( started )
+            {
+                instance.close();
+            }
+            throw e;
+        }
+        Registration registration = new Registration( absolute, onChange );
+        instance.registrations.add( registration );
+        return registration;
+    }
+
+    private static synchronized void unregister( Registration registration )
+    {
+        if ( instance == null || !instance.registrations.remove( registration ) )
+        {
+            return;
+        }
+        Path directory = registration.file.getParent();
+        if ( instance.registrations.stream().noneMatch( other -> other.file.getParent().equals( directory ) ) )
+        {
+            instance.directories.entrySet().removeIf( entry ->
+            {
+                if ( entry.getValue().equals( directory ) )
+                {
+                    entry.getKey().cancel();
+                    return true;
+                }
+                return false;
+            } );
+        }
+        if ( instance.registrations.isEmpty() )
+        {
+            instance.close();
+        }
+    }
+
+    private void close()
+    {
+        instance = null;
+        try
+        {
+            watchService.close();
+        }
+        catch ( IOException e )
+        {
+            // The thread stops either way
+        }
+    }
+
+    private void watch()
+    {
+        try
+        {
+            while ( true )
+            {
+                Set<Path> changed = new HashSet<>();
+                WatchKey key = watchService.take();
+                // Gather everything that happens until things have been quiet for a while
+                while ( key != null )
+                {
+                    collect( key, changed );
+                    key = watchService.poll( QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS );
+                }
+                for ( Registration registration : registrations )
+                {
+                    if ( changed.contains( registration.file ) )
+                    {
+                        registration.notifyChanged();
+                    }
+                }
+            }
+        }
+        catch ( ClosedWatchServiceException | InterruptedException e )
+        {
+            // Nothing is watched anymore
+        }
+    }
+
+    private void collect( WatchKey key, Set<Path> changed )
+    {
+        Path directory = directories.get( key );
+        for ( WatchEvent<?> event : key.pollEvents() )
+        {
+            // An overflow has no file name, every file in the directory may have changed
+            if ( event.kind() == StandardWatchEventKinds.OVERFLOW )
+            {
+                registrations.stream().filter( r -> r.file.getParent().equals( directory ) ).forEach( r -> changed.add( r.file ) );
+            }
+            else if ( directory != null )
+            {
+                changed.add( directory.resolve( (Path) event.context() ) );
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * A file being watched, until it is closed.
+     */
+    public static final class Registration implements AutoCloseable
+    {
+        private final Path file;
+        private final Runnable onChange;
+
+        private Registration( Path file, Runnable onChange )
+        {
+            this.file = file;
+            this.onChange = onChange;
+        }
+
+        @Override
+        public void close()
+        {
+            unregister( this );
+        }
+
+        private void notifyChanged()
+        {
+            try
+            {
+                onChange.run();
+            }
+            catch ( RuntimeException e )
+            {
+                // Whoever registered reports their own errors, a failure must not stop the watching of other files
+            }
+        }
+    }
+}
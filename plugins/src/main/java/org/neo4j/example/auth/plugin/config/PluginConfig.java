@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * An immutable snapshot of the settings in the config file of a plugin.
+ */
+public final class PluginConfig
+{
+    public static final PluginConfig EMPTY = new PluginConfig( Map.of() );
+
+    private final Map<String,String> settings;
+
+    private PluginConfig( Map<String,String> settings )
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * @throws IllegalStateException if the file cannot be read
+     */
+    public static PluginConfig load( Path file )
+    {
+        Properties properties = new Properties();
+        try ( BufferedReader reader = Files.newBufferedReader( file ) )
+        {
+            properties.load( reader );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( "Failed loading properties: " + e.getMessage(), e );
+        }
+        return of( properties );
+    }
+
+    public static PluginConfig of( Properties properties )
+    {
+        Map<String,String> settings = new HashMap<>();
+        for ( String name : properties.stringPropertyNames() )
+        {
+            settings.put( name, properties.getProperty( name ) );
+        }
+        return new PluginConfig( Map.copyOf( settings ) );
+    }
+
+    /**
+     * @return the value of the setting, or null if it is not set
+     */
+    public String get( String name )
+    {
+        return settings.get( name );
+    }
+
+    public String get( String name, String defaultValue )
+    {
+        return settings.getOrDefault( name, defaultValue );
+    }
+
+    /**
+     * @throws IllegalStateException if the value is not an int
+     */
+    public int intSetting( String name, int defaultValue )
+    {
+        String value = settings.get( name );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt( value.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalStateException( "Invalid value '" + value + "' for setting '" + name + "'", e );
+        }
+    }
+
+    public boolean booleanSetting( String name, boolean defaultValue )
+    {
+        String value = settings.get( name );
+        return value == null ? defaultValue : Boolean.parseBoolean( value.trim() );
+    }
+
+    /**
+     * @param previous the config before this one, or null if there was none
+     * @return whether any of the settings has a different value than in the previous config
+     */
+    public boolean changed( PluginConfig previous, String... names )
+    {
+        if ( previous == null )
+        {
+            return true;
+        }
+        for ( String name : names )
+        {
+            if ( !Objects.equals( settings.get( name ), previous.settings.get( name ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        return this == o || o instanceof PluginConfig && settings.equals( ((PluginConfig) o).settings );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return settings.hashCode();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * The config file of a plugin, read again whenever it changes, so that settings can be changed without
+ * restarting Neo4j and losing every cache and connection along with it.
+ *
+ * Every version of the file is published as an immutable {@link PluginConfig}, which the plugin can read
+ * at any time without locking. Files are read, and changes applied, on the shared {@link ConfigWatcher}
+ * thread rather than on a login.
+ */
+public final class WatchedConfig implements AutoCloseable
+{
+    /**
+     * Applies a config to the plugin. Only the parts of the plugin whose settings have changed need to be
+     * replaced, everything else can be kept as is.
+     */
+    public interface Listener
+    {
+        /**
+         * Build and check everything the config needs before changing anything, so that a config that cannot
+         * be applied leaves the plugin running with the previous one.
+         *
+         * @param previous the config that was applied before, or null the first time
+         * @throws RuntimeException if the config cannot be applied, in which case the previous config stays
+         * current, so that the next change applies everything that differs from it again
+         */
+        void configure( PluginConfig previous, PluginConfig config );
+    }
+
+    private final Path file;
+    private final boolean required;
+    private final AuthProviderOperations.Log log;
+    private final Listener listener;
+    private final ConfigWatcher.Registration registration;
+    private volatile PluginConfig current;
+
+    private WatchedConfig( Path file, boolean required, AuthProviderOperations.Log log, Listener listener )
+    {
+        this.file = file;
+        this.required = required;
+        this.log = log;
+        this.listener = listener;
+
+        current = load();
+        listener.configure( null, current );
+
+        ConfigWatcher.Registration watching = null;
+        try
+        {
+            watching = ConfigWatcher.watch( file, this::reload );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            log.warn( "Changes to '" + file + "' will not be picked up until Neo4j is restarted: " + e );
+        }
+        registration = watching;
+    }
+
+    /**
+     * Read the config, apply it and watch for changes.
+     *
+     * @param required whether the file has to exist, the config is empty otherwise
+     * @throws IllegalStateException if the config cannot be read
+     * @throws RuntimeException whatever the listener throws if the config cannot be applied
+     */
+    public static WatchedConfig open( Path file, boolean required, AuthProviderOperations.Log log, Listener listener )
+    {
+        return new WatchedConfig( file, required, log, listener );
+    }
+
+    /**
+     * @return the config that was applied last
+     */
+    public PluginConfig current()
+    {
+        return current;
+    }
+
+    @Override
+    public void close()
+    {
+        if ( registration != null )
+        {
+            registration.close();
+        }
+    }
+
+    private PluginConfig load()
+    {
+        if ( !required && Files.notExists( file ) )
+        {
+            log.error( "Failed to load config file '" + file + "'." );
+            return PluginConfig.EMPTY;
+        }
+        return PluginConfig.load( file );
+    }
+
+    private synchronized void reload()
+    {
+        PluginConfig previous = current;
+        PluginConfig config;
+        try
+        {
+            config = load();
+        }
+        catch ( IllegalStateException e )
+        {
+            log.error( "Failed to reload '" + file + "', keeping the previous config: " + e.getMessage() );
+            return;
+        }
+        if ( config.equals( previous ) )
+        {
+            return;
+        }
+
+        try
+        {
+            listener.configure( previous, config );
+            current = config;
+            log.info( "Applied the changed config in '" + file + "'." );
+        }
+        catch ( RuntimeException e )
+        {
+            log.error( "Failed to apply the changed config in '" + file + "', keeping the previous config: " + e.getMessage() );
+        }
+    }
+}
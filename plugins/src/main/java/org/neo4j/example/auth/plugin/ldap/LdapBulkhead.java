@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+/**
+ * Runs calls to the LDAP server on threads of its own, at most {@code maxConcurrent} at a time and each
+ * within a deadline, so that a slow directory cannot tie up the threads of the caller.
+ *
+ * A call holds its permit until it has actually finished, also after the caller gave up on it, so
+ * the limit is never exceeded by calls that are still blocked on the server. The caller waits for a
+ * permit and for the result within the same deadline. A call that its caller gave up on before it
+ * started is not run at all, and its permit is handed back by the caller. Calls run on virtual threads when the JVM
+ * has them (Java 21 and later), and on a pool of platform threads otherwise.
+ */
+class LdapBulkhead
+{
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    LdapBulkhead( int maxConcurrent )
+    {
+        this( maxConcurrent, newExecutor() );
+    }
+
+    LdapBulkhead( int maxConcurrent, ExecutorService executor )
+    {
+        if ( maxConcurrent < 1 )
+        {
+            throw new IllegalArgumentException( "At least one concurrent LDAP operation must be allowed" );
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore( maxConcurrent );
+        this.executor = executor;
+    }
+
+    /**
+     * Run the operation and wait for its result, for no longer than the deadline. The operation is
+     * interrupted when the deadline passes, which makes JNDI abandon the outstanding request.
+     *
+     * @throws TimeLimitExceededException if the operation did not complete in time
+     * @throws RejectedException if the operation could not be started in time
+     * @throws ServiceUnavailableException if the caller was interrupted while waiting for the LDAP server
+     */
+    <T> T call( Operation<T> operation, Duration deadline ) throws NamingException
+    {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        try
+        {
+            if ( !permits.tryAcquire( deadline.toNanos(), TimeUnit.NANOSECONDS ) )
+            {
+                throw new RejectedException( "All " + maxConcurrent + " concurrent LDAP operations are busy, " +
+                        "gave up after " + deadline.toMillis() + " ms" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedException( "Interrupted while waiting to start an LDAP operation" );
+        }
+
+        // Whoever claims the call first hands back its permit: the task when it starts, or the
+        // caller when it gives up before that, as a cancelled task never runs
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<T> future;
+        try
+        {
+            future = executor.submit( () ->
+            {
+                if ( !claimed.compareAndSet( false, true ) )
+                {
+                    return null;
+                }
+                try
+                {
+                    return operation.call();
+                }
+                finally
+                {
+                    permits.release();
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            permits.release();
+            throw new RejectedException( "The LDAP plugin has been shut down" );
+        }
+
+        try
+        {
+            return future.get( deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS );
+        }
+        catch ( TimeoutException e )
+        {
+            abandon( future, claimed );
+            throw new TimeLimitExceededException( "The LDAP server did not respond within " + deadline.toMillis() + " ms" );
+        }
+        catch ( InterruptedException e )
+        {
+            abandon( future, claimed );
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException( "Interrupted while waiting for the LDAP server" );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof NamingException )
+            {
+                throw (NamingException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException( cause );
+        }
+    }
+
+    private void abandon( Future<?> future, AtomicBoolean claimed )
+    {
+        future.cancel( true );
+        if ( claimed.compareAndSet( false, true ) )
+        {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the number of operations that are running, including the ones whose callers have given up
+     */
+    int activeOperations()
+    {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    void close()
+    {
+        executor.shutdownNow();
+    }
+
+    private static ExecutorService newExecutor()
+    {
+        try
+        {
+            // Looked up reflectively, the plugin is built for Java 17
+            return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            AtomicInteger threadNumber = new AtomicInteger();
+            // Threads are bounded by the permits, idle ones go away after a minute
+            return Executors.newCachedThreadPool( runnable ->
+            {
+                Thread thread = new Thread( runnable, "ldap-operation-" + threadNumber.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            } );
+        }
+    }
+
+    /**
+     * An operation that was never started, which says nothing about the LDAP server.
+     */
+    static final class RejectedException extends ServiceUnavailableException
+    {
+        RejectedException( String explanation )
+        {
+            super( explanation );
+        }
+    }
+
+    @FunctionalInterface
+    interface Operation<T>
+    {
+        T call() throws NamingException;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * Stops calling the directory while it is known to be down, so that logins fail right away instead of
+ * each waiting for its own connection to time out.
+ *
+ * While closed, the outcome of the last {@code windowSize} operations is recorded. Once at least
+ * {@code minimumCalls} have been recorded and the share of them that could not reach the directory
+ * reaches the threshold, the breaker opens and rejects all operations. After the probe interval it
+ * goes half-open and lets a single operation through: if that one reaches the directory the breaker
+ * closes again, otherwise it opens for another probe interval.
+ *
+ * Only failures to reach the directory count, including operations that it did not answer within the read
+ * timeout. A wrong password or a failed search means that the directory is up. Operations that the
+ * {@link LdapBulkhead} rejected, or that found no free connection in the pool, did not get to try, and do
+ * not count either way.
+ */
+class LdapCircuitBreaker
+{
+    enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final boolean[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long probeIntervalMillis;
+    private final Clock clock;
+    private final AuthProviderOperations.Log log;
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+    // Guarded by this
+    private int next;
+    private int recorded;
+    private int failures;
+    private boolean probing;
+
+    /**
+     * @param failureRateThreshold the share of failed operations, between 0 and 1, that opens the breaker
+     */
+    LdapCircuitBreaker( int windowSize, int minimumCalls, double failureRateThreshold, Duration probeInterval,
+            Clock clock, AuthProviderOperations.Log log )
+    {
+        if ( windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize )
+        {
+            throw new IllegalArgumentException(
+                    "The minimum number of calls of the LDAP circuit breaker must be between 1 and its window size" );
+        }
+        if ( failureRateThreshold <= 0 || failureRateThreshold > 1 )
+        {
+            throw new IllegalArgumentException(
+                    "The failure rate threshold of the LDAP circuit breaker must be above 0% and at most 100%" );
+        }
+        this.window = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.probeIntervalMillis = probeInterval.toMillis();
+        this.clock = clock;
+        this.log = log;
+    }
+
+    /**
+     * Run the operation unless the breaker is open, and record whether it reached the directory.
+     *
+     * @throws ServiceUnavailableException without running the operation, if the breaker is open
+     */
+    <T> T call( Operation<T> operation ) throws NamingException
+    {
+        boolean probe = admit();
+        boolean reached = false;
+        boolean attempted = true;
+        try
+        {
+            T result = operation.perform();
+            reached = true;
+            return result;
+        }
+        catch ( LdapBulkhead.RejectedException | LdapConnectionPool.ExhaustedException e )
+        {
+            attempted = false;
+            throw e;
+        }
+        catch ( CommunicationException | ServiceUnavailableException | TimeLimitExceededException e )
+        {
+            throw e;
+        }
+        catch ( NamingException e )
+        {
+            // Unless it did not answer in time, the directory answered, just not with what we hoped for
+            reached = !LdapReplicas.isReadTimeout( e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            reached = true;
+            throw e;
+        }
+        finally
+        {
+            if ( attempted )
+            {
+                record( reached, probe );
+            }
+            else if ( probe )
+            {
+                abandonProbe();
+            }
+        }
+    }
+
+    State state()
+    {
+        return state;
+    }
+
+    /**
+     * @return the share of failures in the current window, between 0 and 1
+     */
+    synchronized double failureRate()
+    {
+        return recorded == 0 ? 0 : (double) failures / recorded;
+    }
+
+    synchronized int recordedCalls()
+    {
+        return recorded;
+    }
+
+    long rejectedCalls()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the time until an operation will be let through to probe the directory, 0 unless open
+     */
+    long millisUntilProbe()
+    {
+        return state == State.OPEN ? Math.max( 0, openUntil - clock.millis() ) : 0;
+    }
+
+    /**
+     * @return true if the operation is the probe of a half-open breaker
+     */
+    private boolean admit() throws ServiceUnavailableException
+    {
+        // Reading a volatile is all it takes while closed
+        if ( state == State.CLOSED )
+        {
+            return false;
+        }
+        synchronized ( this )
+        {
+            if ( state == State.OPEN && clock.millis() >= openUntil )
+            {
+                state = State.HALF_OPEN;
+                log.info( "LDAP circuit breaker is half-open, probing the directory." );
+            }
+            if ( state == State.HALF_OPEN && !probing )
+            {
+                probing = true;
+                return true;
+            }
+            if ( state == State.CLOSED )
+            {
+                return false;
+            }
+        }
+        rejected.increment();
+        throw new ServiceUnavailableException( "The LDAP directory is unavailable, not calling it again for another " +
+                millisUntilProbe() + " ms" );
+    }
+
+    /**
+     * Let the next operation probe the directory instead.
+     */
+    private synchronized void abandonProbe()
+    {
+        probing = false;
+    }
+
+    private synchronized void record( boolean reached, boolean probe )
+    {
+        if ( probe )
+        {
+            probing = false;
+            if ( reached )
+            {
+                close();
+            }
+            else
+            {
+                open( "the probe could not reach it" );
+            }
+            return;
+        }
+        if ( state != State.CLOSED )
+        {
+            // A straggler that was admitted before the breaker opened
+            return;
+        }
+
+        if ( recorded == window.length )
+        {
+            if ( window[next] )
+            {
+                failures--;
+            }
+        }
+        else
+        {
+            recorded++;
+        }
+        window[next] = !reached;
+        if ( !reached )
+        {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+
+        if ( recorded >= minimumCalls && failures >= failureRateThreshold * recorded )
+        {
+            open( String.format( "%d of the last %d operations could not reach it", failures, recorded ) );
+        }
+    }
+
+    private void open( String reason )
+    {
+        openUntil = clock.millis() + probeIntervalMillis;
+        state = State.OPEN;
+        log.warn( "LDAP circuit breaker opened, " + reason + ". Logins fail without calling the directory for the next " +
+                probeIntervalMillis + " ms." );
+    }
+
+    private void close()
+    {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        state = State.CLOSED;
+        log.info( "LDAP circuit breaker closed, the directory can be reached again." );
+    }
+
+    @FunctionalInterface
+    interface Operation<T>
+    {
+        T perform() throws NamingException;
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A bounded pool of LDAP connections, so that logins reuse warm connections instead of paying for a
+ * TCP connect (and possibly a TLS handshake) every time.
+ *
+ * A connection is bound as the user that borrows it, by re-authenticating over the existing connection
+ * (a new bind request, see {@link LdapContext#reconnect}). At most {@code maxSize} connections are lent
+ * out at a time and at most as many are kept idle. A background task closes connections that have been
+ * idle longer than the idle timeout and checks that the others are still alive.
+ *
+ * With StartTLS every new connection is upgraded to TLS before the first bind, and stays upgraded for
+ * as long as it is pooled. Should a pooled connection drop, JNDI refuses to bind over the plain
+ * connection it would reopen, so the pool closes it and makes a new one.
+ */
+class LdapConnectionPool
+{
+    private static final String[] HEALTH_CHECK_ATTRIBUTES = {"supportedLDAPVersion"};
+
+    private final Hashtable<String,Object> environment;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long healthCheckIntervalMillis;
+    private final long acquireTimeoutMillis;
+    private final Clock clock;
+    private final LdapTls startTls;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    /**
+     * @param environment the JNDI environment for new connections, without any credentials
+     * @param startTls the TLS configuration to upgrade new connections with, or null to not use StartTLS
+     */
+    LdapConnectionPool( Hashtable<String,Object> environment, int maxSize, Duration idleTimeout,
+            Duration healthCheckInterval, Duration acquireTimeout, Clock clock, LdapTls startTls )
+    {
+        if ( maxSize < 1 )
+        {
+            throw new IllegalArgumentException( "The LDAP connection pool needs room for at least one connection" );
+        }
+        this.environment = environment;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+        this.healthCheckIntervalMillis = healthCheckInterval.toMillis();
+        this.acquireTimeoutMillis = acquireTimeout.toMillis();
+        this.clock = clock;
+        this.startTls = startTls;
+        this.permits = new Semaphore( maxSize, true );
+
+        evictor = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = new Thread( runnable, "ldap-connection-pool-evictor" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        long interval = Math.max( 1, Math.min( idleTimeoutMillis, healthCheckIntervalMillis ) );
+        evictor.scheduleWithFixedDelay( this::evictAndCheckIdle, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Get a connection bound as the given user. It must always be handed back with
+     * {@link #release(LdapContext, boolean)}, typically in a finally block.
+     *
+     * @throws AuthenticationException if the credentials are wrong
+     * @throws ExhaustedException if no connection became available in time
+     * @throws NamingException if no connection could be made
+     */
+    LdapContext acquire( String principal, char[] credentials ) throws NamingException
+    {
+        if ( closed )
+        {
+            throw new ServiceUnavailableException( "The LDAP connection pool is closed" );
+        }
+        try
+        {
+            if ( !permits.tryAcquire( acquireTimeoutMillis, TimeUnit.MILLISECONDS ) )
+            {
+                throw new ExhaustedException(
+                        "Timed out waiting for one of " + maxSize + " LDAP connections to become available" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ExhaustedException( "Interrupted while waiting for an LDAP connection" );
+        }
+
+        try
+        {
+            PooledConnection pooled;
+            while ( (pooled = idle.pollFirst()) != null )
+            {
+                LdapContext context = pooled.context;
+                try
+                {
+                    bind( context, principal, credentials );
+                    return context;
+                }
+                catch ( AuthenticationException e )
+                {
+                    // The connection itself is fine, only the credentials are not
+                    if ( !closed && forgetCredentials( context ) )
+                    {
+                        idle.offerFirst( pooled );
+                    }
+                    else
+                    {
+                        closeQuietly( context );
+                    }
+                    throw e;
+                }
+                catch ( NamingException e )
+                {
+                    // The connection has gone bad while idle, try the next one
+                    closeQuietly( context );
+                }
+            }
+            return connect( principal, credentials );
+        }
+        catch ( NamingException | RuntimeException e )
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand back a connection from {@link #acquire(String, char[])}.
+     *
+     * @param reusable whether the connection can be lent out again, which should be false if it failed
+     */
+    void release( LdapContext context, boolean reusable )
+    {
+        try
+        {
+            if ( reusable && !closed && idle.size() < maxSize && forgetCredentials( context ) )
+            {
+                idle.offerFirst( new PooledConnection( context, clock.millis() ) );
+            }
+            else
+            {
+                closeQuietly( context );
+            }
+        }
+        finally
+        {
+            permits.release();
+        }
+        if ( closed )
+        {
+            // A connection released while closing may have slipped in after the pool was drained
+            drainIdle();
+        }
+    }
+
+    int idleConnections()
+    {
+        return idle.size();
+    }
+
+    int activeConnections()
+    {
+        return maxSize - permits.availablePermits();
+    }
+
+    void close()
+    {
+        closed = true;
+        evictor.shutdownNow();
+        drainIdle();
+    }
+
+    private LdapContext connect( String principal, char[] credentials ) throws NamingException
+    {
+        Hashtable<String,Object> env = new Hashtable<>( environment );
+        if ( startTls == null )
+        {
+            env.put( Context.SECURITY_AUTHENTICATION, "simple" );
+            env.put( Context.SECURITY_PRINCIPAL, principal );
+            env.put( Context.SECURITY_CREDENTIALS, credentials );
+            return new InitialLdapContext( env, null );
+        }
+
+        // The credentials must not go over the wire before the connection has been upgraded
+        env.put( Context.SECURITY_AUTHENTICATION, "none" );
+        LdapContext context = new InitialLdapContext( env, null );
+        try
+        {
+            StartTlsResponse tls = (StartTlsResponse) context.extendedOperation( new StartTlsRequest() );
+            HostnameVerifier hostnameVerifier = startTls.startTlsHostnameVerifier();
+            if ( hostnameVerifier != null )
+            {
+                tls.setHostnameVerifier( hostnameVerifier );
+            }
+            tls.negotiate( (SSLSocketFactory) LdapSslSocketFactory.getDefault() );
+        }
+        catch ( NamingException | IOException | RuntimeException e )
+        {
+            closeQuietly( context );
+            NamingException namingException = new NamingException( "Failed to start TLS: " + e.getMessage() );
+            namingException.setRootCause( e );
+            throw namingException;
+        }
+
+        try
+        {
+            bind( context, principal, credentials );
+            return context;
+        }
+        catch ( AuthenticationException e )
+        {
+            // Keep the upgraded connection, so that a failed login does not cost a TLS handshake
+            if ( !closed && idle.size() < maxSize && forgetCredentials( context ) )
+            {
+                idle.offerFirst( new PooledConnection( context, clock.millis() ) );
+            }
+            else
+            {
+                closeQuietly( context );
+            }
+            throw e;
+        }
+        catch ( NamingException | RuntimeException e )
+        {
+            closeQuietly( context );
+            throw e;
+        }
+    }
+
+    private static void bind( LdapContext context, String principal, char[] credentials ) throws NamingException
+    {
+        context.addToEnvironment( Context.SECURITY_AUTHENTICATION, "simple" );
+        context.addToEnvironment( Context.SECURITY_PRINCIPAL, principal );
+        context.addToEnvironment( Context.SECURITY_CREDENTIALS, credentials );
+        // Sends a new bind request over the same connection, or opens a new one if it has been closed
+        context.reconnect( null );
+    }
+
+    /**
+     * Do not keep the name and password of the last user around in an idle connection. The connection stays
+     * bound as that user until the next bind, but it can only be used by the pool.
+     */
+    private static boolean forgetCredentials( LdapContext context )
+    {
+        try
+        {
+            context.removeFromEnvironment( Context.SECURITY_CREDENTIALS );
+            context.removeFromEnvironment( Context.SECURITY_PRINCIPAL );
+            return true;
+        }
+        catch ( NamingException e )
+        {
+            return false;
+        }
+    }
+
+    private void evictAndCheckIdle()
+    {
+        long now = clock.millis();
+        Iterator<PooledConnection> connections = idle.iterator();
+        while ( connections.hasNext() )
+        {
+            PooledConnection pooled = connections.next();
+            long idleMillis = now - pooled.idleSince;
+            // Only act on connections we manage to take out of the pool, anything else was just borrowed
+            if ( idleMillis >= idleTimeoutMillis )
+            {
+                if ( idle.remove( pooled ) )
+                {
+                    closeQuietly( pooled.context );
+                }
+            }
+            else if ( now - pooled.lastChecked >= healthCheckIntervalMillis && idle.remove( pooled ) )
+            {
+                if ( isAlive( pooled.context ) )
+                {
+                    pooled.lastChecked = now;
+                    idle.offerLast( pooled );
+                }
+                else
+                {
+                    closeQuietly( pooled.context );
+                }
+            }
+        }
+        if ( closed )
+        {
+            drainIdle();
+        }
+    }
+
+    private static boolean isAlive( LdapContext context )
+    {
+        try
+        {
+            // Reading the root DSE is about the cheapest request that still makes a round trip
+            context.getAttributes( "", HEALTH_CHECK_ATTRIBUTES );
+            return true;
+        }
+        catch ( NamingException e )
+        {
+            return false;
+        }
+    }
+
+    private void drainIdle()
+    {
+        PooledConnection pooled;
+        while ( (pooled = idle.pollFirst()) != null )
+        {
+            closeQuietly( pooled.context );
+        }
+    }
+
+    private static void closeQuietly( LdapContext context )
+    {
+        try
+        {
+            context.close();
+        }
+        catch ( NamingException e )
+        {
+            // Nothing more we can do about it, the connection is dropped either way
+        }
+    }
+
+    private static final class PooledConnection
+    {
+        private final LdapContext context;
+        private final long idleSince;
+        private long lastChecked;
+
+        PooledConnection( LdapContext context, long idleSince )
+        {
+            this.context = context;
+            this.idleSince = idleSince;
+            this.lastChecked = idleSince;
+        }
+    }
+
+    /**
+     * All connections of the pool are lent out, which says that there are many operations on this side and
+     * nothing about the LDAP server.
+     */
+    static final class ExhaustedException extends ServiceUnavailableException
+    {
+        ExhaustedException( String explanation )
+        {
+            super( explanation );
+        }
+    }
+}
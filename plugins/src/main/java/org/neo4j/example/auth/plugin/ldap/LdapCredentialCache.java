@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Remembers, for a limited time, the passwords that users have successfully bound to the directory
+ * with, so that a client that keeps logging in with the same password does not need a bind every time.
+ *
+ * Passwords are never kept, only a salted PBKDF2 hash of them, which is deliberately slow to compute
+ * so that the cache is of little use to anyone who gets to read the heap. A password that does not
+ * match the cached hash evicts the entry, so the next login goes to the directory again.
+ */
+class LdapCredentialCache
+{
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    static final LdapCredentialCache DISABLED = new LdapCredentialCache( 0, Duration.ZERO, 1, Clock.systemUTC() );
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final int iterations;
+    private final Clock clock;
+    private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param iterations the PBKDF2 work factor, a higher one makes every cache hit and every put slower
+     */
+    LdapCredentialCache( int maxSize, Duration ttl, int iterations, Clock clock )
+    {
+        if ( iterations < 1 )
+        {
+            throw new IllegalArgumentException( "The credential cache needs at least one hash iteration" );
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.iterations = iterations;
+        this.clock = clock;
+    }
+
+    boolean isEnabled()
+    {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @return true if the user has recently bound with this very password. An expired entry and an entry
+     * that the password does not match are evicted.
+     */
+    boolean verify( String username, char[] password )
+    {
+        if ( !isEnabled() )
+        {
+            return false;
+        }
+
+        Entry entry = entries.get( username );
+        if ( entry == null )
+        {
+            return false;
+        }
+        boolean expired = clock.millis() - entry.createdAt >= ttlMillis;
+        if ( expired || !MessageDigest.isEqual( entry.hash, hash( password, entry.salt ) ) )
+        {
+            entries.remove( username, entry );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remember a password that the user has just successfully bound with.
+     */
+    void put( String username, char[] password )
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes( salt );
+        Entry entry = new Entry( salt, hash( password, salt ), clock.millis() );
+        if ( entries.size() >= maxSize && !entries.containsKey( username ) )
+        {
+            makeRoom( entry.createdAt );
+        }
+        entries.put( username, entry );
+    }
+
+    void invalidate( String username )
+    {
+        entries.remove( username );
+    }
+
+    void clear()
+    {
+        entries.clear();
+    }
+
+    long size()
+    {
+        return entries.size();
+    }
+
+    private byte[] hash( char[] password, byte[] salt )
+    {
+        PBEKeySpec spec = new PBEKeySpec( password, salt, iterations, HASH_BITS );
+        try
+        {
+            return SecretKeyFactory.getInstance( ALGORITHM ).generateSecret( spec ).getEncoded();
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "Failed to hash credentials with " + ALGORITHM + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    private void makeRoom( long now )
+    {
+        // Same policy as the role cache, first expired entries and then arbitrary ones
+        entries.values().removeIf( entry -> now - entry.createdAt >= ttlMillis );
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ( entries.size() >= maxSize && iterator.hasNext() )
+        {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long createdAt;
+
+        Entry( byte[] salt, byte[] hash, long createdAt )
+        {
+            this.salt = salt;
+            this.hash = hash;
+            this.createdAt = createdAt;
+        }
+    }
+}
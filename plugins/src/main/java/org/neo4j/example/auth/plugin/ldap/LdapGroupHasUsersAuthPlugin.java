@@ -18,30 +18,39 @@
  */
 package org.neo4j.example.auth.plugin.ldap;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedHashSet;
-import java.util.Properties;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.SearchControls;
-import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
-import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthPlugin;
+import org.neo4j.example.auth.plugin.audit.AuditLog;
+import org.neo4j.example.auth.plugin.config.PluginConfig;
+import org.neo4j.example.auth.plugin.config.WatchedConfig;
+import org.neo4j.example.auth.plugin.metrics.AuthMetrics;
+import org.neo4j.example.auth.plugin.metrics.LatencyHistogram;
 
 /**
  * This example shows how you could authorize against an LDAP server that has a different schema configuration
@@ -53,19 +62,161 @@ import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthPlugin;
  * The plugin uses JNDI to authenticate and authorize users against an LDAP server
  * (using the `simple` username / password authentication mechanism), and then performs
  * an authorization search for groups where the `memberUid` attribute includes the user.
- * It then uses a naive static group-to-role mapping method `getNeo4jRoleForGroupId` to get the associated roles.
+ * It then maps the `gidNumber` of each of these groups to Neo4j roles, see {@link LdapGroupRoleMapping}.
+ *
+ * To protect the passwords on their way to the LDAP server, use an `ldaps://` url or enable StartTLS.
+ * Both share one TLS configuration, so new pooled connections resume earlier TLS sessions, see
+ * {@link LdapSslSocketFactory}.
  */
 public class LdapGroupHasUsersAuthPlugin extends AuthPlugin.Adapter
 {
     public static final String PLUGIN_NAME = "ldap-alternative-groups";
     public static final String LDAP_SERVER_URL_SETTING = "dbms.security.ldap.host";
+    public static final String POOL_MAX_SIZE_SETTING = "dbms.security.ldap.pool.max.size";
+    public static final String POOL_IDLE_TIMEOUT_SECONDS_SETTING = "dbms.security.ldap.pool.idle.timeout.seconds";
+    public static final String POOL_HEALTH_CHECK_INTERVAL_SECONDS_SETTING =
+            "dbms.security.ldap.pool.health.check.interval.seconds";
+    public static final String POOL_ACQUIRE_TIMEOUT_MILLIS_SETTING = "dbms.security.ldap.pool.acquire.timeout.millis";
+    public static final String ROLE_CACHE_MAX_SIZE_SETTING = "dbms.security.ldap.role.cache.max.size";
+    public static final String ROLE_CACHE_TTL_SECONDS_SETTING = "dbms.security.ldap.role.cache.ttl.seconds";
+    public static final String ROLE_CACHE_REFRESH_AFTER_SECONDS_SETTING = "dbms.security.ldap.role.cache.refresh.after.seconds";
+    public static final String SYSTEM_USERNAME_SETTING = "dbms.security.ldap.system.username";
+    public static final String SYSTEM_PASSWORD_SETTING = "dbms.security.ldap.system.password";
+    public static final String GROUP_SYNC_ENABLED_SETTING = "dbms.security.ldap.group.sync.enabled";
+    public static final String GROUP_SYNC_INTERVAL_SECONDS_SETTING = "dbms.security.ldap.group.sync.interval.seconds";
+    public static final String SEARCH_PAGE_SIZE_SETTING = "dbms.security.ldap.search.page.size";
+    public static final String SEARCH_SIZE_LIMIT_SETTING = "dbms.security.ldap.search.size.limit";
+    public static final String GROUP_TO_ROLE_MAPPING_SETTING = "dbms.security.ldap.group.to.role.mapping";
+    public static final String GROUP_TO_ROLE_MAPPING_FILE_SETTING = "dbms.security.ldap.group.to.role.mapping.file";
+    public static final String CONNECT_TIMEOUT_MILLIS_SETTING = "dbms.security.ldap.connect.timeout.millis";
+    public static final String READ_TIMEOUT_MILLIS_SETTING = "dbms.security.ldap.read.timeout.millis";
+    public static final String LOGIN_TIMEOUT_MILLIS_SETTING = "dbms.security.ldap.login.timeout.millis";
+    public static final String MAX_CONCURRENT_OPERATIONS_SETTING = "dbms.security.ldap.max.concurrent.operations";
+    public static final String CIRCUIT_BREAKER_ENABLED_SETTING = "dbms.security.ldap.circuit.breaker.enabled";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_SETTING =
+            "dbms.security.ldap.circuit.breaker.failure.rate.threshold";
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE_SETTING = "dbms.security.ldap.circuit.breaker.window.size";
+    public static final String CIRCUIT_BREAKER_MINIMUM_CALLS_SETTING = "dbms.security.ldap.circuit.breaker.minimum.calls";
+    public static final String CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS_SETTING =
+            "dbms.security.ldap.circuit.breaker.probe.interval.millis";
+    public static final String CREDENTIAL_CACHE_ENABLED_SETTING = "dbms.security.ldap.credential.cache.enabled";
+    public static final String CREDENTIAL_CACHE_MAX_SIZE_SETTING = "dbms.security.ldap.credential.cache.max.size";
+    public static final String CREDENTIAL_CACHE_TTL_SECONDS_SETTING = "dbms.security.ldap.credential.cache.ttl.seconds";
+    public static final String CREDENTIAL_CACHE_HASH_ITERATIONS_SETTING = "dbms.security.ldap.credential.cache.hash.iterations";
+    public static final String USE_STARTTLS_SETTING = "dbms.security.ldap.use.starttls";
+    public static final String TLS_TRUSTSTORE_PATH_SETTING = "dbms.security.ldap.tls.truststore.path";
+    public static final String TLS_TRUSTSTORE_PASSWORD_SETTING = "dbms.security.ldap.tls.truststore.password";
+    public static final String TLS_TRUSTSTORE_TYPE_SETTING = "dbms.security.ldap.tls.truststore.type";
+    public static final String TLS_PROTOCOLS_SETTING = "dbms.security.ldap.tls.protocols";
+    public static final String TLS_SESSION_CACHE_SIZE_SETTING = "dbms.security.ldap.tls.session.cache.size";
+    public static final String TLS_SESSION_TIMEOUT_SECONDS_SETTING = "dbms.security.ldap.tls.session.timeout.seconds";
+    public static final String TLS_INSECURE_TRUST_ALL_SETTING = "dbms.security.ldap.tls.insecure.trust.all";
+
+    private static final String CONFIG_FILE = "conf/ldap.conf";
 
     private static final String GROUP_SEARCH_BASE = "ou=groups,dc=example,dc=com";
     private static final String GROUP_SEARCH_FILTER = "(&(objectClass=posixGroup)(memberUid={0}))";
     private static final String GROUP_ID = "gidNumber";
+    private static final String ALL_GROUPS_FILTER = "(objectClass=posixGroup)";
+    private static final String MEMBER_UID = "memberUid";
+
+    private static final int DEFAULT_POOL_MAX_SIZE = 16;
+    private static final int DEFAULT_POOL_IDLE_TIMEOUT_SECONDS = 300;
+    private static final int DEFAULT_POOL_HEALTH_CHECK_INTERVAL_SECONDS = 30;
+    private static final int DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_ROLE_CACHE_MAX_SIZE = 10000;
+    private static final int DEFAULT_ROLE_CACHE_TTL_SECONDS = 600;
+    private static final int DEFAULT_GROUP_SYNC_INTERVAL_SECONDS = 300;
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 500;
+    private static final int DEFAULT_SEARCH_SIZE_LIMIT = 1000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_LOGIN_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 32;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_PERCENT = 50;
+    private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+    private static final int DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS = 5000;
+    private static final int DEFAULT_CREDENTIAL_CACHE_MAX_SIZE = 1000;
+    private static final int DEFAULT_CREDENTIAL_CACHE_TTL_SECONDS = 300;
+    private static final int DEFAULT_CREDENTIAL_CACHE_HASH_ITERATIONS = 10000;
+    private static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1000;
+    private static final int DEFAULT_TLS_SESSION_TIMEOUT_SECONDS = 86400;
+
+    /**
+     * Static so that {@link LdapProcedures} can flush it.
+     */
+    private static volatile LdapRoleCache roleCache = LdapRoleCache.DISABLED;
+    /**
+     * Static so that {@link LdapProcedures} can flush it.
+     */
+    private static volatile LdapCredentialCache credentialCache = LdapCredentialCache.DISABLED;
+    /**
+     * Static so that {@link LdapProcedures} can trigger a sync, null unless group sync is enabled.
+     */
+    private static volatile LdapGroupSync groupSync;
+    /**
+     * Static so that {@link LdapProcedures} can reload it, along with the home directory to reload it from.
+     */
+    private static volatile LdapGroupRoleMapping groupRoleMapping = LdapGroupRoleMapping.DEFAULT;
+    private static volatile Path neo4jHome;
+    /**
+     * Static so that {@link LdapProcedures} can show its state, null unless the circuit breaker is enabled.
+     */
+    private static volatile LdapCircuitBreaker circuitBreaker;
+
+    private static final AuthMetrics metrics = AuthMetrics.forPlugin( LdapGroupHasUsersAuthPlugin.class.getName() );
+    // Binding includes getting a connection, and failing over to another replica if needed
+    private static final LatencyHistogram bindLatency = metrics.phase( "bind" );
+    // Group searches, also those that refresh cached roles in the background
+    private static final LatencyHistogram searchLatency = metrics.phase( "search" );
+    private static final LatencyHistogram mappingLatency = metrics.phase( "mapping" );
+
+    // The settings that each part of the plugin is built from, to only replace the parts whose settings changed
+    private static final String[] CONNECTION_SETTINGS = {LDAP_SERVER_URL_SETTING, POOL_MAX_SIZE_SETTING,
+            POOL_IDLE_TIMEOUT_SECONDS_SETTING, POOL_HEALTH_CHECK_INTERVAL_SECONDS_SETTING, POOL_ACQUIRE_TIMEOUT_MILLIS_SETTING,
+            CONNECT_TIMEOUT_MILLIS_SETTING, READ_TIMEOUT_MILLIS_SETTING, USE_STARTTLS_SETTING, TLS_TRUSTSTORE_PATH_SETTING,
+            TLS_TRUSTSTORE_PASSWORD_SETTING, TLS_TRUSTSTORE_TYPE_SETTING, TLS_PROTOCOLS_SETTING, TLS_SESSION_CACHE_SIZE_SETTING,
+            TLS_SESSION_TIMEOUT_SECONDS_SETTING, TLS_INSECURE_TRUST_ALL_SETTING};
+    private static final String[] CIRCUIT_BREAKER_SETTINGS = {CIRCUIT_BREAKER_ENABLED_SETTING,
+            CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_SETTING, CIRCUIT_BREAKER_WINDOW_SIZE_SETTING,
+            CIRCUIT_BREAKER_MINIMUM_CALLS_SETTING, CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS_SETTING};
+    private static final String[] ROLE_CACHE_SETTINGS = {ROLE_CACHE_MAX_SIZE_SETTING, ROLE_CACHE_TTL_SECONDS_SETTING,
+            ROLE_CACHE_REFRESH_AFTER_SECONDS_SETTING};
+    private static final String[] CREDENTIAL_CACHE_SETTINGS = {CREDENTIAL_CACHE_ENABLED_SETTING,
+            CREDENTIAL_CACHE_MAX_SIZE_SETTING, CREDENTIAL_CACHE_TTL_SECONDS_SETTING, CREDENTIAL_CACHE_HASH_ITERATIONS_SETTING};
 
     private AuthProviderOperations api;
-    private String ldapServerUrl;
+    private WatchedConfig config;
+    // Read by logins while the config may be changing
+    private volatile LdapReplicas replicas;
+    private volatile LdapBulkhead bulkhead;
+    private volatile Duration loginTimeout;
+    private volatile AuditLog auditLog = AuditLog.DISABLED;
+    private volatile LdapPagedSearch groupSearch;
+    private volatile long searchSizeLimit;
+    private volatile String systemUsername;
+    private volatile char[] systemPassword;
+
+    static LdapRoleCache roleCache()
+    {
+        return roleCache;
+    }
+
+    static LdapCredentialCache credentialCache()
+    {
+        return credentialCache;
+    }
+
+    static LdapGroupSync groupSync()
+    {
+        return groupSync;
+    }
+
+    static LdapCircuitBreaker circuitBreaker()
+    {
+        return circuitBreaker;
+    }
 
     @Override
     public String name()
@@ -79,116 +230,592 @@ public class LdapGroupHasUsersAuthPlugin extends AuthPlugin.Adapter
         api = authProviderOperations;
         api.log().info( "initialized!" );
 
-        Path configPath = api.neo4jHome().resolve( "conf/ldap.conf" );
+        neo4jHome = api.neo4jHome();
+        config = WatchedConfig.open( api.neo4jHome().resolve( CONFIG_FILE ), true, api.log(), this::configure );
+    }
+
+    /**
+     * Replace the parts of the plugin whose settings have changed, and keep the rest. In particular the
+     * connection pools and caches survive any change that does not concern them, so a change does not
+     * cause a storm of reconnects and directory searches. Components that logins may still be using are
+     * closed once they have had the login timeout to finish.
+     *
+     * Every new component is built before any is swapped in, so a config that cannot be applied leaves
+     * the plugin as it was.
+     */
+    private synchronized void configure( PluginConfig previous, PluginConfig config )
+    {
+        Duration newLoginTimeout = Duration.ofMillis( config.intSetting( LOGIN_TIMEOUT_MILLIS_SETTING, DEFAULT_LOGIN_TIMEOUT_MILLIS ) );
+        Duration retirement = loginTimeout == null ? newLoginTimeout : max( loginTimeout, newLoginTimeout );
+
+        boolean systemAccountChanged = config.changed( previous, SYSTEM_USERNAME_SETTING, SYSTEM_PASSWORD_SETTING );
+        String newSystemUsername = systemAccountChanged ? config.get( SYSTEM_USERNAME_SETTING ) : systemUsername;
+        String password = config.get( SYSTEM_PASSWORD_SETTING );
+        char[] newSystemPassword = !systemAccountChanged ? systemPassword : password == null ? null : password.toCharArray();
+        boolean hasSystemAccount = newSystemUsername != null && newSystemPassword != null;
+
+        boolean groupSyncChanged = systemAccountChanged ||
+                                   config.changed( previous, GROUP_SYNC_ENABLED_SETTING, GROUP_SYNC_INTERVAL_SECONDS_SETTING );
+        boolean groupSyncEnabled = config.booleanSetting( GROUP_SYNC_ENABLED_SETTING, false );
+        if ( groupSyncChanged && groupSyncEnabled && !hasSystemAccount )
+        {
+            throw new IllegalStateException( "LDAP group sync needs a system account, set '" + SYSTEM_USERNAME_SETTING +
+                    "' and '" + SYSTEM_PASSWORD_SETTING + "'." );
+        }
+
+        boolean mappingChanged = config.changed( previous, GROUP_TO_ROLE_MAPPING_SETTING, GROUP_TO_ROLE_MAPPING_FILE_SETTING );
+        LdapGroupRoleMapping newGroupRoleMapping = mappingChanged ? loadGroupRoleMapping( api.neo4jHome(), config ) : null;
+
+        boolean circuitBreakerChanged = config.changed( previous, CIRCUIT_BREAKER_SETTINGS );
+        boolean circuitBreakerEnabled = config.booleanSetting( CIRCUIT_BREAKER_ENABLED_SETTING, true );
+        LdapCircuitBreaker newCircuitBreaker = !circuitBreakerChanged || !circuitBreakerEnabled ? null : new LdapCircuitBreaker(
+                config.intSetting( CIRCUIT_BREAKER_WINDOW_SIZE_SETTING, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE ),
+                config.intSetting( CIRCUIT_BREAKER_MINIMUM_CALLS_SETTING, DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS ),
+                config.intSetting( CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_SETTING,
+                        DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_PERCENT ) / 100.0,
+                Duration.ofMillis( config.intSetting( CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS_SETTING,
+                        DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS ) ),
+                api.clock(), api.log() );
+
+        boolean searchChanged = config.changed( previous, SEARCH_PAGE_SIZE_SETTING, SEARCH_SIZE_LIMIT_SETTING );
+        LdapPagedSearch newGroupSearch = searchChanged
+                ? new LdapPagedSearch( GROUP_SEARCH_BASE, config.intSetting( SEARCH_PAGE_SIZE_SETTING, DEFAULT_SEARCH_PAGE_SIZE ) )
+                : null;
+
+        boolean credentialCacheChanged = config.changed( previous, CREDENTIAL_CACHE_SETTINGS );
+        // Off by default, as a password changed in the directory keeps working here until its entry expires
+        boolean credentialCacheEnabled = config.booleanSetting( CREDENTIAL_CACHE_ENABLED_SETTING, false );
+        LdapCredentialCache newCredentialCache = credentialCacheChanged && credentialCacheEnabled
+                ? new LdapCredentialCache(
+                        config.intSetting( CREDENTIAL_CACHE_MAX_SIZE_SETTING, DEFAULT_CREDENTIAL_CACHE_MAX_SIZE ),
+                        Duration.ofSeconds( config.intSetting( CREDENTIAL_CACHE_TTL_SECONDS_SETTING,
+                                DEFAULT_CREDENTIAL_CACHE_TTL_SECONDS ) ),
+                        config.intSetting( CREDENTIAL_CACHE_HASH_ITERATIONS_SETTING, DEFAULT_CREDENTIAL_CACHE_HASH_ITERATIONS ),
+                        api.clock() )
+                : LdapCredentialCache.DISABLED;
+
+        // The components that hold resources come last, and are closed again if a later one cannot be built
+        LdapTls newTls = null;
+        LdapReplicas newReplicas = null;
+        LdapBulkhead newBulkhead = null;
+        AuditLog newAuditLog = null;
+        try
+        {
+            if ( config.changed( previous, CONNECTION_SETTINGS ) )
+            {
+                List<String> urls = serverUrls( config );
+                boolean useStartTls = config.booleanSetting( USE_STARTTLS_SETTING, false );
+                // TLS is set up whenever it may be used, for ldaps:// as well as for StartTLS
+                if ( useStartTls || urls.stream().anyMatch( LdapGroupHasUsersAuthPlugin::isLdaps ) )
+                {
+                    newTls = configureTls( api.neo4jHome(), config );
+                }
+                newReplicas = newReplicas( config, urls, useStartTls ? newTls : null );
+            }
+            if ( config.changed( previous, MAX_CONCURRENT_OPERATIONS_SETTING ) )
+            {
+                newBulkhead = new LdapBulkhead(
+                        config.intSetting( MAX_CONCURRENT_OPERATIONS_SETTING, DEFAULT_MAX_CONCURRENT_OPERATIONS ) );
+            }
+            if ( AuditLog.settingsChanged( previous, config ) )
+            {
+                newAuditLog = AuditLog.fromConfig( name(), config, api );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            if ( newReplicas != null )
+            {
+                newReplicas.close();
+            }
+            if ( newBulkhead != null )
+            {
+                newBulkhead.close();
+            }
+            throw e;
+        }
+
+        // Nothing below can fail
+        if ( newTls != null )
+        {
+            // Shared by all TLS connections, so only installed once the config is known to apply
+            newTls.install();
+        }
+        if ( newReplicas != null )
+        {
+            LdapReplicas previousReplicas = replicas;
+            replicas = newReplicas;
+            retireLater( previousReplicas == null ? null : previousReplicas::close, retirement );
+        }
+        if ( newBulkhead != null )
+        {
+            LdapBulkhead previousBulkhead = bulkhead;
+            bulkhead = newBulkhead;
+            retireLater( previousBulkhead == null ? null : previousBulkhead::close, retirement );
+        }
+        loginTimeout = newLoginTimeout;
+        if ( circuitBreakerChanged )
+        {
+            circuitBreaker = newCircuitBreaker;
+        }
+        if ( searchChanged )
+        {
+            groupSearch = newGroupSearch;
+            searchSizeLimit = config.intSetting( SEARCH_SIZE_LIMIT_SETTING, DEFAULT_SEARCH_SIZE_LIMIT );
+        }
+        systemUsername = newSystemUsername;
+        systemPassword = newSystemPassword;
+        if ( mappingChanged )
+        {
+            groupRoleMapping = newGroupRoleMapping;
+        }
+
+        if ( systemAccountChanged || config.changed( previous, ROLE_CACHE_SETTINGS ) )
+        {
+            // By default refresh once 80% of the time to live has passed
+            int ttlSeconds = config.intSetting( ROLE_CACHE_TTL_SECONDS_SETTING, DEFAULT_ROLE_CACHE_TTL_SECONDS );
+            int refreshAfterSeconds = config.intSetting( ROLE_CACHE_REFRESH_AFTER_SECONDS_SETTING, ttlSeconds * 4 / 5 );
+            LdapRoleCache previousRoleCache = roleCache;
+            roleCache = new LdapRoleCache( config.intSetting( ROLE_CACHE_MAX_SIZE_SETTING, DEFAULT_ROLE_CACHE_MAX_SIZE ),
+                    Duration.ofSeconds( ttlSeconds ), Duration.ofSeconds( refreshAfterSeconds ),
+                    hasSystemAccount ? this::authorizeAsSystem : null, api.clock(), api.log() );
+            previousRoleCache.close();
+        }
+        else if ( mappingChanged )
+        {
+            // Roles resolved with the old mapping have to be resolved again
+            roleCache.clear();
+        }
 
-        Properties properties = new Properties();
-        try ( BufferedReader reader = Files.newBufferedReader( configPath ) )
+        if ( credentialCacheChanged )
         {
-            properties.load( reader );
+            LdapCredentialCache previousCredentialCache = credentialCache;
+            credentialCache = newCredentialCache;
+            previousCredentialCache.clear();
         }
-        catch ( IOException e )
+
+        if ( groupSyncChanged )
         {
-            throw new IllegalStateException( "Failed loading properties: " + e.getMessage(), e );
+            // Started once the components it searches with are in place
+            LdapGroupSync previousGroupSync = groupSync;
+            groupSync = !groupSyncEnabled ? null : new LdapGroupSync( this::loadGroupIndex, Duration.ofSeconds(
+                    config.intSetting( GROUP_SYNC_INTERVAL_SECONDS_SETTING, DEFAULT_GROUP_SYNC_INTERVAL_SECONDS ) ), api.log() );
+            if ( previousGroupSync != null )
+            {
+                previousGroupSync.close();
+            }
+        }
+        else if ( mappingChanged && groupSync != null )
+        {
+            groupSync.syncSoon();
         }
 
-        ldapServerUrl = (String) properties.get( LDAP_SERVER_URL_SETTING );
-        if ( ldapServerUrl == null )
+        if ( newAuditLog != null )
+        {
+            AuditLog previousAuditLog = auditLog;
+            auditLog = newAuditLog;
+            previousAuditLog.close();
+        }
+    }
+
+    private static List<String> serverUrls( PluginConfig config )
+    {
+        String ldapServerUrls = config.get( LDAP_SERVER_URL_SETTING );
+        if ( ldapServerUrls == null || ldapServerUrls.isBlank() )
         {
             throw new IllegalStateException( "Missing ldap server url setting '" + LDAP_SERVER_URL_SETTING + "'." );
         }
+        // Replicas of the directory are listed separated by commas or spaces
+        return List.of( ldapServerUrls.trim().split( "[\\s,]+" ) );
+    }
+
+    /**
+     * @param startTls the TLS configuration to upgrade new connections with, or null to not use StartTLS
+     */
+    private LdapReplicas newReplicas( PluginConfig config, List<String> urls, LdapTls startTls )
+    {
+        Hashtable<String,Object> env = new Hashtable<>();
+        env.put( Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory" );
+        // Bound the time to open a connection and to wait for each reply, JNDI waits forever by default
+        env.put( "com.sun.jndi.ldap.connect.timeout",
+                String.valueOf( config.intSetting( CONNECT_TIMEOUT_MILLIS_SETTING, DEFAULT_CONNECT_TIMEOUT_MILLIS ) ) );
+        env.put( "com.sun.jndi.ldap.read.timeout",
+                String.valueOf( config.intSetting( READ_TIMEOUT_MILLIS_SETTING, DEFAULT_READ_TIMEOUT_MILLIS ) ) );
+
+        int poolMaxSize = config.intSetting( POOL_MAX_SIZE_SETTING, DEFAULT_POOL_MAX_SIZE );
+        Duration poolIdleTimeout = Duration.ofSeconds(
+                config.intSetting( POOL_IDLE_TIMEOUT_SECONDS_SETTING, DEFAULT_POOL_IDLE_TIMEOUT_SECONDS ) );
+        Duration poolHealthCheckInterval = Duration.ofSeconds(
+                config.intSetting( POOL_HEALTH_CHECK_INTERVAL_SECONDS_SETTING, DEFAULT_POOL_HEALTH_CHECK_INTERVAL_SECONDS ) );
+        Duration poolAcquireTimeout = Duration.ofMillis(
+                config.intSetting( POOL_ACQUIRE_TIMEOUT_MILLIS_SETTING, DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS ) );
+        return new LdapReplicas( urls, url ->
+        {
+            Hashtable<String,Object> replicaEnv = new Hashtable<>( env );
+            replicaEnv.put( Context.PROVIDER_URL, url );
+            if ( isLdaps( url ) )
+            {
+                replicaEnv.put( "java.naming.ldap.factory.socket", LdapSslSocketFactory.class.getName() );
+            }
+            return new LdapConnectionPool( replicaEnv, poolMaxSize, poolIdleTimeout, poolHealthCheckInterval,
+                    poolAcquireTimeout, api.clock(), startTls );
+        }, api.log() );
+    }
+
+    /**
+     * Close a replaced component once the logins that may still be using it have timed out.
+     */
+    private static void retireLater( Runnable close, Duration after )
+    {
+        if ( close != null )
+        {
+            CompletableFuture.delayedExecutor( after.toMillis(), TimeUnit.MILLISECONDS ).execute( close );
+        }
+    }
+
+    private static Duration max( Duration a, Duration b )
+    {
+        return a.compareTo( b ) >= 0 ? a : b;
     }
 
     @Override
-    public AuthInfo authenticateAndAuthorize( AuthToken authToken ) throws AuthenticationException
+    public synchronized void shutdown()
     {
-        try
+        if ( config != null )
+        {
+            config.close();
+            config = null;
+        }
+        if ( groupSync != null )
+        {
+            groupSync.close();
+            groupSync = null;
+        }
+        roleCache.close();
+        roleCache = LdapRoleCache.DISABLED;
+        credentialCache.clear();
+        credentialCache = LdapCredentialCache.DISABLED;
+        circuitBreaker = null;
+        auditLog.close();
+        auditLog = AuditLog.DISABLED;
+        if ( bulkhead != null )
+        {
+            bulkhead.close();
+            bulkhead = null;
+        }
+        if ( replicas != null )
         {
-            String username = authToken.principal();
-            char[] password = authToken.credentials();
+            replicas.close();
+            replicas = null;
+        }
+        loginTimeout = null;
+    }
 
-            api.log().info( "Log in attempted for user '" + username + "'.");
+    /**
+     * Read the group to role mapping from the config again and swap it in. Roles resolved with the old
+     * mapping are flushed from the role cache, and the group index is synchronized again if enabled.
+     *
+     * @return the number of mapped groups
+     */
+    static int reloadGroupRoleMapping() throws NamingException
+    {
+        Path home = neo4jHome;
+        if ( home == null )
+        {
+            throw new IllegalStateException( "The LDAP plugin has not been initialized" );
+        }
+        LdapGroupRoleMapping mapping = loadGroupRoleMapping( home, PluginConfig.load( home.resolve( CONFIG_FILE ) ) );
+        groupRoleMapping = mapping;
+        roleCache.clear();
+        LdapGroupSync sync = groupSync;
+        if ( sync != null )
+        {
+            sync.sync();
+        }
+        return mapping.size();
+    }
 
-            LdapContext ctx = authenticate( username, password );
+    /**
+     * Mappings come from {@value #GROUP_TO_ROLE_MAPPING_SETTING}, as {@code group=role1,role2} entries separated
+     * by {@code ;}, and from the file in {@value #GROUP_TO_ROLE_MAPPING_FILE_SETTING}, with an entry per line.
+     * If neither is set the example groups are mapped.
+     */
+    private static LdapGroupRoleMapping loadGroupRoleMapping( Path home, PluginConfig config )
+    {
+        String inline = config.get( GROUP_TO_ROLE_MAPPING_SETTING );
+        String file = config.get( GROUP_TO_ROLE_MAPPING_FILE_SETTING );
+        if ( inline == null && file == null )
+        {
+            return LdapGroupRoleMapping.DEFAULT;
+        }
 
-            api.log().info( "User '" + username + "' authenticated." );
+        List<String> entries = new ArrayList<>();
+        if ( inline != null )
+        {
+            for ( String entry : inline.split( ";" ) )
+            {
+                if ( !entry.isBlank() )
+                {
+                    entries.add( entry );
+                }
+            }
+        }
+        if ( file != null )
+        {
+            try ( Stream<String> lines = Files.lines( home.resolve( file.trim() ) ) )
+            {
+                lines.map( String::trim ).filter( line -> !line.isEmpty() && !line.startsWith( "#" ) ).forEach( entries::add );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( "Failed loading group to role mapping: " + e.getMessage(), e );
+            }
+        }
 
-            Set<String> roles = authorize( ctx, username );
+        try
+        {
+            return LdapGroupRoleMapping.compile( entries );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IllegalStateException( e.getMessage(), e );
+        }
+    }
 
-            api.log().info( "User '" + username + "' authorized roles " + roles );
+    private static boolean isLdaps( String url )
+    {
+        return url.toLowerCase().startsWith( "ldaps:" );
+    }
 
-            return AuthInfo.of( username, roles );
+    private static LdapTls configureTls( Path home, PluginConfig config )
+    {
+        String trustStore = config.get( TLS_TRUSTSTORE_PATH_SETTING );
+        String trustStorePassword = config.get( TLS_TRUSTSTORE_PASSWORD_SETTING );
+        String protocols = config.get( TLS_PROTOCOLS_SETTING );
+        return LdapTls.build(
+                trustStore == null ? null : home.resolve( trustStore.trim() ),
+                trustStorePassword == null ? null : trustStorePassword.toCharArray(),
+                config.get( TLS_TRUSTSTORE_TYPE_SETTING ),
+                protocols == null ? null : protocols.trim().split( "\\s*,\\s*" ),
+                config.intSetting( TLS_SESSION_CACHE_SIZE_SETTING, DEFAULT_TLS_SESSION_CACHE_SIZE ),
+                config.intSetting( TLS_SESSION_TIMEOUT_SECONDS_SETTING, DEFAULT_TLS_SESSION_TIMEOUT_SECONDS ),
+                config.booleanSetting( TLS_INSECURE_TRUST_ALL_SETTING, false ) );
+    }
+
+    @Override
+    public AuthInfo authenticateAndAuthorize( AuthToken authToken ) throws AuthenticationException
+    {
+        long start = System.nanoTime();
+        String username = authToken.principal();
+        try
+        {
+            AuthInfo authInfo = authenticate( username, authToken.credentials() );
+            if ( authInfo == null )
+            {
+                recordLogin( username, AuditLog.Outcome.FAILURE, start, null );
+            }
+            else
+            {
+                recordLogin( username, AuditLog.Outcome.SUCCESS, start, authInfo.roles() );
+            }
+            return authInfo;
+        }
+        catch ( javax.naming.AuthenticationException e )
+        {
+            recordLogin( username, AuditLog.Outcome.FAILURE, start, null );
+            throw new AuthenticationException( e.getMessage() );
         }
         catch ( NamingException e )
         {
+            // The directory could not tell whether the credentials are right
+            recordLogin( username, AuditLog.Outcome.ERROR, start, null );
             throw new AuthenticationException( e.getMessage() );
         }
     }
 
-    private LdapContext authenticate( String username, char[] password ) throws NamingException
+    private void recordLogin( String username, AuditLog.Outcome outcome, long start, Collection<String> roles )
     {
-        Hashtable<String,Object> env = new Hashtable<>();
-        env.put( Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory" );
-        env.put( Context.PROVIDER_URL, ldapServerUrl );
-        env.put( Context.SECURITY_PRINCIPAL, String.format( "cn=%s,ou=users,dc=example,dc=com", username ) );
-        env.put( Context.SECURITY_CREDENTIALS, password );
-
-        return new InitialLdapContext( env, null );
+        long latency = System.nanoTime() - start;
+        metrics.recordLogin( outcome, latency );
+        auditLog.record( username, outcome, latency, roles );
     }
 
-    private Set<String> authorize( LdapContext ctx, String username ) throws NamingException
+    private AuthInfo authenticate( String username, char[] password ) throws NamingException
     {
-        Set<String> roleNames = new LinkedHashSet<>();
+        if ( username == null || password == null || password.length == 0 )
+        {
+            // A simple bind without a password is an anonymous bind, which the server would accept
+            return null;
+        }
 
-        // Setup our search controls
-        SearchControls searchCtls = new SearchControls();
-        searchCtls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        searchCtls.setReturningAttributes( new String[]{GROUP_ID} );
+        AuthInfo cached = loginWithCachedCredentials( username, password );
+        if ( cached != null )
+        {
+            return cached;
+        }
 
-        // Use a search argument to prevent potential code injection
-        Object[] searchArguments = new Object[]{username};
+        // The directory is only talked to from the threads of the bulkhead, the calling thread waits
+        // no longer than the login timeout
+        try
+        {
+            return callDirectory( () -> bulkhead.call( () -> login( username, password ), loginTimeout ) );
+        }
+        catch ( javax.naming.AuthenticationException e )
+        {
+            // The password may have been changed in the directory, do not let the old one in anymore
+            credentialCache.invalidate( username );
+            throw e;
+        }
+    }
+
+    /**
+     * Log in without calling the directory, if the user has recently bound with the same password and
+     * their roles are known.
+     *
+     * @return null if the directory has to be called
+     */
+    private AuthInfo loginWithCachedCredentials( String username, char[] password )
+    {
+        LdapCredentialCache credentials = credentialCache;
+        if ( !credentials.isEnabled() )
+        {
+            return null;
+        }
+        Set<String> roles = syncedRoles( username );
+        if ( roles == null )
+        {
+            roles = roleCache.getIfPresent( username );
+        }
+        if ( roles == null || !credentials.verify( username, password ) )
+        {
+            return null;
+        }
+        return AuthInfo.of( username, roles );
+    }
 
-        // Search for groups that has the user as a member
-        NamingEnumeration result = ctx.search( GROUP_SEARCH_BASE, GROUP_SEARCH_FILTER, searchArguments, searchCtls );
+    private AuthInfo login( String username, char[] password ) throws NamingException
+    {
+        // Borrowing a connection binds it as the user, which is what authenticates them
+        long bindStart = System.nanoTime();
+        Set<String> roles;
+        try
+        {
+            roles = replicas.withConnection( userDn( username ), password, ctx ->
+            {
+                bindLatency.record( System.nanoTime() - bindStart );
 
-        if ( result.hasMoreElements() )
+                // Once the groups have been synchronized, only the bind above goes to the server
+                Set<String> syncedRoles = syncedRoles( username );
+                return syncedRoles != null ? syncedRoles : roleCache.get( username, user -> authorize( ctx, user ) );
+            } );
+        }
+        catch ( javax.naming.AuthenticationException e )
         {
-            SearchResult searchResult = (SearchResult) result.next();
+            bindLatency.record( System.nanoTime() - bindStart );
+            throw e;
+        }
+        credentialCache.put( username, password );
+        return AuthInfo.of( username, roles );
+    }
+
+    /**
+     * @return the roles of the user from the synchronized group index, or null if there is none
+     */
+    private static Set<String> syncedRoles( String username )
+    {
+        LdapGroupSync sync = groupSync;
+        return sync == null ? null : sync.rolesOf( username );
+    }
+
+    /**
+     * Call the directory through the circuit breaker, if enabled.
+     */
+    private static <T> T callDirectory( LdapCircuitBreaker.Operation<T> operation ) throws NamingException
+    {
+        LdapCircuitBreaker breaker = circuitBreaker;
+        return breaker == null ? operation.perform() : breaker.call( operation );
+    }
 
-            Attributes attributes = searchResult.getAttributes();
-            if ( attributes != null )
+    private static String userDn( String username )
+    {
+        return String.format( "cn=%s,ou=users,dc=example,dc=com", username );
+    }
+
+    /**
+     * Look up the roles of a user with the system account, for refreshing them in the background.
+     */
+    private Set<String> authorizeAsSystem( String username ) throws NamingException
+    {
+        return callDirectory( () ->
+                replicas.withConnection( systemUsername, systemPassword, ctx -> authorize( ctx, username ) ) );
+    }
+
+    /**
+     * Read all groups with the system account and index their mapped roles by member, for {@link LdapGroupSync}.
+     */
+    private Map<String,Set<String>> loadGroupIndex() throws NamingException
+    {
+        LdapGroupRoleMapping mapping = groupRoleMapping;
+        Map<String,Set<String>> rolesByMember = callDirectory( () ->
+                replicas.withConnection( systemUsername, systemPassword, ctx -> readGroupMembers( ctx, mapping ) ) );
+
+        Map<String,Set<String>> index = new HashMap<>( rolesByMember.size() * 4 / 3 + 1 );
+        rolesByMember.forEach( ( member, roles ) -> index.put( member, Set.copyOf( roles ) ) );
+        return Collections.unmodifiableMap( index );
+    }
+
+    private Map<String,Set<String>> readGroupMembers( LdapContext ctx, LdapGroupRoleMapping mapping ) throws NamingException
+    {
+        Map<String,Set<String>> rolesByMember = new HashMap<>();
+        // Every group is needed for a complete index, so the per-user size limit does not apply here
+        groupSearch.search( ctx, ALL_GROUPS_FILTER, new Object[0], new String[]{GROUP_ID, MEMBER_UID}, 0, attributes ->
+        {
+            Attribute groupId = attributes.get( GROUP_ID );
+            Attribute members = attributes.get( MEMBER_UID );
+            Set<String> neo4jRoles = groupId == null ? Set.of() : mapping.rolesOf( (String) groupId.get() );
+            if ( !neo4jRoles.isEmpty() && members != null )
             {
-                NamingEnumeration attributeEnumeration = attributes.getAll();
-                while ( attributeEnumeration.hasMore() )
+                NamingEnumeration<?> memberUids = members.getAll();
+                while ( memberUids.hasMore() )
                 {
-                    Attribute attribute = (Attribute) attributeEnumeration.next();
-                    String attributeId = attribute.getID();
-                    if ( attributeId.equalsIgnoreCase( GROUP_ID ) )
-                    {
-                        // We found a group that the user is a member of. See if it has a role mapped to it
-                        String groupId = (String) attribute.get();
-                        String neo4jGroup = getNeo4jRoleForGroupId( groupId );
-                        if ( neo4jGroup != null )
-                        {
-                            // Yay! Add it to our set of roles
-                            roleNames.add( neo4jGroup );
-                        }
-                    }
+                    rolesByMember.computeIfAbsent( (String) memberUids.next(), member -> new HashSet<>() ).addAll( neo4jRoles );
                 }
             }
-        }
-        return roleNames;
+        } );
+        return rolesByMember;
     }
 
-    private static String getNeo4jRoleForGroupId( String groupId )
+    private Set<String> authorize( LdapContext ctx, String username ) throws NamingException
     {
-        if ( "500".equals( groupId ) )
-            return PredefinedRoles.READER;
-        if ( "501".equals( groupId ) )
-            return PredefinedRoles.PUBLISHER;
-        if ( "502".equals( groupId ) )
-            return PredefinedRoles.ARCHITECT;
-        if ( "503".equals( groupId ) )
-            return PredefinedRoles.ADMIN;
-        return null;
+        Set<String> roleNames = new LinkedHashSet<>();
+        LdapGroupRoleMapping mapping = groupRoleMapping;
+
+        // Use a search argument to prevent potential code injection
+        Object[] searchArguments = new Object[]{username};
+
+        // Search for groups that has the user as a member, going through all of them a page at a time
+        long searchStart = System.nanoTime();
+        long[] mappingNanos = {0};
+        boolean complete = groupSearch.search( ctx, GROUP_SEARCH_FILTER, searchArguments, new String[]{GROUP_ID},
+                searchSizeLimit, attributes ->
+        {
+            Attribute groupId = attributes.get( GROUP_ID );
+            if ( groupId != null )
+            {
+                // We found a group that the user is a member of. Add the roles mapped to it, if any
+                long mappingStart = System.nanoTime();
+                roleNames.addAll( mapping.rolesOf( (String) groupId.get() ) );
+                mappingNanos[0] += System.nanoTime() - mappingStart;
+            }
+        } );
+        // Mapping happens while the results come in, it does not count towards the search
+        searchLatency.record( System.nanoTime() - searchStart - mappingNanos[0] );
+        mappingLatency.record( mappingNanos[0] );
+        if ( !complete )
+        {
+            api.log().warn( "User '" + username + "' is a member of more than " + searchSizeLimit +
+                    " groups, only the roles of the first " + searchSizeLimit + " are used." );
+        }
+        return roleNames;
     }
 }
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
+
+/**
+ * An immutable mapping from LDAP groups to Neo4j roles, compiled for constant time lookups.
+ *
+ * Mappings are written as {@code group=role1,role2}. A group can map to several roles and several
+ * groups can map to the same role; all entries for the same group are combined. Numeric groups, such
+ * as {@code gidNumber}s, go into an open-addressing table keyed by the primitive int, so looking them up
+ * neither allocates nor hashes a string. Any other group, such as a DN, is looked up in a regular map.
+ */
+final class LdapGroupRoleMapping
+{
+    /**
+     * The mapping used when none is configured, matching the groups of the example directory.
+     */
+    static final LdapGroupRoleMapping DEFAULT = compile( List.of(
+            "500=" + PredefinedRoles.READER,
+            "501=" + PredefinedRoles.PUBLISHER,
+            "502=" + PredefinedRoles.ARCHITECT,
+            "503=" + PredefinedRoles.ADMIN ) );
+
+    private static final int EMPTY = -1;
+
+    // Open-addressing table, a slot is free when its role set index is EMPTY
+    private final int[] numericGroups;
+    private final int[] roleSetIndexes;
+    private final int mask;
+    private final Set<String>[] roleSets;
+    private final Map<String,Set<String>> namedGroups;
+    private final int size;
+
+    private LdapGroupRoleMapping( int[] numericGroups, int[] roleSetIndexes, Set<String>[] roleSets,
+            Map<String,Set<String>> namedGroups, int size )
+    {
+        this.numericGroups = numericGroups;
+        this.roleSetIndexes = roleSetIndexes;
+        this.mask = numericGroups.length - 1;
+        this.roleSets = roleSets;
+        this.namedGroups = namedGroups;
+        this.size = size;
+    }
+
+    /**
+     * Compile mapping entries of the form {@code group=role1,role2}.
+     *
+     * @throws IllegalArgumentException if an entry is malformed
+     */
+    static LdapGroupRoleMapping compile( Iterable<String> entries )
+    {
+        Map<String,Set<String>> rolesByGroup = new LinkedHashMap<>();
+        for ( String entry : entries )
+        {
+            // Split on the last '=', as a group can be a DN that contains '=' itself, while a role cannot
+            int separator = entry.lastIndexOf( '=' );
+            String group = separator < 0 ? "" : entry.substring( 0, separator ).trim();
+            if ( group.isEmpty() )
+            {
+                throw new IllegalArgumentException( "Malformed group to role mapping '" + entry + "', expected group=role1,role2" );
+            }
+            Set<String> roles = rolesByGroup.computeIfAbsent( group, g -> new LinkedHashSet<>() );
+            for ( String role : entry.substring( separator + 1 ).split( "," ) )
+            {
+                if ( !role.isBlank() )
+                {
+                    roles.add( role.trim() );
+                }
+            }
+        }
+
+        // Share a single immutable set between all groups with the same roles
+        Map<Set<String>,Integer> roleSetIndexByRoles = new HashMap<>();
+        List<Set<String>> distinctRoleSets = new ArrayList<>();
+        Map<Integer,Integer> numeric = new HashMap<>();
+        Map<String,Set<String>> named = new HashMap<>();
+        for ( Map.Entry<String,Set<String>> groupRoles : rolesByGroup.entrySet() )
+        {
+            Set<String> roles = Set.copyOf( groupRoles.getValue() );
+            Integer index = roleSetIndexByRoles.get( roles );
+            if ( index == null )
+            {
+                index = distinctRoleSets.size();
+                roleSetIndexByRoles.put( roles, index );
+                distinctRoleSets.add( roles );
+            }
+            String group = groupRoles.getKey();
+            long gid = parseGroupId( group );
+            if ( gid >= 0 )
+            {
+                numeric.put( (int) gid, index );
+            }
+            else
+            {
+                named.put( group, distinctRoleSets.get( index ) );
+            }
+        }
+
+        // At most half full, so that probe sequences stay short
+        int capacity = Integer.highestOneBit( Math.max( 1, numeric.size() ) * 2 ) << 1;
+        int[] numericGroups = new int[capacity];
+        int[] roleSetIndexes = new int[capacity];
+        Arrays.fill( roleSetIndexes, EMPTY );
+        int mask = capacity - 1;
+        for ( Map.Entry<Integer,Integer> groupIndex : numeric.entrySet() )
+        {
+            int slot = slot( groupIndex.getKey(), mask );
+            while ( roleSetIndexes[slot] != EMPTY )
+            {
+                slot = (slot + 1) & mask;
+            }
+            numericGroups[slot] = groupIndex.getKey();
+            roleSetIndexes[slot] = groupIndex.getValue();
+        }
+
+        @SuppressWarnings( {"unchecked", "rawtypes"} )
+        Set<String>[] roleSets = distinctRoleSets.toArray( new Set[0] );
+        return new LdapGroupRoleMapping( numericGroups, roleSetIndexes, roleSets, Map.copyOf( named ), rolesByGroup.size() );
+    }
+
+    /**
+     * @return the roles of the group, empty if it is not mapped
+     */
+    Set<String> rolesOf( String group )
+    {
+        long gid = parseGroupId( group );
+        if ( gid < 0 )
+        {
+            return namedGroups.getOrDefault( group, Set.of() );
+        }
+        int slot = slot( (int) gid, mask );
+        int index;
+        while ( (index = roleSetIndexes[slot]) != EMPTY )
+        {
+            if ( numericGroups[slot] == (int) gid )
+            {
+                return roleSets[index];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return Set.of();
+    }
+
+    /**
+     * @return the number of mapped groups
+     */
+    int size()
+    {
+        return size;
+    }
+
+    private static int slot( int gid, int mask )
+    {
+        // Scramble the bits, consecutive gids would otherwise fill one long run of slots
+        int hash = gid * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return the group as a non-negative int, or -1 if it is not a plain decimal number that fits in one
+     */
+    private static long parseGroupId( String group )
+    {
+        int length = group.length();
+        if ( length == 0 || length > 10 )
+        {
+            return -1;
+        }
+        long value = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            char c = group.charAt( i );
+            if ( c < '0' || c > '9' )
+            {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= Integer.MAX_VALUE ? value : -1;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.naming.NamingException;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * Keeps an in-memory index from {@code memberUid} to Neo4j roles, rebuilt from all groups in the
+ * directory on a schedule, so that authorizing a user needs no round trip to the LDAP server.
+ *
+ * Every sync builds a complete new index and swaps it in at once, so a login sees either the old or
+ * the new group membership, never a mix. If a sync fails the previous index is kept.
+ */
+class LdapGroupSync
+{
+    private final Loader loader;
+    private final AuthProviderOperations.Log log;
+    private final AtomicReference<Map<String,Set<String>>> index = new AtomicReference<>();
+    private final ScheduledExecutorService scheduler;
+
+    LdapGroupSync( Loader loader, Duration interval, AuthProviderOperations.Log log )
+    {
+        this.loader = loader;
+        this.log = log;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = new Thread( runnable, "ldap-group-sync" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        // The first sync runs right away, logins fall back to searching until it has completed
+        scheduler.scheduleWithFixedDelay( this::syncQuietly, 0, interval.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @return the roles of the user, or null if no sync has completed yet
+     */
+    Set<String> rolesOf( String username )
+    {
+        Map<String,Set<String>> current = index.get();
+        if ( current == null )
+        {
+            return null;
+        }
+        return current.getOrDefault( username, Set.of() );
+    }
+
+    /**
+     * Rebuild the index now, on the calling thread. Syncs run one at a time, so the last one to start
+     * is also the last one to swap in its index.
+     *
+     * @return the number of users in the new index
+     */
+    synchronized int sync() throws NamingException
+    {
+        Map<String,Set<String>> synced = loader.load();
+        index.set( synced );
+        return synced.size();
+    }
+
+    /**
+     * Rebuild the index in the background, as soon as the sync thread gets to it.
+     */
+    void syncSoon()
+    {
+        scheduler.execute( this::syncQuietly );
+    }
+
+    void close()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private void syncQuietly()
+    {
+        try
+        {
+            int users = sync();
+            log.info( "Synchronized LDAP group membership of " + users + " users." );
+        }
+        catch ( NamingException | RuntimeException e )
+        {
+            log.error( "Failed to synchronize LDAP group membership, keeping the previous one: " + e.getMessage() );
+        }
+    }
+
+    @FunctionalInterface
+    interface Loader
+    {
+        /**
+         * @return an immutable map from user to their roles, for every user that is a member of a mapped group
+         */
+        Map<String,Set<String>> load() throws NamingException;
+    }
+}
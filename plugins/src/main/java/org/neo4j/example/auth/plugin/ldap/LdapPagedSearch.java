@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.io.IOException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * A subtree search that asks the server for its results a page at a time (RFC 2696), so that neither
+ * the server nor the client has to hold a large result set at once.
+ *
+ * Servers that do not support paging simply return all results, as the control is not critical.
+ */
+class LdapPagedSearch
+{
+    private final String base;
+    private final int pageSize;
+
+    LdapPagedSearch( String base, int pageSize )
+    {
+        if ( pageSize < 1 )
+        {
+            throw new IllegalArgumentException( "The LDAP search page size must be positive" );
+        }
+        this.base = base;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Search and hand the attributes of each result to the handler, page by page. Each page is closed
+     * as soon as it has been processed.
+     *
+     * @param sizeLimit the maximum number of results to process, or 0 for no limit
+     * @return true if all results were processed, false if the size limit cut the search short
+     */
+    boolean search( LdapContext ctx, String filter, Object[] filterArguments, String[] attributes, long sizeLimit,
+            ResultHandler handler ) throws NamingException
+    {
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        searchCtls.setReturningAttributes( attributes );
+
+        long processed = 0;
+        byte[] cookie = null;
+        try
+        {
+            do
+            {
+                long remaining = sizeLimit > 0 ? sizeLimit - processed : Long.MAX_VALUE;
+                int size = (int) Math.min( pageSize, remaining );
+                ctx.setRequestControls( new Control[]{new PagedResultsControl( size, cookie, Control.NONCRITICAL )} );
+
+                NamingEnumeration<SearchResult> results = ctx.search( base, filter, filterArguments, searchCtls );
+                try
+                {
+                    while ( results.hasMore() )
+                    {
+                        if ( sizeLimit > 0 && processed >= sizeLimit )
+                        {
+                            // Closing the enumeration abandons the rest of the search on the server
+                            return false;
+                        }
+                        handler.handle( results.next().getAttributes() );
+                        processed++;
+                    }
+                }
+                finally
+                {
+                    results.close();
+                }
+                cookie = cookie( ctx.getResponseControls() );
+                if ( cookie != null && sizeLimit > 0 && processed >= sizeLimit )
+                {
+                    return false;
+                }
+            }
+            while ( cookie != null );
+            return true;
+        }
+        catch ( IOException e )
+        {
+            NamingException namingException = new NamingException( "Failed to encode the paged results control" );
+            namingException.setRootCause( e );
+            throw namingException;
+        }
+        finally
+        {
+            // The context goes back to the connection pool, the next user must not inherit the control
+            ctx.setRequestControls( null );
+        }
+    }
+
+    private static byte[] cookie( Control[] responseControls )
+    {
+        if ( responseControls != null )
+        {
+            for ( Control control : responseControls )
+            {
+                if ( control instanceof PagedResultsResponseControl )
+                {
+                    byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                    // An empty cookie means that this was the last page
+                    return cookie == null || cookie.length == 0 ? null : cookie;
+                }
+            }
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    interface ResultHandler
+    {
+        void handle( Attributes attributes ) throws NamingException;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.util.stream.Stream;
+import javax.naming.NamingException;
+
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+public class LdapProcedures
+{
+    /**
+     * Forget the cached roles of a user, so that their next login searches their groups again.
+     */
+    @Procedure( name = "flushLdapRoleCache", mode = Mode.DBMS )
+    public void flushLdapRoleCache( @Name( "username" ) String username )
+    {
+        LdapGroupHasUsersAuthPlugin.roleCache().invalidate( username );
+    }
+
+    @Procedure( name = "flushLdapRoleCacheForAllUsers", mode = Mode.DBMS )
+    public void flushLdapRoleCacheForAllUsers()
+    {
+        LdapGroupHasUsersAuthPlugin.roleCache().clear();
+    }
+
+    /**
+     * Forget the cached credentials of a user, so that their next login binds to the directory again.
+     */
+    @Procedure( name = "flushLdapCredentialCache", mode = Mode.DBMS )
+    public void flushLdapCredentialCache( @Name( "username" ) String username )
+    {
+        LdapGroupHasUsersAuthPlugin.credentialCache().invalidate( username );
+    }
+
+    @Procedure( name = "flushLdapCredentialCacheForAllUsers", mode = Mode.DBMS )
+    public void flushLdapCredentialCacheForAllUsers()
+    {
+        LdapGroupHasUsersAuthPlugin.credentialCache().clear();
+    }
+
+    /**
+     * Synchronize the group membership of all users now, instead of waiting for the next scheduled sync.
+     */
+    @Procedure( name = "syncLdapGroups", mode = Mode.DBMS )
+    public Stream<SyncResult> syncLdapGroups() throws NamingException
+    {
+        LdapGroupSync sync = LdapGroupHasUsersAuthPlugin.groupSync();
+        if ( sync == null )
+        {
+            throw new IllegalStateException( "LDAP group sync is not enabled, set '" +
+                    LdapGroupHasUsersAuthPlugin.GROUP_SYNC_ENABLED_SETTING + "=true'." );
+        }
+        return Stream.of( new SyncResult( sync.sync() ) );
+    }
+
+    /**
+     * Read the group to role mapping from the config again, after it has been edited.
+     */
+    @Procedure( name = "reloadLdapGroupRoleMapping", mode = Mode.DBMS )
+    public Stream<ReloadResult> reloadLdapGroupRoleMapping() throws NamingException
+    {
+        return Stream.of( new ReloadResult( LdapGroupHasUsersAuthPlugin.reloadGroupRoleMapping() ) );
+    }
+
+    /**
+     * Show whether the circuit breaker lets logins through to the directory.
+     */
+    @Procedure( name = "ldapCircuitBreakerState", mode = Mode.DBMS )
+    public Stream<CircuitBreakerResult> ldapCircuitBreakerState()
+    {
+        LdapCircuitBreaker breaker = LdapGroupHasUsersAuthPlugin.circuitBreaker();
+        if ( breaker == null )
+        {
+            throw new IllegalStateException( "The LDAP circuit breaker is not enabled, set '" +
+                    LdapGroupHasUsersAuthPlugin.CIRCUIT_BREAKER_ENABLED_SETTING + "=true'." );
+        }
+        return Stream.of( new CircuitBreakerResult( breaker.state().name(), breaker.failureRate() * 100,
+                breaker.recordedCalls(), breaker.rejectedCalls(), breaker.millisUntilProbe() ) );
+    }
+
+    public static class SyncResult
+    {
+        public final long users;
+
+        SyncResult( long users )
+        {
+            this.users = users;
+        }
+    }
+
+    public static class ReloadResult
+    {
+        public final long mappedGroups;
+
+        ReloadResult( long mappedGroups )
+        {
+            this.mappedGroups = mappedGroups;
+        }
+    }
+
+    public static class CircuitBreakerResult
+    {
+        public final String state;
+        public final double failureRatePercent;
+        public final long recordedCalls;
+        public final long rejectedCalls;
+        public final long millisUntilProbe;
+
+        CircuitBreakerResult( String state, double failureRatePercent, long recordedCalls, long rejectedCalls,
+                long millisUntilProbe )
+        {
+            this.state = state;
+            this.failureRatePercent = failureRatePercent;
+            this.recordedCalls = recordedCalls;
+            this.rejectedCalls = rejectedCalls;
+            this.millisUntilProbe = millisUntilProbe;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * The replicas of the directory, each with a pool of connections, and with statistics to pick the one
+ * to use for the next operation.
+ *
+ * Every replica keeps a moving average of how long operations on it take and of how often they fail
+ * to reach it. Operations go to the replica with the best score, the average latency penalized by
+ * the error rate. When a replica cannot be reached, or does not answer within the read timeout, the
+ * operation is retried on the next best one, and the failed replica is only tried again as a last resort
+ * until a backoff has passed, which doubles with every failure in a row. Running out of pooled connections
+ * is not held against a replica. A replica that has not been used for a while gets one operation to see
+ * whether it has become faster, so that one slow spell does not exclude it for good.
+ */
+class LdapReplicas
+{
+    // Weights of a new sample in the moving averages
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double ERROR_WEIGHT = 0.1;
+    // An error rate of 10% makes a replica look twice as slow
+    private static final double ERROR_PENALTY = 10;
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 10 );
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+    private static final String READ_TIMEOUT_MESSAGE = "LDAP response read timed out";
+
+    private final Replica[] replicas;
+    private final AuthProviderOperations.Log log;
+
+    /**
+     * @param pools creates the connection pool for the replica at the given url
+     */
+    LdapReplicas( List<String> urls, Function<String,LdapConnectionPool> pools, AuthProviderOperations.Log log )
+    {
+        if ( urls.isEmpty() )
+        {
+            throw new IllegalArgumentException( "At least one LDAP server is needed" );
+        }
+        this.replicas = new Replica[urls.size()];
+        for ( int i = 0; i < replicas.length; i++ )
+        {
+            replicas[i] = new Replica( urls.get( i ), i, pools.apply( urls.get( i ) ) );
+        }
+        this.log = log;
+    }
+
+    /**
+     * Run the operation with a connection bound as the given user, on the best replica that can be reached.
+     * The operation may run more than once, on different replicas, so it must not have side effects.
+     *
+     * @throws AuthenticationException if the credentials are wrong, which is not retried on another replica
+     * @throws LdapConnectionPool.ExhaustedException if no connection to the replica became available in time,
+     * which says nothing about the replica and is not retried either
+     * @throws NamingException the failure of the last replica, if none could be reached
+     */
+    <T> T withConnection( String principal, char[] credentials, Operation<T> operation ) throws NamingException
+    {
+        NamingException failure = null;
+        for ( Replica replica : candidates() )
+        {
+            long start = System.nanoTime();
+            LdapContext ctx;
+            try
+            {
+                ctx = replica.pool.acquire( principal, credentials );
+            }
+            catch ( AuthenticationException e )
+            {
+                // The replica answered, it just did not like the credentials
+                replica.succeeded( System.nanoTime() - start );
+                throw e;
+            }
+            catch ( LdapConnectionPool.ExhaustedException e )
+            {
+                // Too many operations on this side, other replicas are no better off than this one
+                if ( failure != null )
+                {
+                    e.addSuppressed( failure );
+                }
+                throw e;
+            }
+            catch ( NamingException e )
+            {
+                if ( !isUnreachable( e ) )
+                {
+                    throw e;
+                }
+                replica.failed();
+                failure = retryOrGiveUp( replica, e, failure );
+                continue;
+            }
+
+            boolean reusable = false;
+            try
+            {
+                T result = operation.perform( ctx );
+                reusable = true;
+                replica.succeeded( System.nanoTime() - start );
+                return result;
+            }
+            catch ( NamingException e )
+            {
+                if ( !isUnreachable( e ) )
+                {
+                    throw e;
+                }
+                replica.failed();
+                failure = retryOrGiveUp( replica, e, failure );
+            }
+            finally
+            {
+                replica.pool.release( ctx, reusable );
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * JNDI reports a server that does not answer within the read timeout with a plain {@link NamingException},
+     * which can only be told apart from other failures by its message.
+     */
+    static boolean isReadTimeout( NamingException e )
+    {
+        String message = e.getMessage();
+        return e.getClass() == NamingException.class && message != null && message.startsWith( READ_TIMEOUT_MESSAGE );
+    }
+
+    void close()
+    {
+        for ( Replica replica : replicas )
+        {
+            replica.pool.close();
+        }
+    }
+
+    private static boolean isUnreachable( NamingException e )
+    {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException || isReadTimeout( e );
+    }
+
+    private NamingException retryOrGiveUp( Replica replica, NamingException e, NamingException previous )
+    {
+        if ( replicas.length > 1 )
+        {
+            log.warn( "Could not reach LDAP server " + replica.url + ": " + e.getMessage() );
+        }
+        if ( previous != null )
+        {
+            e.addSuppressed( previous );
+        }
+        return e;
+    }
+
+    /**
+     * @return all replicas, in the order to try them
+     */
+    private Replica[] candidates()
+    {
+        if ( replicas.length == 1 )
+        {
+            return replicas;
+        }
+        long now = System.nanoTime();
+        Replica probe = null;
+        double[] scores = new double[replicas.length];
+        for ( Replica replica : replicas )
+        {
+            scores[replica.index] = replica.score( now );
+            if ( probe == null && replica.claimProbe( now ) )
+            {
+                probe = replica;
+            }
+        }
+
+        Replica[] ordered = replicas.clone();
+        // Stable, so that replicas with the same score are tried in the configured order
+        Arrays.sort( ordered, Comparator.comparingDouble( replica -> scores[replica.index] ) );
+        if ( probe != null )
+        {
+            for ( int i = Arrays.asList( ordered ).indexOf( probe ); i > 0; i-- )
+            {
+                ordered[i] = ordered[i - 1];
+            }
+            ordered[0] = probe;
+        }
+        return ordered;
+    }
+
+    private static final class Replica
+    {
+        private final String url;
+        private final int index;
+        private final LdapConnectionPool pool;
+
+        private volatile double latencyNanos;
+        private volatile double errorRate;
+        private volatile long lastUsed;
+        private volatile boolean used;
+        private volatile long retryAt;
+        private int failuresInARow;
+
+        Replica( String url, int index, LdapConnectionPool pool )
+        {
+            this.url = url;
+            this.index = index;
+            this.pool = pool;
+        }
+
+        /**
+         * @return lower is better, replicas that are backing off come last
+         */
+        double score( long now )
+        {
+            if ( isBackingOff( now ) )
+            {
+                return Double.MAX_VALUE;
+            }
+            return latencyNanos * (1 + ERROR_PENALTY * errorRate);
+        }
+
+        /**
+         * @return true if this replica has not been used for a while and the caller should try it, which
+         * only one caller gets to do at a time
+         */
+        synchronized boolean claimProbe( long now )
+        {
+            if ( isBackingOff( now ) || (used && now - lastUsed < PROBE_INTERVAL_NANOS) )
+            {
+                return false;
+            }
+            used = true;
+            lastUsed = now;
+            return true;
+        }
+
+        synchronized void succeeded( long elapsedNanos )
+        {
+            latencyNanos = latencyNanos == 0 ? elapsedNanos : latencyNanos + LATENCY_WEIGHT * (elapsedNanos - latencyNanos);
+            errorRate = errorRate * (1 - ERROR_WEIGHT);
+            failuresInARow = 0;
+            retryAt = 0;
+            used = true;
+            lastUsed = System.nanoTime();
+        }
+
+        synchronized void failed()
+        {
+            errorRate = errorRate + ERROR_WEIGHT * (1 - errorRate);
+            failuresInARow++;
+            long backoff = Math.min( MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min( failuresInARow - 1, 16 ) );
+            used = true;
+            lastUsed = System.nanoTime();
+            retryAt = lastUsed + backoff;
+        }
+
+        private boolean isBackingOff( long now )
+        {
+            long retry = retryAt;
+            return retry != 0 && now - retry < 0;
+        }
+    }
+
+    @FunctionalInterface
+    interface Operation<T>
+    {
+        T perform( LdapContext ctx ) throws NamingException;
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+/**
+ * A per-user cache of the Neo4j roles resolved from LDAP group membership.
+ *
+ * An entry is used for at most the TTL. Once it is older than the refresh-ahead age, the next login
+ * that uses it also schedules a background reload, so users that keep logging in never have to wait
+ * for the group search. Only a user whose entry has expired, or who has none, waits for it.
+ * Background reloads need a loader that does not depend on the user's own credentials, typically a
+ * search with a system account; without one, entries are simply reloaded when they expire.
+ */
+class LdapRoleCache
+{
+    private static final int REFRESH_THREADS = 2;
+    private static final int MAX_PENDING_REFRESHES = 1000;
+
+    static final LdapRoleCache DISABLED = new LdapRoleCache( 0, Duration.ZERO, Duration.ZERO, null, Clock.systemUTC(), null );
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long refreshAfterMillis;
+    private final Loader backgroundLoader;
+    private final Clock clock;
+    private final AuthProviderOperations.Log log;
+    private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+    // Bumped by every flush, so that a search that started before the flush does not put its result back
+    private final AtomicLong epoch = new AtomicLong();
+    private final ExecutorService refresher;
+
+    /**
+     * @param backgroundLoader used for refresh-ahead, or null to only reload entries once they have expired
+     */
+    LdapRoleCache( int maxSize, Duration ttl, Duration refreshAfter, Loader backgroundLoader, Clock clock,
+            AuthProviderOperations.Log log )
+    {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.refreshAfterMillis = refreshAfter.toMillis();
+        this.backgroundLoader = backgroundLoader;
+        this.clock = clock;
+        this.log = log;
+        if ( isEnabled() && backgroundLoader != null && refreshAfterMillis < ttlMillis )
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor( REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>( MAX_PENDING_REFRESHES ), runnable ->
+            {
+                Thread thread = new Thread( runnable, "ldap-role-cache-refresher" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            executor.allowCoreThreadTimeOut( true );
+            refresher = executor;
+        }
+        else
+        {
+            refresher = null;
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * Get the roles of a user, loading them with the given loader if there is no usable entry.
+     */
+    Set<String> get( String username, Loader loader ) throws NamingException
+    {
+        if ( !isEnabled() )
+        {
+            return loader.load( username );
+        }
+
+        Set<String> cached = getIfPresent( username );
+        if ( cached != null )
+        {
+            return cached;
+        }
+
+        long now = clock.millis();
+        long loadEpoch = epoch.get();
+        Set<String> roles = Set.copyOf( loader.load( username ) );
+        if ( epoch.get() == loadEpoch )
+        {
+            put( username, new Entry( roles, now ) );
+        }
+        return roles;
+    }
+
+    /**
+     * @return the cached roles of a user, or null if there is no usable entry
+     */
+    Set<String> getIfPresent( String username )
+    {
+        if ( !isEnabled() )
+        {
+            return null;
+        }
+
+        long now = clock.millis();
+        Entry entry = entries.get( username );
+        if ( entry != null && now - entry.loadedAt < ttlMillis )
+        {
+            if ( refresher != null && now - entry.loadedAt >= refreshAfterMillis && entry.refreshing.compareAndSet( false, true ) )
+            {
+                scheduleRefresh( username, entry );
+            }
+            return entry.roles;
+        }
+        return null;
+    }
+
+    void invalidate( String username )
+    {
+        epoch.incrementAndGet();
+        entries.remove( username );
+    }
+
+    void clear()
+    {
+        epoch.incrementAndGet();
+        entries.clear();
+    }
+
+    long size()
+    {
+        return entries.size();
+    }
+
+    void close()
+    {
+        if ( refresher != null )
+        {
+            refresher.shutdownNow();
+        }
+        entries.clear();
+    }
+
+    private void scheduleRefresh( String username, Entry entry )
+    {
+        try
+        {
+            refresher.execute( () -> refresh( username, entry ) );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // Too many refreshes pending or shutting down, a later login will try again
+            entry.refreshing.set( false );
+        }
+    }
+
+    private void refresh( String username, Entry entry )
+    {
+        long now = clock.millis();
+        try
+        {
+            Set<String> roles = Set.copyOf( backgroundLoader.load( username ) );
+            // Only replace the very entry that triggered the refresh, if it was flushed meanwhile it stays flushed
+            entries.replace( username, entry, new Entry( roles, now ) );
+        }
+        catch ( NamingException | RuntimeException e )
+        {
+            log.warn( "Failed to refresh the roles of user '" + username + "': " + e.getMessage() );
+            entry.refreshing.set( false );
+        }
+    }
+
+    private void put( String username, Entry entry )
+    {
+        if ( entries.size() >= maxSize && !entries.containsKey( username ) )
+        {
+            makeRoom( entry.loadedAt );
+        }
+        entries.put( username, entry );
+    }
+
+    private void makeRoom( long now )
+    {
+        // Same policy as the PKI token cache, first expired entries and then arbitrary ones
+        entries.values().removeIf( entry -> now - entry.loadedAt >= ttlMillis );
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ( entries.size() >= maxSize && iterator.hasNext() )
+        {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    @FunctionalInterface
+    interface Loader
+    {
+        Set<String> load( String username ) throws NamingException;
+    }
+
+    private static final class Entry
+    {
+        private final Set<String> roles;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry( Set<String> roles, long loadedAt )
+        {
+            this.roles = roles;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
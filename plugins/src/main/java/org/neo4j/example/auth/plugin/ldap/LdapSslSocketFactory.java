@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The socket factory for TLS connections to the LDAP server, backed by the {@link SSLContext} that
+ * the plugin configures. All connections share the client session cache of that one context, so a new
+ * pooled connection to a server that has been connected to before resumes the TLS session instead of
+ * doing a full handshake.
+ *
+ * JNDI instantiates socket factories by class name through a static {@code getDefault()} method, which
+ * is why the configuration is static. The class also counts handshakes, to see how well the connection
+ * pool and session resumption work.
+ */
+public class LdapSslSocketFactory extends SSLSocketFactory
+{
+    private static final LdapSslSocketFactory INSTANCE = new LdapSslSocketFactory();
+
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+    // A resumed session is the same session object as the one it resumes, at least up to TLS 1.2
+    private static final Set<SSLSession> establishedSessions = Collections.synchronizedSet(
+            Collections.newSetFromMap( new WeakHashMap<>() ) );
+    private static final HandshakeCompletedListener handshakeCounter = event ->
+    {
+        handshakes.increment();
+        if ( !establishedSessions.add( event.getSession() ) )
+        {
+            resumedHandshakes.increment();
+        }
+    };
+
+    private static volatile SSLSocketFactory delegate = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    private static volatile String[] protocols;
+
+    private LdapSslSocketFactory()
+    {
+    }
+
+    /**
+     * Called by JNDI.
+     */
+    public static SocketFactory getDefault()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the number of TLS handshakes completed since the last reset, including resumed ones
+     */
+    public static long handshakes()
+    {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return the number of completed handshakes that resumed an earlier session. Sessions resumed with
+     * TLS 1.3 are not recognized and count as full handshakes.
+     */
+    public static long resumedHandshakes()
+    {
+        return resumedHandshakes.sum();
+    }
+
+    public static void resetStatistics()
+    {
+        handshakes.reset();
+        resumedHandshakes.reset();
+    }
+
+    /**
+     * @param protocols the protocols to enable, or null for the defaults of the context
+     */
+    static void configure( SSLContext context, String[] protocols )
+    {
+        LdapSslSocketFactory.delegate = context.getSocketFactory();
+        LdapSslSocketFactory.protocols = protocols;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        return configured( delegate.createSocket() );
+    }
+
+    @Override
+    public Socket createSocket( Socket socket, String host, int port, boolean autoClose ) throws IOException
+    {
+        // Used for StartTLS, to layer TLS over an established plain connection
+        return configured( delegate.createSocket( socket, host, port, autoClose ) );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port ) throws IOException
+    {
+        return configured( delegate.createSocket( host, port ) );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localHost, int localPort ) throws IOException
+    {
+        return configured( delegate.createSocket( host, port, localHost, localPort ) );
+    }
+
+    @Override
+    public Socket createSocket( InetAddress host, int port ) throws IOException
+    {
+        return configured( delegate.createSocket( host, port ) );
+    }
+
+    @Override
+    public Socket createSocket( InetAddress address, int port, InetAddress localAddress, int localPort ) throws IOException
+    {
+        return configured( delegate.createSocket( address, port, localAddress, localPort ) );
+    }
+
+    private static Socket configured( Socket socket )
+    {
+        SSLSocket sslSocket = (SSLSocket) socket;
+        String[] enabledProtocols = protocols;
+        if ( enabledProtocols != null )
+        {
+            sslSocket.setEnabledProtocols( enabledProtocols );
+        }
+        sslSocket.addHandshakeCompletedListener( handshakeCounter );
+        return sslSocket;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * Builds the {@link SSLContext} for connections to the LDAP server, which is only handed to
+ * {@link LdapSslSocketFactory} once it is {@link #install() installed}, as that affects all connections.
+ */
+final class LdapTls
+{
+    private static final HostnameVerifier ANY_HOSTNAME = ( hostname, session ) -> true;
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final boolean trustAll;
+
+    private LdapTls( SSLContext context, String[] protocols, boolean trustAll )
+    {
+        this.context = context;
+        this.protocols = protocols;
+        this.trustAll = trustAll;
+    }
+
+    /**
+     * @param trustStore a trust store with the certificates to trust, or null to use the JVM default trust store
+     * @param protocols the protocols to enable, or null for the JVM defaults
+     * @param trustAll trust any certificate for any host name, which is only meant for testing
+     */
+    static LdapTls build( Path trustStore, char[] trustStorePassword, String trustStoreType, String[] protocols,
+            int sessionCacheSize, int sessionTimeoutSeconds, boolean trustAll )
+    {
+        try
+        {
+            TrustManager[] trustManagers;
+            if ( trustAll )
+            {
+                trustManagers = new TrustManager[]{new TrustAllManager()};
+            }
+            else
+            {
+                TrustManagerFactory factory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+                factory.init( trustStore == null ? null : loadTrustStore( trustStore, trustStorePassword, trustStoreType ) );
+                trustManagers = factory.getTrustManagers();
+            }
+
+            SSLContext context = SSLContext.getInstance( "TLS" );
+            context.init( null, trustManagers, null );
+
+            // Keep the sessions of all connections in one cache, so that new connections can resume them
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize( sessionCacheSize );
+            sessions.setSessionTimeout( sessionTimeoutSeconds );
+
+            return new LdapTls( context, protocols, trustAll );
+        }
+        catch ( GeneralSecurityException | IOException e )
+        {
+            throw new IllegalStateException( "Failed to set up TLS for LDAP: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Use this context for all new TLS connections to the LDAP server.
+     */
+    void install()
+    {
+        LdapSslSocketFactory.configure( context, protocols );
+    }
+
+    /**
+     * @return the host name verifier for StartTLS, or null to use the default verification
+     */
+    HostnameVerifier startTlsHostnameVerifier()
+    {
+        return trustAll ? ANY_HOSTNAME : null;
+    }
+
+    private static KeyStore loadTrustStore( Path path, char[] password, String type ) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = KeyStore.getInstance( type == null ? KeyStore.getDefaultType() : type );
+        try ( InputStream input = Files.newInputStream( path ) )
+        {
+            keyStore.load( input, password );
+        }
+        return keyStore;
+    }
+
+    /**
+     * Accepts any certificate. Being an extended trust manager also turns off the host name check for ldaps,
+     * which the JDK otherwise does as part of trusting the server.
+     */
+    private static final class TrustAllManager extends X509ExtendedTrustManager
+    {
+        @Override
+        public void checkClientTrusted( X509Certificate[] chain, String authType, Socket socket )
+        {
+        }
+
+        @Override
+        public void checkServerTrusted( X509Certificate[] chain, String authType, Socket socket )
+        {
+        }
+
+        @Override
+        public void checkClientTrusted( X509Certificate[] chain, String authType, SSLEngine engine )
+        {
+        }
+
+        @Override
+        public void checkServerTrusted( X509Certificate[] chain, String authType, SSLEngine engine )
+        {
+        }
+
+        @Override
+        public void checkClientTrusted( X509Certificate[] chain, String authType )
+        {
+        }
+
+        @Override
+        public void checkServerTrusted( X509Certificate[] chain, String authType )
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.neo4j.example.auth.plugin.audit.AuditLog;
+
+/**
+ * Counts the logins of an auth plugin by outcome, and keeps a {@link LatencyHistogram} of how long they
+ * take, in total and for each phase the plugin reports. Plugins look up their histograms once and keep
+ * them, so that recording a login is no more than a few striped increments.
+ *
+ * There is one instance per plugin for the lifetime of the JVM, so the numbers survive the plugin being
+ * initialized again. They are reported by {@link AuthMetricsProcedures}.
+ */
+public final class AuthMetrics
+{
+    /**
+     * The phase that every login is recorded in, from start to end.
+     */
+    public static final String TOTAL = "total";
+
+    private static final ConcurrentMap<String,AuthMetrics> metricsByPlugin = new ConcurrentSkipListMap<>();
+
+    private final String plugin;
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final ConcurrentMap<String,LatencyHistogram> phases = new ConcurrentHashMap<>();
+
+    private AuthMetrics( String plugin )
+    {
+        this.plugin = plugin;
+        phases.put( TOTAL, total );
+    }
+
+    public static AuthMetrics forPlugin( String plugin )
+    {
+        return metricsByPlugin.computeIfAbsent( plugin, AuthMetrics::new );
+    }
+
+    /**
+     * @return the metrics of every plugin, ordered by plugin name
+     */
+    public static Collection<AuthMetrics> all()
+    {
+        return Collections.unmodifiableCollection( metricsByPlugin.values() );
+    }
+
+    public String plugin()
+    {
+        return plugin;
+    }
+
+    /**
+     * @return the histogram of a phase of logins, such as a bind or a decryption
+     */
+    public LatencyHistogram phase( String name )
+    {
+        return phases.computeIfAbsent( name, n -> new LatencyHistogram() );
+    }
+
+    /**
+     * @return the histograms of all phases, including {@value #TOTAL}
+     */
+    public Map<String,LatencyHistogram> phases()
+    {
+        return Collections.unmodifiableMap( phases );
+    }
+
+    public void recordLogin( AuditLog.Outcome outcome, long latencyNanos )
+    {
+        switch ( outcome )
+        {
+        case SUCCESS:
+            successes.increment();
+            break;
+        case FAILURE:
+            failures.increment();
+            break;
+        default:
+            errors.increment();
+            break;
+        }
+        total.record( latencyNanos );
+    }
+
+    public long successes()
+    {
+        return successes.sum();
+    }
+
+    public long failures()
+    {
+        return failures.sum();
+    }
+
+    public long errors()
+    {
+        return errors.sum();
+    }
+
+    /**
+     * Clear the histograms of all phases. The login counters keep counting.
+     */
+    public void resetLatencies()
+    {
+        phases.values().forEach( LatencyHistogram::reset );
+    }
+}
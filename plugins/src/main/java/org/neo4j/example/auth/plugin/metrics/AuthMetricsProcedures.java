@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Procedure;
+
+public class AuthMetricsProcedures
+{
+    private static final double NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos( 1 );
+
+    @Procedure( name = "authPluginLogins", mode = Mode.DBMS )
+    public Stream<LoginCounts> authPluginLogins()
+    {
+        return AuthMetrics.all().stream().map( LoginCounts::new );
+    }
+
+    /**
+     * One row for every phase of every plugin, with the latencies in microseconds.
+     */
+    @Procedure( name = "authPluginLatencies", mode = Mode.DBMS )
+    public Stream<Latencies> authPluginLatencies()
+    {
+        return AuthMetrics.all().stream().flatMap( metrics -> metrics.phases().entrySet().stream()
+                .sorted( Map.Entry.comparingByKey() )
+                .map( phase -> new Latencies( metrics.plugin(), phase.getKey(), phase.getValue().snapshot() ) ) );
+    }
+
+    @Procedure( name = "resetAuthPluginLatencies", mode = Mode.DBMS )
+    public void resetAuthPluginLatencies()
+    {
+        AuthMetrics.all().forEach( AuthMetrics::resetLatencies );
+    }
+
+    public static class LoginCounts
+    {
+        public final String plugin;
+        public final long successes;
+        public final long failures;
+        public final long errors;
+
+        LoginCounts( AuthMetrics metrics )
+        {
+            plugin = metrics.plugin();
+            successes = metrics.successes();
+            failures = metrics.failures();
+            errors = metrics.errors();
+        }
+    }
+
+    public static class Latencies
+    {
+        public final String plugin;
+        public final String phase;
+        public final long count;
+        public final double meanMicros;
+        public final double p50Micros;
+        public final double p99Micros;
+        public final double p999Micros;
+        public final double maxMicros;
+
+        Latencies( String plugin, String phase, LatencyHistogram.Snapshot snapshot )
+        {
+            this.plugin = plugin;
+            this.phase = phase;
+            count = snapshot.count();
+            meanMicros = snapshot.mean() / NANOS_PER_MICRO;
+            p50Micros = snapshot.valueAt( 0.5 ) / NANOS_PER_MICRO;
+            p99Micros = snapshot.valueAt( 0.99 ) / NANOS_PER_MICRO;
+            p999Micros = snapshot.valueAt( 0.999 ) / NANOS_PER_MICRO;
+            maxMicros = snapshot.max() / NANOS_PER_MICRO;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, cheap enough to record every login in.
+ *
+ * Buckets are log-linear: every power of two is split into 32 buckets, so a percentile is off by at most
+ * about 3% of its value. Latencies from a nanosecond up to about a minute are told apart, anything longer
+ * lands in the last bucket. Recording neither allocates nor takes a lock. To keep threads from contending
+ * on the same counters the buckets are striped, with threads spread over the stripes by their id, and the
+ * stripes are merged when a {@link #snapshot()} is taken.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below twice the number of sub buckets get a bucket of their own
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private static final int MAX_EXPONENT = 35;
+    private static final long MAX_TRACKABLE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = bucketOf( MAX_TRACKABLE ) + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    public LatencyHistogram()
+    {
+        // Enough stripes for the threads to rarely share one, without making snapshots slow
+        int stripeCount = Integer.highestOneBit( Math.min( 16, Runtime.getRuntime().availableProcessors() * 2 - 1 ) ) << 1;
+        stripes = new AtomicLongArray[stripeCount];
+        for ( int i = 0; i < stripeCount; i++ )
+        {
+            stripes[i] = new AtomicLongArray( BUCKETS );
+        }
+        stripeMask = stripeCount - 1;
+    }
+
+    public void record( long nanos )
+    {
+        long value = Math.max( 0, nanos );
+        stripes[stripe()].incrementAndGet( bucketOf( Math.min( value, MAX_TRACKABLE ) ) );
+        sum.add( value );
+        max.accumulate( value );
+    }
+
+    /**
+     * Clear the histogram. Latencies recorded while it is being cleared may partly survive.
+     */
+    public void reset()
+    {
+        for ( AtomicLongArray stripe : stripes )
+        {
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                stripe.set( i, 0 );
+            }
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * @return the merged counts of all stripes
+     */
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for ( AtomicLongArray stripe : stripes )
+        {
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                long count = stripe.get( i );
+                counts[i] += count;
+                total += count;
+            }
+        }
+        return new Snapshot( counts, total, sum.sum(), max.get() );
+    }
+
+    private int stripe()
+    {
+        long id = Thread.currentThread().getId();
+        // Thread ids are mostly consecutive, mix them so they spread over the stripes
+        id *= 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & stripeMask;
+    }
+
+    private static int bucketOf( long value )
+    {
+        if ( value < LINEAR_BUCKETS )
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The top bit is always set at this point, what remains are the SUB_BUCKET_BITS below it
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value that lands in the bucket
+     */
+    private static long highestValueOf( int bucket )
+    {
+        if ( bucket < LINEAR_BUCKETS )
+        {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static final class Snapshot
+    {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot( long[] counts, long count, long sum, long max )
+        {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count()
+        {
+            return count;
+        }
+
+        /**
+         * @param quantile between 0 and 1, such as 0.99 for the 99th percentile
+         * @return the latency in nanoseconds that the given share of the recorded latencies did not exceed,
+         * or 0 if nothing has been recorded
+         */
+        public long valueAt( double quantile )
+        {
+            if ( count == 0 )
+            {
+                return 0;
+            }
+            long rank = Math.max( 1, (long) Math.ceil( quantile * count ) );
+            long seen = 0;
+            for ( int bucket = 0; bucket < counts.length; bucket++ )
+            {
+                seen += counts[bucket];
+                if ( seen >= rank )
+                {
+                    // Never report more than was actually recorded, the bucket may be much wider than that
+                    return Math.min( highestValueOf( bucket ), max );
+                }
+            }
+            return max;
+        }
+
+        public double mean()
+        {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        public long max()
+        {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Turns an X.509 client certificate into a user, if it chains up to one of the configured CA certificates.
+ * The user is named by one attribute of the subject, by default the common name, and gets every value of
+ * another attribute as a role, by default the organizational units. Such users do not have to be registered
+ * in the {@link PkiRepository}.
+ *
+ * A certificate only says who its owner is, anyone may present it, so the login still has to prove possession
+ * of the private key with a signature or an encrypted token, exactly like a registered user.
+ *
+ * Building and validating the certificate path is by far the most expensive part, so successful validations
+ * are cached by the SHA-256 fingerprint of the certificate. A cached certificate is validated again once the
+ * cache entry has expired, or as soon as any certificate on its path has expired. Revocation is not checked.
+ */
+final class CertificateValidator
+{
+    private static final int DIGITAL_SIGNATURE = 0;
+    private static final String CLIENT_AUTH = "1.3.6.1.5.5.7.3.2";
+    private static final String ANY_EXTENDED_KEY_USAGE = "2.5.29.37.0";
+
+    private final Set<TrustAnchor> trustAnchors;
+    private final String principalAttribute;
+    private final String rolesAttribute;
+    private final int cacheMaxSize;
+    private final long cacheTtlMillis;
+    private final Clock clock;
+    private final Map<ByteBuffer,Entry> validated = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    CertificateValidator( Collection<X509Certificate> caCertificates, String principalAttribute, String rolesAttribute,
+            int cacheMaxSize, Duration cacheTtl, Clock clock )
+    {
+        if ( caCertificates.isEmpty() )
+        {
+            throw new IllegalStateException( "At least one CA certificate is needed to validate client certificates" );
+        }
+        Set<TrustAnchor> anchors = new HashSet<>();
+        for ( X509Certificate caCertificate : caCertificates )
+        {
+            anchors.add( new TrustAnchor( caCertificate, null ) );
+        }
+        this.trustAnchors = anchors;
+        this.principalAttribute = principalAttribute;
+        this.rolesAttribute = rolesAttribute;
+        this.cacheMaxSize = cacheMaxSize;
+        this.cacheTtlMillis = cacheTtl.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @param caCertificates a file with the PEM or DER encoded certificates of the trusted CAs
+     */
+    static CertificateValidator load( Path caCertificates, String principalAttribute, String rolesAttribute,
+            int cacheMaxSize, Duration cacheTtl, Clock clock )
+    {
+        try ( InputStream input = Files.newInputStream( caCertificates ) )
+        {
+            List<X509Certificate> certificates = new ArrayList<>();
+            for ( Certificate certificate : CertificateFactory.getInstance( "X.509" ).generateCertificates( input ) )
+            {
+                certificates.add( (X509Certificate) certificate );
+            }
+            return new CertificateValidator( certificates, principalAttribute, rolesAttribute, cacheMaxSize, cacheTtl, clock );
+        }
+        catch ( GeneralSecurityException | IOException e )
+        {
+            throw new IllegalStateException( "Failed to read CA certificates from '" + caCertificates + "': " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * @param base64EncodedCertificate the DER encoded client certificate
+     * @param chain the intermediate CA certificates to build the path with, as one or a list of Base64 encoded
+     * DER certificates, or null if the client certificate is issued by a trusted CA directly
+     * @return the user of the certificate, or null if the certificate is invalid or not issued to that user
+     */
+    UserInfo userInfo( String username, String base64EncodedCertificate, Object chain )
+    {
+        LoginBuffers buffers = LoginBuffers.get();
+        int length = buffers.decodeToken( base64EncodedCertificate );
+        if ( length < 0 )
+        {
+            return null;
+        }
+        buffers.sha256().update( buffers.token(), 0, length );
+        byte[] fingerprint = buffers.completeDigest();
+
+        long now = clock.millis();
+        Entry entry = validated.get( ByteBuffer.wrap( fingerprint ) );
+        if ( entry != null && entry.expiresAt > now )
+        {
+            hits.increment();
+            return entry.principal.equals( username ) ? entry.userInfo : null;
+        }
+        misses.increment();
+
+        // The buffers are reused for the rest of the login, so the key and the certificate are copied out
+        ByteBuffer key = ByteBuffer.wrap( fingerprint.clone() );
+        entry = validate( Arrays.copyOf( buffers.token(), length ), chain, now );
+        if ( entry == null )
+        {
+            return null;
+        }
+        if ( cacheMaxSize > 0 && cacheTtlMillis > 0 )
+        {
+            if ( validated.size() >= cacheMaxSize && !validated.containsKey( key ) )
+            {
+                makeRoom( now );
+            }
+            validated.put( key, entry );
+        }
+        return entry.principal.equals( username ) ? entry.userInfo : null;
+    }
+
+    long size()
+    {
+        return validated.size();
+    }
+
+    long hits()
+    {
+        return hits.sum();
+    }
+
+    long misses()
+    {
+        return misses.sum();
+    }
+
+    long evictions()
+    {
+        return evictions.sum();
+    }
+
+    int cacheMaxSize()
+    {
+        return cacheMaxSize;
+    }
+
+    Duration cacheTtl()
+    {
+        return Duration.ofMillis( cacheTtlMillis );
+    }
+
+    private Entry validate( byte[] encodedCertificate, Object chain, long now )
+    {
+        try
+        {
+            CertificateFactory factory = CertificateFactory.getInstance( "X.509" );
+            X509Certificate certificate = parse( factory, encodedCertificate );
+            if ( !isForClientAuthentication( certificate ) )
+            {
+                return null;
+            }
+            List<X509Certificate> certificates = new ArrayList<>();
+            certificates.add( certificate );
+            for ( String intermediate : chainOf( chain ) )
+            {
+                certificates.add( parse( factory, Base64.getDecoder().decode( intermediate ) ) );
+            }
+
+            X509CertSelector target = new X509CertSelector();
+            target.setCertificate( certificate );
+            PKIXBuilderParameters parameters = new PKIXBuilderParameters( trustAnchors, target );
+            parameters.setRevocationEnabled( false );
+            parameters.setDate( new Date( now ) );
+            parameters.addCertStore( CertStore.getInstance( "Collection", new CollectionCertStoreParameters( certificates ) ) );
+            PKIXCertPathBuilderResult result = (PKIXCertPathBuilderResult) CertPathBuilder.getInstance( "PKIX" ).build( parameters );
+
+            // The path is valid until its first certificate expires
+            long expiresAt = now + cacheTtlMillis;
+            for ( Certificate onPath : result.getCertPath().getCertificates() )
+            {
+                expiresAt = Math.min( expiresAt, ((X509Certificate) onPath).getNotAfter().getTime() );
+            }
+            X509Certificate anchor = result.getTrustAnchor().getTrustedCert();
+            if ( anchor != null )
+            {
+                expiresAt = Math.min( expiresAt, anchor.getNotAfter().getTime() );
+            }
+
+            LdapName subject = new LdapName( certificate.getSubjectX500Principal().getName( X500Principal.RFC2253 ) );
+            List<String> principals = attributeValues( subject, principalAttribute );
+            if ( principals.size() != 1 )
+            {
+                return null;
+            }
+            KeyAlgorithm algorithm = KeyAlgorithm.of( certificate.getPublicKey().getEncoded() );
+            UserInfo userInfo = new UserInfo( certificate.getPublicKey(), algorithm, Set.copyOf( attributeValues( subject, rolesAttribute ) ) );
+            return new Entry( principals.get( 0 ), userInfo, expiresAt );
+        }
+        catch ( GeneralSecurityException | NamingException | IllegalArgumentException | ClassCastException e )
+        {
+            // Not a certificate, not a supported key, or no valid path to a trusted CA
+            return null;
+        }
+    }
+
+    private static X509Certificate parse( CertificateFactory factory, byte[] encoded ) throws GeneralSecurityException
+    {
+        return (X509Certificate) factory.generateCertificate( new ByteArrayInputStream( encoded ) );
+    }
+
+    private static List<String> chainOf( Object chain )
+    {
+        if ( chain == null )
+        {
+            return List.of();
+        }
+        if ( chain instanceof String )
+        {
+            return List.of( (String) chain );
+        }
+        List<String> certificates = new ArrayList<>();
+        for ( Object certificate : (List<?>) chain )
+        {
+            certificates.add( (String) certificate );
+        }
+        return certificates;
+    }
+
+    /**
+     * A certificate that restricts what its key is for has to allow signatures and client authentication.
+     */
+    private static boolean isForClientAuthentication( X509Certificate certificate ) throws GeneralSecurityException
+    {
+        boolean[] keyUsage = certificate.getKeyUsage();
+        if ( keyUsage != null && !keyUsage[DIGITAL_SIGNATURE] )
+        {
+            return false;
+        }
+        List<String> extendedKeyUsage = certificate.getExtendedKeyUsage();
+        return extendedKeyUsage == null || extendedKeyUsage.contains( CLIENT_AUTH ) ||
+               extendedKeyUsage.contains( ANY_EXTENDED_KEY_USAGE );
+    }
+
+    private static List<String> attributeValues( LdapName name, String attributeType ) throws NamingException
+    {
+        List<String> values = new ArrayList<>();
+        for ( Rdn rdn : name.getRdns() )
+        {
+            // An RDN may have several attributes, such as OU=admin+CN=neo
+            Attribute attribute = rdn.toAttributes().get( attributeType );
+            if ( attribute != null )
+            {
+                NamingEnumeration<?> all = attribute.getAll();
+                while ( all.hasMore() )
+                {
+                    Object value = all.next();
+                    if ( !(value instanceof String) )
+                    {
+                        throw new InvalidNameException( "Attribute " + attributeType + " is not a string" );
+                    }
+                    values.add( (String) value );
+                }
+            }
+        }
+        return values;
+    }
+
+    private void makeRoom( long now )
+    {
+        // Same as the token cache, expired entries first, then arbitrary ones
+        validated.values().removeIf( entry -> entry.expiresAt <= now );
+        Iterator<Entry> iterator = validated.values().iterator();
+        while ( validated.size() >= cacheMaxSize && iterator.hasNext() )
+        {
+            iterator.next();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String principal;
+        private final UserInfo userInfo;
+        private final long expiresAt;
+
+        Entry( String principal, UserInfo userInfo, long expiresAt )
+        {
+            this.principal = principal;
+            this.userInfo = userInfo;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
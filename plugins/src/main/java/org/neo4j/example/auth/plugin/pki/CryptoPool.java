@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.crypto.Cipher;
+
+/**
+ * A small pool of crypto primitives, such as a {@link Cipher} or a {@link java.security.Signature},
+ * that are already initialized with one key.
+ *
+ * These objects are not thread safe, but once initialized they can be reused for any number of
+ * operations. Pooling them per key means that a login only pays for the provider lookup and key
+ * setup the first time a thread needs one for that user.
+ *
+ * @param <T> the type of the pooled primitive
+ */
+class CryptoPool<T>
+{
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+    private final Factory<T> factory;
+    private final BlockingQueue<T> idle = new ArrayBlockingQueue<>( MAX_IDLE );
+    private volatile boolean closed;
+
+    CryptoPool( Factory<T> factory )
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Get an initialized primitive. It should be handed back with {@link #release(Object)} once done,
+     * unless it failed, in which case it should just be dropped.
+     */
+    T acquire() throws GeneralSecurityException
+    {
+        T primitive = idle.poll();
+        return primitive != null ? primitive : factory.create();
+    }
+
+    void release( T primitive )
+    {
+        if ( !closed )
+        {
+            // If the pool is already full the primitive is simply left for the garbage collector
+            idle.offer( primitive );
+        }
+    }
+
+    /**
+     * Drop all pooled primitives and stop accepting released ones, e.g. when the owning user is removed.
+     */
+    void close()
+    {
+        closed = true;
+        idle.clear();
+    }
+
+    @FunctionalInterface
+    interface Factory<T>
+    {
+        T create() throws GeneralSecurityException;
+    }
+}
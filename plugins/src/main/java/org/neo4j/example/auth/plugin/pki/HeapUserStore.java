@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps every user as a {@link UserInfo} on the heap, with its key parsed once it has been used.
+ */
+final class HeapUserStore implements UserStore
+{
+    /**
+     * Changed in place. A batch is applied under the write lock, which lookups validate their read against, so
+     * that all users of a batch become visible at once without copying the users that are not in it.
+     */
+    private final Map<String,UserInfo> users = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+
+    @Override
+    public UserInfo get( String username )
+    {
+        return read( username );
+    }
+
+    @Override
+    public boolean contains( String username )
+    {
+        return read( username ) != null;
+    }
+
+    @Override
+    public boolean holds( String username, UserInfo info )
+    {
+        UserInfo current = read( username );
+        return current != null && current.getAlgorithm() == info.getAlgorithm() &&
+               current.getRoles().equals( info.getRoles() ) && Arrays.equals( current.getEncodedKey(), info.getEncodedKey() );
+    }
+
+    @Override
+    public UserInfo put( String username, UserInfo info )
+    {
+        return users.put( username, info );
+    }
+
+    @Override
+    public UserInfo remove( String username )
+    {
+        return users.remove( username );
+    }
+
+    @Override
+    public List<UserInfo> apply( Map<String,UserInfo> changes )
+    {
+        List<UserInfo> replaced = new ArrayList<>();
+        long stamp = lock.writeLock();
+        try
+        {
+            for ( Map.Entry<String,UserInfo> change : changes.entrySet() )
+            {
+                UserInfo current = change.getValue() == null ? users.remove( change.getKey() )
+                                                             : users.put( change.getKey(), change.getValue() );
+                if ( current != null )
+                {
+                    replaced.add( current );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+        return replaced;
+    }
+
+    @Override
+    public long size()
+    {
+        return users.size();
+    }
+
+    @Override
+    public Collection<Map.Entry<String,UserInfo>> snapshot()
+    {
+        long stamp = lock.readLock();
+        try
+        {
+            return new ArrayList<>( users.entrySet() );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    @Override
+    public void clear()
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            users.values().forEach( UserInfo::close );
+            users.clear();
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    /**
+     * Read without locking, unless a batch was applied meanwhile, in which case the read is repeated once the
+     * whole batch is visible.
+     */
+    private UserInfo read( String username )
+    {
+        long stamp = lock.tryOptimisticRead();
+        if ( stamp != 0 )
+        {
+            UserInfo info = users.get( username );
+            if ( lock.validate( stamp ) )
+            {
+                return info;
+            }
+        }
+        stamp = lock.readLock();
+        try
+        {
+            return users.get( username );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.util.Arrays;
+
+/**
+ * The public key algorithms supported by the PKI plugin, along with the signature algorithm used to
+ * verify login tokens signed with the matching private key.
+ */
+public enum KeyAlgorithm
+{
+    RSA( "RSA", "SHA256withRSA", 0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x01, 0x01, 0x01 ), // 1.2.840.113549.1.1.1
+    EC( "EC", "SHA256withECDSA", 0x2A, 0x86, 0x48, 0xCE, 0x3D, 0x02, 0x01 ),              // 1.2.840.10045.2.1
+    ED25519( "Ed25519", "Ed25519", 0x2B, 0x65, 0x70 ),                                     // 1.3.101.112
+    ED448( "Ed448", "Ed448", 0x2B, 0x65, 0x71 );                                           // 1.3.101.113
+
+    private static final int SEQUENCE = 0x30;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+
+    private final String keyFactoryAlgorithm;
+    private final String signatureAlgorithm;
+    private final byte[] oid;
+
+    KeyAlgorithm( String keyFactoryAlgorithm, String signatureAlgorithm, int... oid )
+    {
+        this.keyFactoryAlgorithm = keyFactoryAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.oid = new byte[oid.length];
+        for ( int i = 0; i < oid.length; i++ )
+        {
+            this.oid[i] = (byte) oid[i];
+        }
+    }
+
+    public String keyFactoryAlgorithm()
+    {
+        return keyFactoryAlgorithm;
+    }
+
+    public String signatureAlgorithm()
+    {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * Detect the algorithm of an X.509 encoded public key from the algorithm identifier of its
+     * SubjectPublicKeyInfo, without parsing the key itself.
+     *
+     * @param subjectPublicKeyInfo DER encoded SubjectPublicKeyInfo, as returned by {@code PublicKey.getEncoded()}
+     * @return the algorithm of the key
+     * @throws IllegalArgumentException if the encoding is malformed or the algorithm is not supported
+     */
+    public static KeyAlgorithm of( byte[] subjectPublicKeyInfo )
+    {
+        // SubjectPublicKeyInfo ::= SEQUENCE { algorithm AlgorithmIdentifier, subjectPublicKey BIT STRING }
+        // AlgorithmIdentifier  ::= SEQUENCE { algorithm OBJECT IDENTIFIER, parameters ANY OPTIONAL }
+        int offset = contentOffset( subjectPublicKeyInfo, 0, SEQUENCE );
+        offset = contentOffset( subjectPublicKeyInfo, offset, SEQUENCE );
+        int oidOffset = contentOffset( subjectPublicKeyInfo, offset, OBJECT_IDENTIFIER );
+        int oidLength = subjectPublicKeyInfo[offset + 1];
+        if ( oidLength < 0 || oidOffset + oidLength > subjectPublicKeyInfo.length )
+        {
+            throw new IllegalArgumentException( "Malformed public key algorithm identifier" );
+        }
+
+        for ( KeyAlgorithm algorithm : values() )
+        {
+            if ( Arrays.equals( subjectPublicKeyInfo, oidOffset, oidOffset + oidLength,
+                    algorithm.oid, 0, algorithm.oid.length ) )
+            {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException( "Unsupported public key algorithm" );
+    }
+
+    private static int contentOffset( byte[] der, int offset, int expectedTag )
+    {
+        if ( offset + 2 > der.length || (der[offset] & 0xFF) != expectedTag )
+        {
+            throw new IllegalArgumentException( "Malformed public key, expected DER tag " + expectedTag );
+        }
+        int length = der[offset + 1] & 0xFF;
+        // In the long form the low bits tell how many length octets follow, we only need to skip them
+        return offset + 2 + (length > 0x80 ? length & 0x7F : 0);
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch space for logins, so that decoding, decrypting and digesting a token does not
+ * allocate once a thread has warmed up.
+ *
+ * The buffers are only valid until the next call on the same thread, so nothing read from them may be
+ * kept beyond the login that produced it.
+ */
+final class LoginBuffers
+{
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int INVALID = -1;
+    private static final int PADDING = -2;
+    static final int MAX_NONCE_LENGTH = 128;
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static
+    {
+        Arrays.fill( BASE64_VALUES, INVALID );
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for ( int i = 0; i < alphabet.length(); i++ )
+        {
+            BASE64_VALUES[alphabet.charAt( i )] = i;
+        }
+        BASE64_VALUES['='] = PADDING;
+    }
+
+    private static final ThreadLocal<LoginBuffers> buffers = ThreadLocal.withInitial( LoginBuffers::new );
+
+    private final MessageDigest sha256;
+    private final byte[] digest;
+    private final byte[] decimal = new byte[20];
+    private byte[] token = new byte[INITIAL_CAPACITY];
+    private byte[] output = new byte[INITIAL_CAPACITY];
+    private byte[] message = new byte[INITIAL_CAPACITY];
+
+    private LoginBuffers()
+    {
+        try
+        {
+            sha256 = MessageDigest.getInstance( VerifiedTokenCache.DIGEST_ALGORITHM );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        digest = new byte[sha256.getDigestLength()];
+    }
+
+    static LoginBuffers get()
+    {
+        return buffers.get();
+    }
+
+    /**
+     * Decode a standard Base64 string into {@link #token()}. Padding is accepted but not required.
+     *
+     * @return the number of decoded bytes, or -1 if the string is not valid Base64
+     */
+    int decodeToken( String encoded )
+    {
+        int length = encoded.length();
+        if ( token.length < length / 4 * 3 + 2 )
+        {
+            token = new byte[length / 4 * 3 + 2];
+        }
+
+        int bits = 0;
+        int bitCount = 0;
+        int decoded = 0;
+        int end = length;
+        while ( end > 0 && encoded.charAt( end - 1 ) == '=' )
+        {
+            end--;
+        }
+        if ( length - end > 2 || (length != end && length % 4 != 0) )
+        {
+            return INVALID;
+        }
+        for ( int i = 0; i < end; i++ )
+        {
+            char c = encoded.charAt( i );
+            int value = c < 128 ? BASE64_VALUES[c] : INVALID;
+            if ( value < 0 )
+            {
+                return INVALID;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if ( bitCount >= 8 )
+            {
+                bitCount -= 8;
+                token[decoded++] = (byte) (bits >> bitCount);
+            }
+        }
+        // A single dangling character cannot encode a whole byte
+        return end % 4 == 1 ? INVALID : decoded;
+    }
+
+    byte[] token()
+    {
+        return token;
+    }
+
+    /**
+     * @return a buffer of at least the given size for crypto output
+     */
+    byte[] output( int size )
+    {
+        if ( output.length < size )
+        {
+            output = new byte[size];
+        }
+        return output;
+    }
+
+    /**
+     * @return the shared digest, reset and ready to be updated
+     */
+    MessageDigest sha256()
+    {
+        sha256.reset();
+        return sha256;
+    }
+
+    /**
+     * Complete the digest returned by {@link #sha256()} into a shared buffer.
+     */
+    byte[] completeDigest()
+    {
+        try
+        {
+            sha256.digest( digest, 0, digest.length );
+            return digest;
+        }
+        catch ( DigestException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Write the decimal representation of a number as ASCII into a shared buffer, the same bytes as
+     * {@code Long.toString( value ).getBytes( UTF_8 )} but without allocating.
+     *
+     * @return the number of bytes written, starting at {@link #decimal()}{@code [0]}
+     */
+    int writeDecimal( long value )
+    {
+        if ( value == Long.MIN_VALUE )
+        {
+            // Cannot be negated, and is far outside any acceptable timestamp anyway
+            return writeDecimal( value + 1 );
+        }
+        int length = 0;
+        long remaining = Math.abs( value );
+        do
+        {
+            decimal[length++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        while ( remaining > 0 );
+        if ( value < 0 )
+        {
+            decimal[length++] = '-';
+        }
+        for ( int i = 0, j = length - 1; i < j; i++, j-- )
+        {
+            byte swap = decimal[i];
+            decimal[i] = decimal[j];
+            decimal[j] = swap;
+        }
+        return length;
+    }
+
+    byte[] decimal()
+    {
+        return decimal;
+    }
+
+    /**
+     * Write the message of a one-time token, {@code <principal>:<timestamp>:<nonce>} in UTF-8, into a shared
+     * buffer. The nonce has to be printable ASCII of at most {@value #MAX_NONCE_LENGTH} characters.
+     *
+     * @return the number of bytes written, starting at {@link #message()}{@code [0]}, or -1 if the nonce is invalid
+     */
+    int writeMessage( byte[] principal, long timestamp, String nonce )
+    {
+        int nonceLength = nonce.length();
+        if ( nonceLength == 0 || nonceLength > MAX_NONCE_LENGTH )
+        {
+            return INVALID;
+        }
+        int timestampLength = writeDecimal( timestamp );
+        int length = principal.length + timestampLength + nonceLength + 2;
+        if ( message.length < length )
+        {
+            message = new byte[length];
+        }
+        System.arraycopy( principal, 0, message, 0, principal.length );
+        int position = principal.length;
+        message[position++] = ':';
+        System.arraycopy( decimal, 0, message, position, timestampLength );
+        position += timestampLength;
+        message[position++] = ':';
+        for ( int i = 0; i < nonceLength; i++ )
+        {
+            char c = nonce.charAt( i );
+            if ( c < '!' || c > '~' )
+            {
+                return INVALID;
+            }
+            message[position++] = (byte) c;
+        }
+        return length;
+    }
+
+    byte[] message()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,730 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps users as compact records outside of the Java heap, so that millions of users take little more memory than
+ * their encoded keys, and none of it is scanned by the garbage collector. Only the users that have logged in
+ * recently are kept as {@link UserInfo} objects with parsed keys, in a {@link UserInfoLru}.
+ *
+ * The records are appended to an arena of direct buffers. A record is
+ * {@code <name length:u16> <name:UTF-16> <algorithm:u8> <key length:u16> <key> <role set:i32>}, where the role set
+ * refers to a table of distinct role sets, of which there are usually only a handful. A replaced or removed record
+ * is left in place until dead records take up more room than live ones, at which point the live ones are copied
+ * into a new arena.
+ *
+ * The records are found through an open-addressing hash table with linear probing in another direct buffer. Each
+ * slot is one long, with the top 24 bits of the hash of the username above the 40 bit address of its record, so
+ * that a lookup only reads the records of names that very likely match.
+ *
+ * Changes are made by one thread at a time. New records and resized tables are prepared beside the ones in use, and
+ * then published under the write lock of a {@link StampedLock}. Lookups read optimistically without locking, and
+ * only take the read lock if a change was published while they were reading.
+ */
+final class OffHeapUserStore implements UserStore
+{
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    private static final int MAX_CHUNK_SIZE = 1 << 26;
+    private static final int MAX_CHUNKS = (1 << 8) - 1;
+    private static final int OFFSET_BITS = 32;
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+    private static final long GENERATION_MASK = (1L << (Long.SIZE - ADDRESS_BITS - 1)) - 1;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final int NOT_FOUND = -1;
+    private static final int MAX_LENGTH = 0xFFFF;
+    private static final int RECORD_OVERHEAD = 9;
+    private static final KeyAlgorithm[] ALGORITHMS = KeyAlgorithm.values();
+
+    private final StampedLock lock = new StampedLock();
+    private final UserInfoLru parsedUsers;
+
+    /**
+     * Read by lookups, and only replaced under the write lock.
+     */
+    private volatile ByteBuffer[] chunks;
+    private volatile LongBuffer slots;
+    private volatile long generation;
+    private volatile int size;
+
+    /**
+     * Replaced by a copy with one more role set, while holding the monitor of this store. Lookups only ask for
+     * role sets of published records, which were added before the record was published.
+     */
+    private volatile List<Set<String>> roleSets = List.of();
+
+    /**
+     * Only used while holding the monitor of this store.
+     */
+    private final Map<Set<String>,Integer> roleSetIds = new HashMap<>();
+    private Arena arena;
+    private int tombstones;
+    private long liveBytes;
+    private long deadBytes;
+
+    OffHeapUserStore( int parsedUsersMaxSize )
+    {
+        this.parsedUsers = new UserInfoLru( parsedUsersMaxSize );
+        reset();
+    }
+
+    @Override
+    public UserInfo get( String username )
+    {
+        long hash = hash( username );
+        long version = versionOf( username, hash );
+        if ( version == NOT_FOUND )
+        {
+            return null;
+        }
+        UserInfo info = parsedUsers.get( username, version );
+        if ( info != null )
+        {
+            return info;
+        }
+
+        long stamp = lock.readLock();
+        try
+        {
+            version = find( username, hash );
+            if ( version == NOT_FOUND )
+            {
+                return null;
+            }
+            info = read( version & ADDRESS_MASK );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+        parsedUsers.put( username, version, info );
+        return info;
+    }
+
+    @Override
+    public boolean contains( String username )
+    {
+        return versionOf( username, hash( username ) ) != NOT_FOUND;
+    }
+
+    @Override
+    public boolean holds( String username, UserInfo info )
+    {
+        long stamp = lock.readLock();
+        try
+        {
+            long version = find( username, hash( username ) );
+            if ( version == NOT_FOUND )
+            {
+                return false;
+            }
+            long address = version & ADDRESS_MASK;
+            ByteBuffer chunk = chunks[chunkOf( address )];
+            int position = offsetOf( address ) + 2 + 2 * username.length();
+            byte[] key = info.getEncodedKey();
+            if ( chunk.get( position ) != info.getAlgorithm().ordinal() || (chunk.getShort( position + 1 ) & 0xFFFF) != key.length )
+            {
+                return false;
+            }
+            position += 3;
+            for ( int i = 0; i < key.length; i++ )
+            {
+                if ( chunk.get( position + i ) != key[i] )
+                {
+                    return false;
+                }
+            }
+            return roleSets.get( chunk.getInt( position + key.length ) ).equals( info.getRoles() );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    @Override
+    public synchronized UserInfo put( String username, UserInfo info )
+    {
+        return apply( Map.of( username, info ) ).stream().findFirst().orElse( null );
+    }
+
+    @Override
+    public synchronized UserInfo remove( String username )
+    {
+        Map<String,UserInfo> removal = new HashMap<>();
+        removal.put( username, null );
+        return apply( removal ).stream().findFirst().orElse( null );
+    }
+
+    @Override
+    public synchronized List<UserInfo> apply( Map<String,UserInfo> changes )
+    {
+        for ( Map.Entry<String,UserInfo> change : changes.entrySet() )
+        {
+            if ( change.getKey().length() > MAX_LENGTH || (change.getValue() != null && change.getValue().getEncodedKey().length > MAX_LENGTH) )
+            {
+                throw new IllegalArgumentException( "Username or key of '" + change.getKey() + "' is too long to store off-heap" );
+            }
+        }
+
+        // The records are written beside the published ones, where no lookup can see them yet
+        long[] addresses = new long[changes.size()];
+        int i = 0;
+        for ( Map.Entry<String,UserInfo> change : changes.entrySet() )
+        {
+            UserInfo info = change.getValue();
+            if ( info == null )
+            {
+                addresses[i++] = EMPTY;
+                continue;
+            }
+            byte[] key = info.getEncodedKey();
+            addresses[i++] = arena.append( change.getKey(), info.getAlgorithm(), key, roleSetId( info.getRoles() ) );
+            liveBytes += RECORD_OVERHEAD + 2 * change.getKey().length() + key.length;
+        }
+        ensureCapacity( changes.size() );
+
+        List<UserInfo> replaced = new ArrayList<>();
+        long stamp = lock.writeLock();
+        try
+        {
+            chunks = arena.chunks;
+            i = 0;
+            for ( String username : changes.keySet() )
+            {
+                long address = addresses[i++];
+                if ( address == EMPTY )
+                {
+                    unpublish( username );
+                }
+                else
+                {
+                    publish( username, address );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+        for ( String username : changes.keySet() )
+        {
+            UserInfo parsed = parsedUsers.remove( username );
+            if ( parsed != null )
+            {
+                replaced.add( parsed );
+            }
+        }
+        compactIfNeeded();
+        return replaced;
+    }
+
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    @Override
+    public Collection<Map.Entry<String,UserInfo>> snapshot()
+    {
+        List<Map.Entry<String,UserInfo>> users = new ArrayList<>();
+        long stamp = lock.readLock();
+        try
+        {
+            LongBuffer table = slots;
+            for ( int slot = 0; slot < table.capacity(); slot++ )
+            {
+                long entry = table.get( slot );
+                if ( entry != EMPTY && entry != TOMBSTONE )
+                {
+                    long address = entry & ADDRESS_MASK;
+                    users.add( Map.entry( nameOf( address ), read( address ) ) );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+        return users;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            reset();
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+        parsedUsers.clear();
+    }
+
+    /**
+     * @return the memory used outside of the heap, for the records and the hash table
+     */
+    long offHeapBytes()
+    {
+        long bytes = (long) slots.capacity() * Long.BYTES;
+        for ( ByteBuffer chunk : chunks )
+        {
+            bytes += chunk == null ? 0 : chunk.capacity();
+        }
+        return bytes;
+    }
+
+    long parsedUsers()
+    {
+        return parsedUsers.size();
+    }
+
+    int parsedUsersMaxSize()
+    {
+        return parsedUsers.maxSize();
+    }
+
+    private void reset()
+    {
+        arena = new Arena();
+        chunks = arena.chunks;
+        slots = newSlots( MIN_CAPACITY );
+        generation = (generation + 1) & GENERATION_MASK;
+        size = 0;
+        tombstones = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    /**
+     * @return the address of the record of the user together with the generation of the arena it is in, or
+     * {@link #NOT_FOUND}
+     */
+    private long versionOf( String username, long hash )
+    {
+        long stamp = lock.tryOptimisticRead();
+        if ( stamp != 0 )
+        {
+            try
+            {
+                long version = find( username, hash );
+                if ( lock.validate( stamp ) )
+                {
+                    return version;
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                // Read a half-published change, which validation would have rejected anyway
+            }
+        }
+        stamp = lock.readLock();
+        try
+        {
+            return find( username, hash );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    private long find( String username, long hash )
+    {
+        long currentGeneration = generation;
+        LongBuffer table = slots;
+        int slot = slotOf( table, chunks, username, hash );
+        return slot == NOT_FOUND ? NOT_FOUND : currentGeneration << ADDRESS_BITS | (table.get( slot ) & ADDRESS_MASK);
+    }
+
+    private static int slotOf( LongBuffer table, ByteBuffer[] arena, String username, long hash )
+    {
+        int mask = table.capacity() - 1;
+        long tag = hash >>> ADDRESS_BITS;
+        int slot = (int) hash & mask;
+        for ( int probes = 0; probes <= mask; probes++ )
+        {
+            long entry = table.get( slot );
+            if ( entry == EMPTY )
+            {
+                return NOT_FOUND;
+            }
+            if ( entry != TOMBSTONE && entry >>> ADDRESS_BITS == tag && nameEquals( arena, entry & ADDRESS_MASK, username ) )
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    private static boolean nameEquals( ByteBuffer[] arena, long address, String username )
+    {
+        ByteBuffer chunk = arena[chunkOf( address )];
+        int offset = offsetOf( address );
+        int length = username.length();
+        if ( (chunk.getShort( offset ) & 0xFFFF) != length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( chunk.getChar( offset + 2 + 2 * i ) != username.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String nameOf( long address )
+    {
+        ByteBuffer chunk = chunks[chunkOf( address )];
+        int offset = offsetOf( address );
+        char[] name = new char[chunk.getShort( offset ) & 0xFFFF];
+        for ( int i = 0; i < name.length; i++ )
+        {
+            name[i] = chunk.getChar( offset + 2 + 2 * i );
+        }
+        return new String( name );
+    }
+
+    /**
+     * Create a user from its record, which defers parsing the key until it is needed.
+     */
+    private UserInfo read( long address )
+    {
+        ByteBuffer chunk = chunks[chunkOf( address )];
+        int position = offsetOf( address ) + 2 + 2 * (chunk.getShort( offsetOf( address ) ) & 0xFFFF);
+        KeyAlgorithm algorithm = ALGORITHMS[chunk.get( position )];
+        byte[] key = new byte[chunk.getShort( position + 1 ) & 0xFFFF];
+        chunk.get( position + 3, key );
+        return new UserInfo( key, algorithm, roleSets.get( chunk.getInt( position + 3 + key.length ) ) );
+    }
+
+    private int roleSetId( Set<String> roles )
+    {
+        Set<String> roleSet = Set.copyOf( roles );
+        Integer id = roleSetIds.get( roleSet );
+        if ( id == null )
+        {
+            id = roleSets.size();
+            List<Set<String>> grown = new ArrayList<>( roleSets );
+            grown.add( roleSet );
+            roleSets = List.copyOf( grown );
+            roleSetIds.put( roleSet, id );
+        }
+        return id;
+    }
+
+    /**
+     * Point the slot of the user at a new record, under the write lock.
+     */
+    private void publish( String username, long address )
+    {
+        long hash = hash( username );
+        LongBuffer table = slots;
+        long entry = hash >>> ADDRESS_BITS << ADDRESS_BITS | address;
+        int slot = slotOf( table, chunks, username, hash );
+        if ( slot != NOT_FOUND )
+        {
+            release( table.get( slot ) & ADDRESS_MASK );
+            table.put( slot, entry );
+            return;
+        }
+        int mask = table.capacity() - 1;
+        slot = (int) hash & mask;
+        while ( table.get( slot ) != EMPTY && table.get( slot ) != TOMBSTONE )
+        {
+            slot = (slot + 1) & mask;
+        }
+        if ( table.get( slot ) == TOMBSTONE )
+        {
+            tombstones--;
+        }
+        table.put( slot, entry );
+        size++;
+    }
+
+    /**
+     * Remove the user from the table, under the write lock.
+     */
+    private void unpublish( String username )
+    {
+        LongBuffer table = slots;
+        int slot = slotOf( table, chunks, username, hash( username ) );
+        if ( slot != NOT_FOUND )
+        {
+            release( table.get( slot ) & ADDRESS_MASK );
+            table.put( slot, TOMBSTONE );
+            tombstones++;
+            size--;
+        }
+    }
+
+    private void release( long address )
+    {
+        int length = recordLength( chunks, address );
+        liveBytes -= length;
+        deadBytes += length;
+    }
+
+    /**
+     * Make room in the table for the given number of new users, which may take a while for a large table, so
+     * the new table is built beside the one in use and only swapped in under the write lock.
+     */
+    private void ensureCapacity( int additional )
+    {
+        long needed = (long) size + tombstones + additional;
+        if ( needed * 4 <= (long) slots.capacity() * 3 )
+        {
+            return;
+        }
+        LongBuffer table = slots;
+        LongBuffer rehashed = newSlots( capacityFor( (long) size + additional ) );
+        int mask = rehashed.capacity() - 1;
+        for ( int i = 0; i < table.capacity(); i++ )
+        {
+            long entry = table.get( i );
+            if ( entry != EMPTY && entry != TOMBSTONE )
+            {
+                int slot = (int) mix( nameHashCode( chunks, entry & ADDRESS_MASK ) ) & mask;
+                while ( rehashed.get( slot ) != EMPTY )
+                {
+                    slot = (slot + 1) & mask;
+                }
+                rehashed.put( slot, entry );
+            }
+        }
+        long stamp = lock.writeLock();
+        try
+        {
+            slots = rehashed;
+            tombstones = 0;
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    /**
+     * Copy the live records into a new arena once the dead ones take up more room. Their addresses change, so
+     * the generation is bumped, which retires all cached users.
+     */
+    private void compactIfNeeded()
+    {
+        if ( deadBytes <= Math.max( liveBytes, MIN_CHUNK_SIZE ) )
+        {
+            return;
+        }
+        LongBuffer table = slots;
+        ByteBuffer[] current = chunks;
+        Arena compacted = new Arena();
+        LongBuffer rehashed = newSlots( capacityFor( size ) );
+        int mask = rehashed.capacity() - 1;
+        long copiedBytes = 0;
+        for ( int i = 0; i < table.capacity(); i++ )
+        {
+            long entry = table.get( i );
+            if ( entry != EMPTY && entry != TOMBSTONE )
+            {
+                long address = entry & ADDRESS_MASK;
+                int length = recordLength( current, address );
+                long copied = compacted.copy( current[chunkOf( address )], offsetOf( address ), length );
+                copiedBytes += length;
+                int slot = (int) mix( nameHashCode( current, address ) ) & mask;
+                while ( rehashed.get( slot ) != EMPTY )
+                {
+                    slot = (slot + 1) & mask;
+                }
+                rehashed.put( slot, entry & ~ADDRESS_MASK | copied );
+            }
+        }
+        long stamp = lock.writeLock();
+        try
+        {
+            arena = compacted;
+            chunks = compacted.chunks;
+            slots = rehashed;
+            generation = (generation + 1) & GENERATION_MASK;
+            tombstones = 0;
+            liveBytes = copiedBytes;
+            deadBytes = 0;
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    private static int recordLength( ByteBuffer[] arena, long address )
+    {
+        ByteBuffer chunk = arena[chunkOf( address )];
+        int offset = offsetOf( address );
+        int nameLength = chunk.getShort( offset ) & 0xFFFF;
+        int keyLength = chunk.getShort( offset + 2 + 2 * nameLength + 1 ) & 0xFFFF;
+        return RECORD_OVERHEAD + 2 * nameLength + keyLength;
+    }
+
+    /**
+     * The same as {@link String#hashCode()} of the name in the record.
+     */
+    private static int nameHashCode( ByteBuffer[] arena, long address )
+    {
+        ByteBuffer chunk = arena[chunkOf( address )];
+        int offset = offsetOf( address );
+        int length = chunk.getShort( offset ) & 0xFFFF;
+        int hashCode = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            hashCode = 31 * hashCode + chunk.getChar( offset + 2 + 2 * i );
+        }
+        return hashCode;
+    }
+
+    private static long hash( String username )
+    {
+        // The hash code of a string is cached in the string, so hashing is free for a username that has been used
+        return mix( username.hashCode() );
+    }
+
+    private static long mix( int hashCode )
+    {
+        // The finalizer of MurmurHash3, so that both the low bits for the slot and the high bits for the tag vary
+        long hash = hashCode;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static int capacityFor( long users )
+    {
+        // Keep the table at most two thirds full, which keeps probe sequences short
+        long capacity = MIN_CAPACITY;
+        while ( capacity * 2 < users * 3 )
+        {
+            capacity <<= 1;
+        }
+        if ( capacity > MAX_CAPACITY )
+        {
+            throw new IllegalStateException( "The off-heap PKI user store cannot hold more than " + MAX_CAPACITY / 3 * 2 + " users" );
+        }
+        return (int) capacity;
+    }
+
+    private static LongBuffer newSlots( int capacity )
+    {
+        return ByteBuffer.allocateDirect( capacity * Long.BYTES ).order( ByteOrder.nativeOrder() ).asLongBuffer();
+    }
+
+    private static int chunkOf( long address )
+    {
+        return (int) (address >>> OFFSET_BITS);
+    }
+
+    private static int offsetOf( long address )
+    {
+        return (int) address;
+    }
+
+    /**
+     * The chunks records are appended to. The first chunk is small, and each next one twice as large up to
+     * {@value #MAX_CHUNK_SIZE} bytes, so that a small store stays small. Chunk 0 is never used, which keeps every
+     * address different from {@link #EMPTY}.
+     */
+    private static final class Arena
+    {
+        private ByteBuffer[] chunks = new ByteBuffer[1];
+        private int last;
+        private int offset;
+
+        long append( String username, KeyAlgorithm algorithm, byte[] key, int roleSet )
+        {
+            int length = RECORD_OVERHEAD + 2 * username.length() + key.length;
+            ByteBuffer chunk = chunkFor( length );
+            int position = offset;
+            chunk.putShort( position, (short) username.length() );
+            position += 2;
+            for ( int i = 0; i < username.length(); i++ )
+            {
+                chunk.putChar( position, username.charAt( i ) );
+                position += 2;
+            }
+            chunk.put( position, (byte) algorithm.ordinal() );
+            chunk.putShort( position + 1, (short) key.length );
+            chunk.put( position + 3, key );
+            chunk.putInt( position + 3 + key.length, roleSet );
+            return advance( length );
+        }
+
+        long copy( ByteBuffer source, int sourceOffset, int length )
+        {
+            ByteBuffer chunk = chunkFor( length );
+            chunk.put( offset, source, sourceOffset, length );
+            return advance( length );
+        }
+
+        private ByteBuffer chunkFor( int length )
+        {
+            if ( last == 0 || offset + length > chunks[last].capacity() )
+            {
+                if ( last == MAX_CHUNKS )
+                {
+                    throw new IllegalStateException( "The off-heap PKI user store is full" );
+                }
+                int capacity = Math.max( length, Math.min( MAX_CHUNK_SIZE, MIN_CHUNK_SIZE << Math.min( last, 10 ) ) );
+                ByteBuffer[] grown = Arrays.copyOf( chunks, last + 2 );
+                grown[last + 1] = ByteBuffer.allocateDirect( capacity ).order( ByteOrder.nativeOrder() );
+                chunks = grown;
+                last++;
+                offset = 0;
+            }
+            return chunks[last];
+        }
+
+        private long advance( int length )
+        {
+            long address = (long) last << OFFSET_BITS | offset;
+            offset += length;
+            return address;
+        }
+    }
+}
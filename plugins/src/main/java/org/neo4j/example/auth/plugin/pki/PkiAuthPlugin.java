@@ -18,16 +18,16 @@
  */
 package org.neo4j.example.auth.plugin.pki;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.Key;
-import java.security.PublicKey;
-import java.util.Base64;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Cipher;
 
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
@@ -36,6 +36,11 @@ import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationExcept
 import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthPlugin;
+import org.neo4j.example.auth.plugin.audit.AuditLog;
+import org.neo4j.example.auth.plugin.config.PluginConfig;
+import org.neo4j.example.auth.plugin.config.WatchedConfig;
+import org.neo4j.example.auth.plugin.metrics.AuthMetrics;
+import org.neo4j.example.auth.plugin.metrics.LatencyHistogram;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -44,34 +49,292 @@ public class PkiAuthPlugin extends AuthPlugin.Adapter
     public static final String CRYPTO_ALGORITHM = "RSA";
     public static final String DEFAULT_USER_PUBLIC_KEY_SETTING = "dbms.security.pki.default.public.key";
     public static final String ENCRYPTED_USERNAME_PARAMETER_NAME = "encryptedUsername";
+    public static final String SIGNATURE_PARAMETER_NAME = "signature";
+    public static final String TIMESTAMP_PARAMETER_NAME = "timestamp";
+    public static final String NONCE_PARAMETER_NAME = "nonce";
+    public static final String CERTIFICATE_PARAMETER_NAME = "certificate";
+    public static final String CERTIFICATE_CHAIN_PARAMETER_NAME = "certificateChain";
     public static final String DEFAULT_USER = "neo4j";
+    public static final String TOKEN_CACHE_MAX_SIZE_SETTING = "dbms.security.pki.token.cache.max.size";
+    public static final String TOKEN_CACHE_TTL_SECONDS_SETTING = "dbms.security.pki.token.cache.ttl.seconds";
+    public static final String MAX_CLOCK_SKEW_SECONDS_SETTING = "dbms.security.pki.signature.max.clock.skew.seconds";
+    public static final String PERSISTENCE_ENABLED_SETTING = "dbms.security.pki.persistence.enabled";
+    public static final String PERSISTENCE_FILE_SETTING = "dbms.security.pki.persistence.file";
+    public static final String DEFAULT_PERSISTENCE_FILE = "data/pki/users.log";
+    public static final String IMPORT_DIRECTORY_SETTING = "dbms.security.pki.import.directory";
+    public static final String DEFAULT_IMPORT_DIRECTORY = "import";
+    public static final String SYSTEM_GRAPH_ENABLED_SETTING = "dbms.security.pki.system.graph.enabled";
+    public static final String SYSTEM_GRAPH_POLL_INTERVAL_MILLIS_SETTING = "dbms.security.pki.system.graph.poll.interval.millis";
+    public static final String REPLAY_WINDOW_SECONDS_SETTING = "dbms.security.pki.replay.window.seconds";
+    public static final String REPLAY_MAX_LOGINS_PER_SECOND_SETTING = "dbms.security.pki.replay.max.logins.per.second";
+    public static final String REPLAY_PROTECTION_REQUIRED_SETTING = "dbms.security.pki.replay.protection.required";
+    public static final String OFF_HEAP_ENABLED_SETTING = "dbms.security.pki.off.heap.enabled";
+    public static final String OFF_HEAP_KEY_CACHE_SIZE_SETTING = "dbms.security.pki.off.heap.key.cache.size";
+    public static final String X509_CA_CERTIFICATES_SETTING = "dbms.security.pki.x509.ca.certificates";
+    public static final String X509_PRINCIPAL_ATTRIBUTE_SETTING = "dbms.security.pki.x509.principal.attribute";
+    public static final String X509_ROLES_ATTRIBUTE_SETTING = "dbms.security.pki.x509.roles.attribute";
+    public static final String X509_CACHE_MAX_SIZE_SETTING = "dbms.security.pki.x509.validation.cache.max.size";
+    public static final String X509_CACHE_TTL_SECONDS_SETTING = "dbms.security.pki.x509.validation.cache.ttl.seconds";
+
+    private static final int DEFAULT_TOKEN_CACHE_MAX_SIZE = 10000;
+    private static final int DEFAULT_TOKEN_CACHE_TTL_SECONDS = 600;
+    private static final int DEFAULT_MAX_CLOCK_SKEW_SECONDS = 300;
+    private static final int DEFAULT_SYSTEM_GRAPH_POLL_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_REPLAY_WINDOW_SECONDS = 60;
+    private static final int DEFAULT_REPLAY_MAX_LOGINS_PER_SECOND = 10000;
+    private static final int DEFAULT_OFF_HEAP_KEY_CACHE_SIZE = 10000;
+    private static final String DEFAULT_X509_PRINCIPAL_ATTRIBUTE = "CN";
+    private static final String DEFAULT_X509_ROLES_ATTRIBUTE = "OU";
+    private static final int DEFAULT_X509_CACHE_MAX_SIZE = 10000;
+    private static final int DEFAULT_X509_CACHE_TTL_SECONDS = 600;
+    private static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * The cache is shared with {@link PkiRepository}, which invalidates entries of removed users,
+     * and {@link PkiProcedures}, which reports its statistics.
+     */
+    private static volatile VerifiedTokenCache tokenCache = VerifiedTokenCache.DISABLED;
+    private static volatile ReplayDetector replayDetector;
+    private static volatile CertificateValidator certificateValidator;
+    private static volatile Path importDirectory;
+
+    private static final AuthMetrics metrics = AuthMetrics.forPlugin( PkiAuthPlugin.class.getName() );
+    private static final LatencyHistogram decodeLatency = metrics.phase( "decode" );
+    private static final LatencyHistogram decryptLatency = metrics.phase( "decrypt" );
+    private static final LatencyHistogram verifyLatency = metrics.phase( "verify" );
+    private static final LatencyHistogram certificateLatency = metrics.phase( "certificate" );
+
+    private AuthProviderOperations api;
+    private WatchedConfig config;
+    private volatile Clock clock = Clock.systemUTC();
+    private volatile long maxClockSkewMillis = TimeUnit.SECONDS.toMillis( DEFAULT_MAX_CLOCK_SKEW_SECONDS );
+    private volatile AuditLog auditLog = AuditLog.DISABLED;
+    private volatile boolean replayProtectionRequired;
+
+    static VerifiedTokenCache tokenCache()
+    {
+        return tokenCache;
+    }
+
+    static ReplayDetector replayDetector()
+    {
+        return replayDetector;
+    }
+
+    /**
+     * @return the validator of client certificates, or null if no CA certificates are configured
+     */
+    static CertificateValidator certificateValidator()
+    {
+        return certificateValidator;
+    }
+
+    /**
+     * @return the directory that {@link PkiProcedures#addPkiUsersFromFile(String)} reads from, or null before the
+     * plugin has been configured
+     */
+    static Path importDirectory()
+    {
+        return importDirectory;
+    }
 
     @Override
     public void initialize( AuthProviderOperations authProviderOperations )
     {
-        Path configPath = authProviderOperations.neo4jHome().resolve( "conf/pki.conf" );
+        api = authProviderOperations;
+        clock = api.clock();
+        config = WatchedConfig.open( api.neo4jHome().resolve( "conf/pki.conf" ), true, api.log(), this::configure );
+    }
 
-        Properties properties = new Properties();
-        try ( BufferedReader reader = Files.newBufferedReader( configPath ) )
+    /**
+     * Apply the settings that have changed. Logins keep going meanwhile, with the users and tokens that are
+     * still valid.
+     *
+     * Every new component is built before any is swapped in, and the storage of the users, which cannot be
+     * built aside, is changed before anything else, so a config that cannot be applied leaves the plugin as it was.
+     */
+    private synchronized void configure( PluginConfig previous, PluginConfig config )
+    {
+        String defaultUserPublicKeyString = config.get( DEFAULT_USER_PUBLIC_KEY_SETTING );
+        if ( defaultUserPublicKeyString == null )
         {
-            properties.load( reader );
+            throw new IllegalStateException( "Public key for default user '" + DEFAULT_USER + "' is not set" );
         }
-        catch ( IOException e )
+        long skewMillis = TimeUnit.SECONDS.toMillis(
+                config.intSetting( MAX_CLOCK_SKEW_SECONDS_SETTING, DEFAULT_MAX_CLOCK_SKEW_SECONDS ) );
+
+        // The users are kept in memory only, unless they are kept in either the system database or a log file
+        boolean persistenceEnabled = config.booleanSetting( PERSISTENCE_ENABLED_SETTING, false );
+        boolean systemGraphEnabled = config.booleanSetting( SYSTEM_GRAPH_ENABLED_SETTING, false );
+        if ( persistenceEnabled && systemGraphEnabled )
         {
-            throw new IllegalStateException( "Failed loading properties: " + e.getMessage(), e );
+            throw new IllegalStateException( "PKI users can be stored either in the system database or in a log file, " +
+                                             "not both. Disable '" + SYSTEM_GRAPH_ENABLED_SETTING + "' or '" +
+                                             PERSISTENCE_ENABLED_SETTING + "'." );
         }
+        boolean persistenceChanged = config.changed( previous, PERSISTENCE_ENABLED_SETTING, PERSISTENCE_FILE_SETTING );
+        boolean systemGraphChanged = config.changed( previous, SYSTEM_GRAPH_ENABLED_SETTING,
+                SYSTEM_GRAPH_POLL_INTERVAL_MILLIS_SETTING );
 
-        String defaultUserPublicKeyString = (String) properties.get( DEFAULT_USER_PUBLIC_KEY_SETTING );
-        if ( defaultUserPublicKeyString == null )
+        // Replaying a user log may have replaced the configured default user, so it is added after it
+        UserInfo defaultUser = persistenceChanged || config.changed( previous, DEFAULT_USER_PUBLIC_KEY_SETTING )
+                ? PkiRepository.newUserInfo( defaultUserPublicKeyString, PredefinedRoles.ADMIN ) : null;
+
+        boolean x509Changed = config.changed( previous, X509_CA_CERTIFICATES_SETTING, X509_PRINCIPAL_ATTRIBUTE_SETTING,
+                X509_ROLES_ATTRIBUTE_SETTING, X509_CACHE_MAX_SIZE_SETTING, X509_CACHE_TTL_SECONDS_SETTING );
+        CertificateValidator validator = x509Changed ? newCertificateValidator( config ) : certificateValidator;
+
+        VerifiedTokenCache newTokenCache = tokenCache;
+        if ( config.changed( previous, TOKEN_CACHE_MAX_SIZE_SETTING, TOKEN_CACHE_TTL_SECONDS_SETTING ) )
         {
-            throw new IllegalStateException( "Public key for default user '" + DEFAULT_USER + "' is not set" );
+            int tokenCacheMaxSize = config.intSetting( TOKEN_CACHE_MAX_SIZE_SETTING, DEFAULT_TOKEN_CACHE_MAX_SIZE );
+            int tokenCacheTtlSeconds = config.intSetting( TOKEN_CACHE_TTL_SECONDS_SETTING, DEFAULT_TOKEN_CACHE_TTL_SECONDS );
+            newTokenCache = new VerifiedTokenCache( tokenCacheMaxSize, Duration.ofSeconds( tokenCacheTtlSeconds ), api.clock() );
+        }
+
+        ReplayDetector newReplayDetector = replayDetector;
+        if ( replayDetector == null || config.changed( previous, REPLAY_WINDOW_SECONDS_SETTING, REPLAY_MAX_LOGINS_PER_SECOND_SETTING ) )
+        {
+            // The tokens recorded so far are still checked against until they have expired
+            newReplayDetector = new ReplayDetector(
+                    Duration.ofSeconds( config.intSetting( REPLAY_WINDOW_SECONDS_SETTING, DEFAULT_REPLAY_WINDOW_SECONDS ) ),
+                    config.intSetting( REPLAY_MAX_LOGINS_PER_SECOND_SETTING, DEFAULT_REPLAY_MAX_LOGINS_PER_SECOND ),
+                    clock, replayDetector );
         }
 
-        PkiRepository.add( DEFAULT_USER, defaultUserPublicKeyString, PredefinedRoles.ADMIN );
+        Path newImportDirectory = api.neo4jHome().resolve( config.get( IMPORT_DIRECTORY_SETTING, DEFAULT_IMPORT_DIRECTORY ).trim() )
+                .toAbsolutePath().normalize();
+
+        AuditLog newAuditLog = AuditLog.settingsChanged( previous, config ) ? AuditLog.fromConfig( name(), config, api ) : null;
+
+        // Opening the user log is the only step below that can fail, and it changes nothing if it does
+        if ( persistenceChanged )
+        {
+            try
+            {
+                if ( persistenceEnabled )
+                {
+                    Path logFile = api.neo4jHome().resolve( config.get( PERSISTENCE_FILE_SETTING, DEFAULT_PERSISTENCE_FILE ) );
+                    PkiRepository.enablePersistence( logFile );
+                }
+                else
+                {
+                    PkiRepository.disablePersistence();
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                if ( newAuditLog != null )
+                {
+                    newAuditLog.close();
+                }
+                throw e;
+            }
+        }
+        if ( systemGraphChanged )
+        {
+            if ( systemGraphEnabled )
+            {
+                PkiRepository.enableSystemGraph( Duration.ofMillis( config.intSetting( SYSTEM_GRAPH_POLL_INTERVAL_MILLIS_SETTING,
+                        DEFAULT_SYSTEM_GRAPH_POLL_INTERVAL_MILLIS ) ) );
+            }
+            else
+            {
+                PkiRepository.disableSystemGraph();
+            }
+        }
+        if ( config.changed( previous, OFF_HEAP_ENABLED_SETTING, OFF_HEAP_KEY_CACHE_SIZE_SETTING ) )
+        {
+            PkiRepository.storeUsers( config.booleanSetting( OFF_HEAP_ENABLED_SETTING, false ),
+                    config.intSetting( OFF_HEAP_KEY_CACHE_SIZE_SETTING, DEFAULT_OFF_HEAP_KEY_CACHE_SIZE ) );
+        }
+        if ( defaultUser != null )
+        {
+            PkiRepository.addConfigured( DEFAULT_USER, defaultUser );
+        }
+
+        tokenCache = newTokenCache;
+        replayDetector = newReplayDetector;
+        replayProtectionRequired = config.booleanSetting( REPLAY_PROTECTION_REQUIRED_SETTING, false );
+        certificateValidator = validator;
+        maxClockSkewMillis = skewMillis;
+        importDirectory = newImportDirectory;
+        if ( newAuditLog != null )
+        {
+            AuditLog previousAuditLog = auditLog;
+            auditLog = newAuditLog;
+            previousAuditLog.close();
+        }
+    }
+
+    private CertificateValidator newCertificateValidator( PluginConfig config )
+    {
+        String caCertificates = config.get( X509_CA_CERTIFICATES_SETTING );
+        if ( caCertificates == null )
+        {
+            return null;
+        }
+        return CertificateValidator.load( api.neo4jHome().resolve( caCertificates ),
+                config.get( X509_PRINCIPAL_ATTRIBUTE_SETTING, DEFAULT_X509_PRINCIPAL_ATTRIBUTE ),
+                config.get( X509_ROLES_ATTRIBUTE_SETTING, DEFAULT_X509_ROLES_ATTRIBUTE ),
+                config.intSetting( X509_CACHE_MAX_SIZE_SETTING, DEFAULT_X509_CACHE_MAX_SIZE ),
+                Duration.ofSeconds( config.intSetting( X509_CACHE_TTL_SECONDS_SETTING, DEFAULT_X509_CACHE_TTL_SECONDS ) ),
+                clock );
     }
 
+    @Override
+    public synchronized void shutdown()
+    {
+        if ( config != null )
+        {
+            config.close();
+            config = null;
+        }
+        PkiRepository.disablePersistence();
+        PkiRepository.disableSystemGraph();
+        auditLog.close();
+        auditLog = AuditLog.DISABLED;
+    }
+
+    /**
+     * The hot path of a login. Once a thread has warmed up it only allocates inside the JCA provider while
+     * doing the actual public-key operation, and not at all when the token is found in the token cache.
+     * Recording the login in the audit log and the metrics does not allocate either.
+     */
     @Override
     public AuthInfo authenticateAndAuthorize( AuthToken authToken )
+    {
+        long start = System.nanoTime();
+        AuthInfo authInfo;
+        try
+        {
+            authInfo = authenticate( authToken );
+        }
+        catch ( RuntimeException e )
+        {
+            // An unknown user, or a token that could not be decoded or decrypted
+            recordLogin( authToken.principal(), AuditLog.Outcome.ERROR, start, null );
+            throw e;
+        }
+        if ( authInfo == null )
+        {
+            recordLogin( authToken.principal(), AuditLog.Outcome.FAILURE, start, null );
+        }
+        else
+        {
+            recordLogin( authToken.principal(), AuditLog.Outcome.SUCCESS, start, authInfo.roles() );
+        }
+        return authInfo;
+    }
+
+    private void recordLogin( String username, AuditLog.Outcome outcome, long start, Collection<String> roles )
+    {
+        long latency = System.nanoTime() - start;
+        metrics.recordLogin( outcome, latency );
+        auditLog.record( username, outcome, latency, roles );
+    }
+
+    private AuthInfo authenticate( AuthToken authToken )
     {
         String username = authToken.principal();
         Map<String,Object> parameters = authToken.parameters();
@@ -80,29 +343,327 @@ public class PkiAuthPlugin extends AuthPlugin.Adapter
             return null;
         }
 
+        String base64EncodedSignature = (String) parameters.get( SIGNATURE_PARAMETER_NAME );
         String base64EncodedEncryptedUsername = (String) parameters.get( ENCRYPTED_USERNAME_PARAMETER_NAME );
-        if ( base64EncodedEncryptedUsername == null )
+        String nonce = (String) parameters.get( NONCE_PARAMETER_NAME );
+        if ( (base64EncodedSignature == null && base64EncodedEncryptedUsername == null) ||
+             (nonce == null && replayProtectionRequired) )
+        {
+            return null;
+        }
+
+        UserInfo info = userInfo( username, parameters );
+        if ( info == null )
         {
             return null;
         }
+        if ( nonce != null )
+        {
+            boolean signed = base64EncodedSignature != null;
+            String token = signed ? base64EncodedSignature : base64EncodedEncryptedUsername;
+            return authenticateOnce( username, info, token, signed, parameters.get( TIMESTAMP_PARAMETER_NAME ), nonce );
+        }
+        if ( base64EncodedSignature != null )
+        {
+            return authenticateWithSignature( username, info, base64EncodedSignature, parameters.get( TIMESTAMP_PARAMETER_NAME ) );
+        }
+        return authenticateWithEncryptedUsername( username, info, base64EncodedEncryptedUsername );
+    }
 
-        byte[] encryptedUsernameBytes = Base64.getDecoder().decode( base64EncodedEncryptedUsername );
+    /**
+     * A user logs in either with a key registered in the {@link PkiRepository}, or with a client certificate issued
+     * by one of the configured CAs. Either way the token has to be made with the private key of that user.
+     *
+     * @return the user, or null if the certificate is not valid for the user
+     */
+    private static UserInfo userInfo( String username, Map<String,Object> parameters )
+    {
+        String base64EncodedCertificate = (String) parameters.get( CERTIFICATE_PARAMETER_NAME );
+        if ( base64EncodedCertificate == null )
+        {
+            return PkiRepository.infoFor( username );
+        }
+        CertificateValidator validator = certificateValidator;
+        if ( validator == null )
+        {
+            return null;
+        }
+        long certificateStart = System.nanoTime();
+        UserInfo info = validator.userInfo( username, base64EncodedCertificate, parameters.get( CERTIFICATE_CHAIN_PARAMETER_NAME ) );
+        certificateLatency.record( System.nanoTime() - certificateStart );
+        return info;
+    }
 
-        UserInfo info = PkiRepository.infoFor( username );
-        PublicKey publicKey = info.getPublicKey();
+    /**
+     * Authenticate with a token that can only be used once: a signature over {@code <principal>:<timestamp>:<nonce>},
+     * or for RSA keys that message encrypted with the private key. The timestamp is in milliseconds since the epoch
+     * and has to be within the replay window, and the nonce is any string that the client does not use twice within
+     * that window, such as a random number. Once a token has been used it is rejected for as long as it is fresh.
+     *
+     * These tokens are unique by design, so they are not kept in the token cache.
+     */
+    private static AuthInfo authenticateOnce( String username, UserInfo info, String base64EncodedToken, boolean signed,
+            Object timestampParameter, String nonce )
+    {
+        ReplayDetector detector = replayDetector;
+        long timestamp = timestampOf( timestampParameter );
+        if ( timestamp == INVALID_TIMESTAMP || !detector.isFresh( timestamp ) )
+        {
+            return null;
+        }
 
-        String decryptedUsername = decrypt( publicKey, encryptedUsernameBytes );
+        LoginBuffers buffers = LoginBuffers.get();
+        long decodeStart = System.nanoTime();
+        int tokenLength = buffers.decodeToken( base64EncodedToken );
+        decodeLatency.record( System.nanoTime() - decodeStart );
+        if ( tokenLength < 0 )
+        {
+            return null;
+        }
 
-        return Objects.equals( username, decryptedUsername ) ? AuthInfo.of( username, info.getRoles() ) : null;
+        if ( !signed && info.getAlgorithm() != KeyAlgorithm.RSA )
+        {
+            return null;
+        }
+        int messageLength = buffers.writeMessage( info.principalBytes( username ), timestamp, nonce );
+        if ( messageLength < 0 )
+        {
+            return null;
+        }
+
+        // A token is known by what it says rather than by its bytes, as some signatures can be altered and still verify
+        buffers.sha256().update( buffers.message(), 0, messageLength );
+        byte[] messageDigest = buffers.completeDigest();
+        long hash1 = ReplayDetector.hash( messageDigest, 0 );
+        long hash2 = ReplayDetector.hash( messageDigest, Long.BYTES );
+        if ( detector.seen( timestamp, hash1, hash2 ) )
+        {
+            return null;
+        }
+
+        boolean verified;
+        if ( signed )
+        {
+            long verifyStart = System.nanoTime();
+            verified = verifySignature( info.verifiers(), buffers.token(), tokenLength, buffers.message(), messageLength );
+            verifyLatency.record( System.nanoTime() - verifyStart );
+        }
+        else
+        {
+            long decryptStart = System.nanoTime();
+            verified = decryptsTo( info.ciphers(), buffers, tokenLength, buffers.message(), messageLength );
+            decryptLatency.record( System.nanoTime() - decryptStart );
+        }
+        // Of concurrent logins with the same token only one gets to record it
+        if ( !verified || !detector.record( timestamp, hash1, hash2 ) )
+        {
+            return null;
+        }
+        return info.authInfo( username );
+    }
+
+    /**
+     * @return the timestamp, or {@link #INVALID_TIMESTAMP} if the parameter is not a number
+     */
+    private static long timestampOf( Object timestampParameter )
+    {
+        if ( timestampParameter instanceof Number )
+        {
+            return ((Number) timestampParameter).longValue();
+        }
+        if ( timestampParameter instanceof String )
+        {
+            try
+            {
+                return Long.parseLong( (String) timestampParameter );
+            }
+            catch ( NumberFormatException e )
+            {
+                return INVALID_TIMESTAMP;
+            }
+        }
+        return INVALID_TIMESTAMP;
+    }
+
+    private static AuthInfo authenticateWithEncryptedUsername( String username, UserInfo info, String base64EncodedEncryptedUsername )
+    {
+        LoginBuffers buffers = LoginBuffers.get();
+        long decodeStart = System.nanoTime();
+        int tokenLength = buffers.decodeToken( base64EncodedEncryptedUsername );
+        decodeLatency.record( System.nanoTime() - decodeStart );
+        if ( tokenLength < 0 )
+        {
+            return null;
+        }
+
+        if ( info.getAlgorithm() != KeyAlgorithm.RSA )
+        {
+            // Only RSA keys can "decrypt" the legacy token, other keys have to log in with a signature
+            return null;
+        }
+        byte[] principal = info.principalBytes( username );
+
+        VerifiedTokenCache cache = tokenCache;
+        byte[] tokenDigest = null;
+        if ( cache.isEnabled() )
+        {
+            buffers.sha256().update( buffers.token(), 0, tokenLength );
+            tokenDigest = buffers.completeDigest();
+            AuthInfo cached = cache.get( username, info, tokenDigest );
+            if ( cached != null )
+            {
+                return cached;
+            }
+        }
+
+        long decryptStart = System.nanoTime();
+        boolean decrypted = decryptsTo( info.ciphers(), buffers, tokenLength, principal, principal.length );
+        decryptLatency.record( System.nanoTime() - decryptStart );
+        if ( !decrypted )
+        {
+            return null;
+        }
+        return verified( cache, username, info, tokenDigest );
+    }
+
+    /**
+     * Verify a signature, made with the private key of the user, over {@code <principal>:<timestamp>}.
+     * The timestamp is in milliseconds since the epoch and has to be within the configured clock skew.
+     */
+    private AuthInfo authenticateWithSignature( String username, UserInfo info, String base64EncodedSignature,
+            Object timestampParameter )
+    {
+        long timestamp = timestampOf( timestampParameter );
+        // Compared as a range, the difference of a timestamp far in the past or future would overflow
+        long now = clock.millis();
+        long skew = maxClockSkewMillis;
+        if ( timestamp == INVALID_TIMESTAMP || timestamp < now - skew || timestamp > now + skew )
+        {
+            return null;
+        }
+
+        LoginBuffers buffers = LoginBuffers.get();
+        long decodeStart = System.nanoTime();
+        int signatureLength = buffers.decodeToken( base64EncodedSignature );
+        decodeLatency.record( System.nanoTime() - decodeStart );
+        if ( signatureLength < 0 )
+        {
+            return null;
+        }
+        int timestampLength = buffers.writeDecimal( timestamp );
+        byte[] principal = info.principalBytes( username );
+
+        VerifiedTokenCache cache = tokenCache;
+        byte[] tokenDigest = null;
+        if ( cache.isEnabled() )
+        {
+            // A signature is only valid together with the message it signs, so both go into the digest
+            MessageDigest digest = buffers.sha256();
+            digest.update( principal );
+            digest.update( (byte) ':' );
+            digest.update( buffers.decimal(), 0, timestampLength );
+            digest.update( buffers.token(), 0, signatureLength );
+            tokenDigest = buffers.completeDigest();
+            AuthInfo cached = cache.get( username, info, tokenDigest );
+            if ( cached != null )
+            {
+                return cached;
+            }
+        }
+
+        long verifyStart = System.nanoTime();
+        boolean verified = verifySignature( info.verifiers(), buffers, principal, timestampLength, signatureLength );
+        verifyLatency.record( System.nanoTime() - verifyStart );
+        if ( !verified )
+        {
+            return null;
+        }
+        return verified( cache, username, info, tokenDigest );
+    }
+
+    /**
+     * The message that a client signs to log in with a signature.
+     */
+    public static byte[] signedMessage( String username, long timestamp )
+    {
+        return (username + ":" + timestamp).getBytes( UTF_8 );
+    }
+
+    /**
+     * The message that a client signs, or encrypts with an RSA key, to log in with a one-time token.
+     */
+    public static byte[] oneTimeMessage( String username, long timestamp, String nonce )
+    {
+        return (username + ":" + timestamp + ":" + nonce).getBytes( UTF_8 );
+    }
+
+    private static AuthInfo verified( VerifiedTokenCache cache, String username, UserInfo info, byte[] tokenDigest )
+    {
+        AuthInfo authInfo = info.authInfo( username );
+        if ( tokenDigest != null )
+        {
+            cache.put( username, info, tokenDigest, authInfo );
+        }
+        return authInfo;
+    }
+
+    private static boolean decryptsTo( CryptoPool<Cipher> ciphers, LoginBuffers buffers, int tokenLength, byte[] expected,
+            int expectedLength )
+    {
+        try
+        {
+            Cipher rsa = ciphers.acquire();
+            byte[] output = buffers.output( rsa.getOutputSize( tokenLength ) );
+            int decryptedLength = rsa.doFinal( buffers.token(), 0, tokenLength, output, 0 );
+            // Only hand back primitives that completed, a failed one may be left in an undefined state
+            ciphers.release( rsa );
+            return Arrays.equals( output, 0, decryptedLength, expected, 0, expectedLength );
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
     }
 
-    private static String decrypt( Key decryptionKey, byte[] buffer )
+    private static boolean verifySignature( CryptoPool<Signature> verifiers, LoginBuffers buffers, byte[] principal,
+            int timestampLength, int signatureLength )
     {
         try
         {
-            Cipher rsa = Cipher.getInstance( CRYPTO_ALGORITHM );
-            rsa.init( Cipher.DECRYPT_MODE, decryptionKey );
-            return new String( rsa.doFinal( buffer ), UTF_8 );
+            Signature verifier = verifiers.acquire();
+            verifier.update( principal );
+            verifier.update( (byte) ':' );
+            verifier.update( buffers.decimal(), 0, timestampLength );
+            boolean verified = verifier.verify( buffers.token(), 0, signatureLength );
+            verifiers.release( verifier );
+            return verified;
+        }
+        catch ( SignatureException e )
+        {
+            // Malformed signature
+            return false;
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static boolean verifySignature( CryptoPool<Signature> verifiers, byte[] signature, int signatureLength,
+            byte[] message, int messageLength )
+    {
+        try
+        {
+            Signature verifier = verifiers.acquire();
+            verifier.update( message, 0, messageLength );
+            boolean verified = verifier.verify( signature, 0, signatureLength );
+            verifiers.release( verifier );
+            return verified;
+        }
+        catch ( SignatureException e )
+        {
+            // Malformed signature
+            return false;
         }
         catch ( Exception e )
         {
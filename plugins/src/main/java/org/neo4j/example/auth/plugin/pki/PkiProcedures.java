@@ -18,7 +18,14 @@
  */
 package org.neo4j.example.auth.plugin.pki;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import org.neo4j.procedure.Mode;
 import org.neo4j.procedure.Name;
@@ -38,4 +45,239 @@ public class PkiProcedures
     {
         PkiRepository.remove( username );
     }
+
+    /**
+     * Add many users in one call. Each user is a map with the keys {@code username}, {@code publicKey} and
+     * {@code roles}. Returns a row for every entry that was rejected, including entries whose values have the
+     * wrong type, the other entries are added.
+     */
+    @Procedure( name = "addPkiUsers", mode = Mode.DBMS )
+    public Stream<RejectedUser> addPkiUsers( @Name( "users" ) List<Map<String,Object>> users )
+    {
+        List<PkiRepository.Registration> registrations = new ArrayList<>( users.size() );
+        List<RejectedUser> malformed = new ArrayList<>();
+        for ( Map<String,Object> user : users )
+        {
+            Object username = user == null ? null : user.get( "username" );
+            Object publicKey = user == null ? null : user.get( "publicKey" );
+            Object roles = user == null ? null : user.get( "roles" );
+            if ( !isOptionalString( username ) || !isOptionalString( publicKey ) || !isRoleList( roles ) )
+            {
+                malformed.add( new RejectedUser( username instanceof String ? (String) username : null,
+                        "Expected a map with a string username, a string publicKey and a list of string roles" ) );
+                continue;
+            }
+            registrations.add( new PkiRepository.Registration( (String) username, (String) publicKey,
+                    roles == null ? new String[0] : ((List<?>) roles).toArray( new String[0] ) ) );
+        }
+        return Stream.concat( malformed.stream(), PkiRepository.addAll( registrations ).stream().map( RejectedUser::new ) );
+    }
+
+    private static boolean isOptionalString( Object value )
+    {
+        // Missing values are rejected with the other invalid registrations
+        return value == null || value instanceof String;
+    }
+
+    private static boolean isRoleList( Object roles )
+    {
+        return roles == null || (roles instanceof List && ((List<?>) roles).stream().allMatch( role -> role instanceof String ));
+    }
+
+    /**
+     * Add the users listed in a file in the import directory of the server, one user per line in the format
+     * {@code username,publicKey,role1;role2}. Empty lines and lines starting with {@code #} are ignored.
+     * Returns a row for every line that was rejected, the other users are added. Malformed lines are only
+     * reported by their number, so that the procedure cannot be used to read other files.
+     */
+    @Procedure( name = "addPkiUsersFromFile", mode = Mode.DBMS )
+    public Stream<RejectedUser> addPkiUsersFromFile( @Name( "path" ) String path )
+    {
+        List<PkiRepository.Registration> registrations = new ArrayList<>();
+        List<RejectedUser> malformed = new ArrayList<>();
+        Path file = importFile( path );
+        try ( Stream<String> lines = Files.lines( file ) )
+        {
+            int[] lineNumber = {0};
+            lines.forEachOrdered( line ->
+            {
+                lineNumber[0]++;
+                String trimmed = line.trim();
+                if ( trimmed.isEmpty() || trimmed.startsWith( "#" ) )
+                {
+                    return;
+                }
+                String[] fields = trimmed.split( ",", -1 );
+                if ( fields.length < 2 || fields.length > 3 )
+                {
+                    malformed.add( new RejectedUser( null, "Malformed line " + lineNumber[0] ) );
+                    return;
+                }
+                String[] roles = fields.length == 3 && !fields[2].isEmpty() ? fields[2].trim().split( "\\s*;\\s*" ) : new String[0];
+                registrations.add( new PkiRepository.Registration( fields[0].trim(), fields[1].trim(), roles ) );
+            } );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Failed to read users from '" + path + "'", e );
+        }
+        return Stream.concat( malformed.stream(), PkiRepository.addAll( registrations ).stream().map( RejectedUser::new ) );
+    }
+
+    private static Path importFile( String path )
+    {
+        Path directory = PkiAuthPlugin.importDirectory();
+        if ( directory == null )
+        {
+            throw new IllegalStateException( "The PKI plugin has not been configured" );
+        }
+        // Checked before touching the file system, and again after following links
+        Path file = directory.resolve( path ).normalize();
+        if ( !file.startsWith( directory ) )
+        {
+            throw new IllegalArgumentException( "'" + path + "' is not in the import directory" );
+        }
+        try
+        {
+            if ( !file.toRealPath().startsWith( directory.toRealPath() ) )
+            {
+                throw new IllegalArgumentException( "'" + path + "' is not in the import directory" );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Failed to read users from '" + path + "'", e );
+        }
+        return file;
+    }
+
+    @Procedure( name = "pkiTokenCacheStats", mode = Mode.DBMS )
+    public Stream<TokenCacheStats> pkiTokenCacheStats()
+    {
+        return Stream.of( new TokenCacheStats( PkiAuthPlugin.tokenCache() ) );
+    }
+
+    @Procedure( name = "pkiReplayDetectorStats", mode = Mode.DBMS )
+    public Stream<ReplayDetectorStats> pkiReplayDetectorStats()
+    {
+        ReplayDetector detector = PkiAuthPlugin.replayDetector();
+        return detector == null ? Stream.empty() : Stream.of( new ReplayDetectorStats( detector ) );
+    }
+
+    @Procedure( name = "pkiCertificateCacheStats", mode = Mode.DBMS )
+    public Stream<CertificateCacheStats> pkiCertificateCacheStats()
+    {
+        CertificateValidator validator = PkiAuthPlugin.certificateValidator();
+        return validator == null ? Stream.empty() : Stream.of( new CertificateCacheStats( validator ) );
+    }
+
+    @Procedure( name = "pkiUserStoreStats", mode = Mode.DBMS )
+    public Stream<UserStoreStats> pkiUserStoreStats()
+    {
+        return Stream.of( new UserStoreStats( PkiRepository.store() ) );
+    }
+
+    public static class RejectedUser
+    {
+        public final String username;
+        public final String reason;
+
+        RejectedUser( String username, String reason )
+        {
+            this.username = username;
+            this.reason = reason;
+        }
+
+        RejectedUser( PkiRepository.Rejection rejection )
+        {
+            this( rejection.username(), rejection.reason() );
+        }
+    }
+
+    public static class TokenCacheStats
+    {
+        public final boolean enabled;
+        public final long size;
+        public final long maxSize;
+        public final long ttlSeconds;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final double hitRate;
+
+        TokenCacheStats( VerifiedTokenCache cache )
+        {
+            enabled = cache.isEnabled();
+            size = cache.size();
+            maxSize = cache.maxSize();
+            ttlSeconds = cache.ttl().getSeconds();
+            hits = cache.hits();
+            misses = cache.misses();
+            evictions = cache.evictions();
+            long lookups = hits + misses;
+            hitRate = lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+
+    public static class ReplayDetectorStats
+    {
+        public final long windowSeconds;
+        public final long memoryBytes;
+        public final long replaysRejected;
+
+        ReplayDetectorStats( ReplayDetector detector )
+        {
+            windowSeconds = detector.windowSeconds();
+            memoryBytes = detector.memoryBytes();
+            replaysRejected = detector.replays();
+        }
+    }
+
+    public static class CertificateCacheStats
+    {
+        public final long size;
+        public final long maxSize;
+        public final long ttlSeconds;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        CertificateCacheStats( CertificateValidator validator )
+        {
+            size = validator.size();
+            maxSize = validator.cacheMaxSize();
+            ttlSeconds = validator.cacheTtl().getSeconds();
+            hits = validator.hits();
+            misses = validator.misses();
+            evictions = validator.evictions();
+        }
+    }
+
+    public static class UserStoreStats
+    {
+        public final boolean offHeap;
+        public final long users;
+        public final long offHeapBytes;
+        public final long parsedUsers;
+        public final long parsedUsersMaxSize;
+
+        UserStoreStats( UserStore store )
+        {
+            users = store.size();
+            offHeap = store instanceof OffHeapUserStore;
+            if ( offHeap )
+            {
+                OffHeapUserStore offHeapStore = (OffHeapUserStore) store;
+                offHeapBytes = offHeapStore.offHeapBytes();
+                parsedUsers = offHeapStore.parsedUsers();
+                parsedUsersMaxSize = offHeapStore.parsedUsersMaxSize();
+            }
+            else
+            {
+                offHeapBytes = 0;
+                parsedUsers = users;
+                parsedUsersMaxSize = users;
+            }
+        }
+    }
 }
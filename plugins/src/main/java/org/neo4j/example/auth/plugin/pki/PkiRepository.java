@@ -18,45 +18,477 @@
  */
 package org.neo4j.example.auth.plugin.pki;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import static java.util.Collections.newSetFromMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public class PkiRepository
 {
-    private static final Map<String,UserInfo> usernameToInfo = new ConcurrentHashMap<>();
+    private static final long COMPACTION_CHECK_INTERVAL_SECONDS = 60;
+    private static final long COMPACTION_MIN_DEAD_RECORDS = 1000;
+    private static final long MISS_RECONCILE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    /**
+     * On the heap unless the plugin is configured to keep its users off-heap, see {@link #storeUsers(boolean, int)}.
+     */
+    private static volatile UserStore store = new HeapUserStore();
+
+    /**
+     * Serializes changes to the repository, so that they reach the log in the same order as they are
+     * applied. Lookups never take it.
+     */
+    private static final Object writeLock = new Object();
+    private static PkiUserLog log;
+    private static ScheduledExecutorService compactor;
+
+    /**
+     * The users in the system database, handed over by {@link PkiSystemGraphExtensionFactory} once the system
+     * database has started, and only used if the plugin is configured to store its users there.
+     */
+    private static volatile SystemGraphPkiUsers systemGraph;
+    private static volatile boolean systemGraphEnabled;
+    private static ScheduledExecutorService reconciler;
+    private static final AtomicLong lastMissReconcile = new AtomicLong( System.nanoTime() - MISS_RECONCILE_INTERVAL_NANOS );
+
+    /**
+     * Users given by configuration on each member, which the system database does not override.
+     */
+    private static final Set<String> configuredUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Restore the users recorded in the given log file, and record all further changes to it.
+     */
+    public static void enablePersistence( Path logFile )
+    {
+        synchronized ( writeLock )
+        {
+            // The previous log is only closed once the new one is open, so a log that cannot be opened changes nothing
+            PkiUserLog opened;
+            try
+            {
+                opened = PkiUserLog.open( logFile, new PkiUserLog.Replay()
+                {
+                    @Override
+                    public void added( String username, byte[] encodedKey, String[] roles )
+                    {
+                        UserInfo replaced = store.put( username,
+                                new UserInfo( encodedKey, KeyAlgorithm.of( encodedKey ), roleSet( roles ) ) );
+                        if ( replaced != null )
+                        {
+                            replaced.close();
+                        }
+                    }
+
+                    @Override
+                    public void removed( String username )
+                    {
+                        UserInfo removed = store.remove( username );
+                        if ( removed != null )
+                        {
+                            removed.close();
+                        }
+                    }
+                } );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( "Failed to open PKI user log '" + logFile + "': " + e.getMessage(), e );
+            }
+            disablePersistence();
+            log = opened;
+
+            compactor = Executors.newSingleThreadScheduledExecutor( runnable ->
+            {
+                Thread thread = new Thread( runnable, "pki-user-log-compactor" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            PkiUserLog compactedLog = log;
+            compactor.scheduleWithFixedDelay( () -> compactIfNeeded( compactedLog ),
+                    COMPACTION_CHECK_INTERVAL_SECONDS, COMPACTION_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Stop recording changes. Users already in the repository are kept.
+     */
+    public static void disablePersistence()
+    {
+        synchronized ( writeLock )
+        {
+            if ( compactor != null )
+            {
+                compactor.shutdownNow();
+                compactor = null;
+            }
+            if ( log != null )
+            {
+                try
+                {
+                    log.close();
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException( "Failed to close PKI user log: " + e.getMessage(), e );
+                }
+                finally
+                {
+                    log = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store users in the system database instead of on this member only, and look for changes that other
+     * members have made at the given interval. Only the users that have changed are read, and only their
+     * tokens are evicted from the token cache.
+     */
+    public static void enableSystemGraph( Duration pollInterval )
+    {
+        synchronized ( writeLock )
+        {
+            disableSystemGraph();
+            systemGraphEnabled = true;
+            reconciler = Executors.newSingleThreadScheduledExecutor( runnable ->
+            {
+                Thread thread = new Thread( runnable, "pki-system-graph-reconciler" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            long interval = Math.max( 1, pollInterval.toMillis() );
+            reconciler.scheduleWithFixedDelay( PkiRepository::reconcileQuietly, 0, interval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Stop using the system database. Users already in the repository are kept.
+     */
+    public static void disableSystemGraph()
+    {
+        synchronized ( writeLock )
+        {
+            if ( reconciler != null )
+            {
+                reconciler.shutdownNow();
+                reconciler = null;
+            }
+            systemGraphEnabled = false;
+        }
+    }
+
+    /**
+     * Keep the users on the heap, or off-heap with only the given number of recently active users on the heap.
+     * The users are copied over to the new store, while logins keep using the old one until it is complete.
+     */
+    static void storeUsers( boolean offHeap, int parsedUsersMaxSize )
+    {
+        synchronized ( writeLock )
+        {
+            UserStore current = store;
+            if ( offHeap ? current instanceof OffHeapUserStore &&
+                           ((OffHeapUserStore) current).parsedUsersMaxSize() == parsedUsersMaxSize
+                         : current instanceof HeapUserStore )
+            {
+                return;
+            }
+            UserStore moved = offHeap ? new OffHeapUserStore( parsedUsersMaxSize ) : new HeapUserStore();
+            Map<String,UserInfo> users = new LinkedHashMap<>();
+            for ( Map.Entry<String,UserInfo> user : current.snapshot() )
+            {
+                users.put( user.getKey(), user.getValue() );
+            }
+            moved.apply( users );
+            store = moved;
+            current.clear();
+        }
+        PkiAuthPlugin.tokenCache().clear();
+    }
+
+    static UserStore store()
+    {
+        return store;
+    }
+
+    static void attachSystemGraph( SystemGraphPkiUsers users )
+    {
+        systemGraph = users;
+    }
+
+    static void detachSystemGraph( SystemGraphPkiUsers users )
+    {
+        synchronized ( writeLock )
+        {
+            if ( systemGraph == users )
+            {
+                systemGraph = null;
+            }
+        }
+    }
+
+    /**
+     * Apply the changes that any member has made to the users in the system database since the last time.
+     * Users that have not changed keep their parsed keys and their verified tokens.
+     */
+    static void reconcile()
+    {
+        SystemGraphPkiUsers users = systemGraphEnabled ? systemGraph : null;
+        if ( users == null )
+        {
+            return;
+        }
+        List<UserInfo> replaced;
+        Map<String,UserInfo> changed = new LinkedHashMap<>();
+        synchronized ( writeLock )
+        {
+            Map<String,UserInfo> changes = users.changes();
+            changes.keySet().removeAll( configuredUsers );
+            for ( Map.Entry<String,UserInfo> change : changes.entrySet() )
+            {
+                String username = change.getKey();
+                UserInfo info = change.getValue();
+                if ( info == null ? store.contains( username ) : !store.holds( username, info ) )
+                {
+                    changed.put( username, info );
+                }
+            }
+            // Like a batch added on this member, a batch added elsewhere becomes visible all at once
+            replaced = changed.isEmpty() ? List.of() : store.apply( changed );
+        }
+        replaced.forEach( UserInfo::close );
+        changed.keySet().forEach( PkiAuthPlugin.tokenCache()::invalidate );
+    }
+
+    private static void reconcileQuietly()
+    {
+        try
+        {
+            reconcile();
+        }
+        catch ( RuntimeException e )
+        {
+            // The system database may be stopping or not be reachable, the next round will try again
+        }
+    }
+
+    /**
+     * @return the users in the system database if they are to be changed there, null to change them here
+     * @throws IllegalStateException if the users are stored in the system database, but it is not available
+     */
+    private static SystemGraphPkiUsers systemGraphForChanges()
+    {
+        if ( !systemGraphEnabled )
+        {
+            return null;
+        }
+        SystemGraphPkiUsers users = systemGraph;
+        if ( users == null )
+        {
+            throw new IllegalStateException( "PKI users are stored in the system database, which is not available" );
+        }
+        return users;
+    }
 
     public static void add( String username, String publicKeyString, String... roles )
     {
-        PublicKey publicKey = readPublicKey( publicKeyString );
-        UserInfo userInfo = new UserInfo( publicKey, newConcurrentSet( roles ) );
-        UserInfo current = usernameToInfo.putIfAbsent( username, userInfo );
-        if ( current != null )
+        UserInfo userInfo = newUserInfo( publicKeyString, roles );
+        SystemGraphPkiUsers users = systemGraphForChanges();
+        if ( users != null )
         {
-            throw new IllegalArgumentException( "User: '" + username + "' is already in the repository" );
+            if ( configuredUsers.contains( username ) || !users.addAll( Map.of( username, userInfo ) ).isEmpty() )
+            {
+                throw new IllegalArgumentException( "User: '" + username + "' is already in the repository" );
+            }
+            reconcile();
+            return;
+        }
+        synchronized ( writeLock )
+        {
+            if ( store.contains( username ) )
+            {
+                throw new IllegalArgumentException( "User: '" + username + "' is already in the repository" );
+            }
+            if ( log != null )
+            {
+                try
+                {
+                    log.appendAdd( username, userInfo );
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException( "Failed to record user '" + username + "' in PKI user log: " +
+                                                     e.getMessage(), e );
+                }
+            }
+            store.put( username, userInfo );
         }
     }
 
-    public static void remove( String username )
+    /**
+     * Add a batch of users. Keys are parsed in parallel, and all accepted users become visible to logins
+     * at the same time. Entries that cannot be added, because their key is invalid or the user already
+     * exists, are skipped and reported back instead of failing the whole batch.
+     *
+     * @return the rejected entries, in the order they were given, followed by any users that another member
+     * of the cluster added meanwhile
+     */
+    public static List<Rejection> addAll( List<Registration> registrations )
     {
-        usernameToInfo.remove( username );
+        // Parsing keys is the expensive part, so it is done on the fork-join pool before taking the write lock
+        List<Object> parsed = registrations.parallelStream().map( registration ->
+        {
+            if ( registration.username == null || registration.publicKey == null )
+            {
+                return new Rejection( registration.username, "Both a username and a public key are required" );
+            }
+            try
+            {
+                return newUserInfo( registration.publicKey, registration.roles );
+            }
+            catch ( RuntimeException e )
+            {
+                return new Rejection( registration.username, "Invalid public key: " + e.getMessage() );
+            }
+        } ).collect( Collectors.toList() );
+
+        SystemGraphPkiUsers users = systemGraphForChanges();
+        if ( users != null )
+        {
+            // Catch up first, so that the users that already exist are rejected below like they are otherwise
+            reconcile();
+        }
+        List<Rejection> rejections = new ArrayList<>();
+        synchronized ( writeLock )
+        {
+            Map<String,UserInfo> accepted = new LinkedHashMap<>();
+            for ( int i = 0; i < registrations.size(); i++ )
+            {
+                String username = registrations.get( i ).username;
+                Object result = parsed.get( i );
+                if ( result instanceof Rejection )
+                {
+                    rejections.add( (Rejection) result );
+                }
+                else if ( store.contains( username ) || configuredUsers.contains( username ) ||
+                          accepted.containsKey( username ) )
+                {
+                    rejections.add( new Rejection( username, "User: '" + username + "' is already in the repository" ) );
+                }
+                else
+                {
+                    accepted.put( username, (UserInfo) result );
+                }
+            }
+
+            if ( !accepted.isEmpty() && users != null )
+            {
+                for ( String username : users.addAll( accepted ) )
+                {
+                    rejections.add( new Rejection( username, "User: '" + username + "' is already in the repository" ) );
+                }
+            }
+            else if ( !accepted.isEmpty() )
+            {
+                if ( log != null )
+                {
+                    try
+                    {
+                        log.appendAdds( accepted );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new IllegalStateException( "Failed to record users in PKI user log: " + e.getMessage(), e );
+                    }
+                }
+                store.apply( accepted );
+            }
+        }
+        if ( users != null )
+        {
+            reconcile();
+        }
+        return rejections;
     }
 
-    public static UserInfo infoFor( String username )
+    /**
+     * Add or replace a user that is given by configuration rather than added at runtime. Such a user
+     * is re-created from configuration on every start, and is therefore not recorded in the log.
+     *
+     * @param userInfo as created by {@link #newUserInfo(String, String...)}
+     */
+    static void addConfigured( String username, UserInfo userInfo )
+    {
+        synchronized ( writeLock )
+        {
+            configuredUsers.add( username );
+            UserInfo replaced = store.put( username, userInfo );
+            if ( replaced != null )
+            {
+                replaced.close();
+            }
+        }
+        PkiAuthPlugin.tokenCache().invalidate( username );
+    }
+
+    public static void remove( String username )
     {
-        return getUserInfo( username );
+        SystemGraphPkiUsers users = systemGraphForChanges();
+        if ( users != null )
+        {
+            if ( users.remove( username ) )
+            {
+                reconcile();
+            }
+            return;
+        }
+        UserInfo removed;
+        synchronized ( writeLock )
+        {
+            if ( log != null && store.contains( username ) )
+            {
+                try
+                {
+                    log.appendRemove( username );
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException( "Failed to record removal of user '" + username +
+                                                     "' in PKI user log: " + e.getMessage(), e );
+                }
+            }
+            removed = store.remove( username );
+        }
+        if ( removed != null )
+        {
+            removed.close();
+        }
+        PkiAuthPlugin.tokenCache().invalidate( username );
     }
 
-    private static UserInfo getUserInfo( String username )
+    public static UserInfo infoFor( String username )
     {
-        UserInfo info = usernameToInfo.get( username );
+        UserInfo info = store.get( username );
+        if ( info == null && reconcileOnMiss() )
+        {
+            info = store.get( username );
+        }
         if ( info == null )
         {
             throw new IllegalArgumentException( "User: '" + username + "' is not in the repository" );
@@ -64,13 +496,51 @@ public class PkiRepository
         return info;
     }
 
-    private static PublicKey readPublicKey( String publicKeyString )
+    /**
+     * A user that was just added on another member may not have been reconciled yet. Look for changes when a
+     * user is missing, but at most once per interval, so that logins of unknown users cannot flood the system
+     * database.
+     *
+     * @return whether the repository was reconciled
+     */
+    private static boolean reconcileOnMiss()
+    {
+        if ( !systemGraphEnabled || systemGraph == null )
+        {
+            return false;
+        }
+        long now = System.nanoTime();
+        long last = lastMissReconcile.get();
+        if ( now - last < MISS_RECONCILE_INTERVAL_NANOS || !lastMissReconcile.compareAndSet( last, now ) )
+        {
+            return false;
+        }
+        reconcileQuietly();
+        return true;
+    }
+
+    /**
+     * @throws RuntimeException if the key is not a Base64 encoded public key of a supported algorithm
+     */
+    static UserInfo newUserInfo( String publicKeyString, String... roles )
+    {
+        byte[] encodedKey = Base64.getDecoder().decode( publicKeyString );
+        KeyAlgorithm algorithm = KeyAlgorithm.of( encodedKey );
+        PublicKey publicKey = readPublicKey( algorithm, encodedKey );
+        return new UserInfo( publicKey, algorithm, roleSet( roles ) );
+    }
+
+    private static Set<String> roleSet( String... roles )
+    {
+        return Set.copyOf( Arrays.asList( roles ) );
+    }
+
+    static PublicKey readPublicKey( KeyAlgorithm algorithm, byte[] encodedKey )
     {
         try
         {
-            byte[] bytes = Base64.getDecoder().decode( publicKeyString );
-            X509EncodedKeySpec keySpec = new X509EncodedKeySpec( bytes );
-            KeyFactory keyFactory = KeyFactory.getInstance( PkiAuthPlugin.CRYPTO_ALGORITHM );
+            X509EncodedKeySpec keySpec = new X509EncodedKeySpec( encodedKey );
+            KeyFactory keyFactory = KeyFactory.getInstance( algorithm.keyFactoryAlgorithm() );
             return keyFactory.generatePublic( keySpec );
         }
         catch ( Exception e )
@@ -79,12 +549,66 @@ public class PkiRepository
         }
     }
 
-    @SafeVarargs
-    private static <T> Set<T> newConcurrentSet( T... initialElements )
+    private static void compactIfNeeded( PkiUserLog compactedLog )
+    {
+        synchronized ( writeLock )
+        {
+            long liveRecords = store.size();
+            if ( compactedLog.records() - liveRecords < Math.max( liveRecords, COMPACTION_MIN_DEAD_RECORDS ) )
+            {
+                return;
+            }
+        }
+        try
+        {
+            // Users given by configuration are never appended to the log, and must not be kept by it either
+            compactedLog.compact( () ->
+            {
+                Collection<Map.Entry<String,UserInfo>> users = store.snapshot();
+                users.removeIf( user -> configuredUsers.contains( user.getKey() ) );
+                return users;
+            }, writeLock );
+        }
+        catch ( IOException e )
+        {
+            // The old log is left untouched, so nothing is lost and the next check will try again
+        }
+    }
+
+    public static class Registration
+    {
+        private final String username;
+        private final String publicKey;
+        private final String[] roles;
+
+        public Registration( String username, String publicKey, String... roles )
+        {
+            this.username = username;
+            this.publicKey = publicKey;
+            this.roles = roles;
+        }
+    }
+
+    public static class Rejection
     {
-        Set<T> set = newSetFromMap( new ConcurrentHashMap<>() );
-        Collections.addAll( set, initialElements );
-        return set;
+        private final String username;
+        private final String reason;
+
+        public Rejection( String username, String reason )
+        {
+            this.username = username;
+            this.reason = reason;
+        }
+
+        public String username()
+        {
+            return username;
+        }
+
+        public String reason()
+        {
+            return reason;
+        }
     }
 
     /**
@@ -92,6 +616,14 @@ public class PkiRepository
      */
     public static void reset()
     {
-        usernameToInfo.clear();
+        disablePersistence();
+        disableSystemGraph();
+        configuredUsers.clear();
+        synchronized ( writeLock )
+        {
+            store.clear();
+            store = new HeapUserStore();
+        }
+        PkiAuthPlugin.tokenCache().clear();
     }
 }
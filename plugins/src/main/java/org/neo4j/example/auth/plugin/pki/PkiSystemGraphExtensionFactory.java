@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.neo4j.kernel.extension.ExtensionFactory;
+import org.neo4j.kernel.extension.ExtensionType;
+import org.neo4j.kernel.extension.context.ExtensionContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import static org.neo4j.configuration.GraphDatabaseSettings.SYSTEM_DATABASE_NAME;
+
+/**
+ * Hands the system database to {@link PkiRepository}, which an auth plugin has no other way to get at. It is
+ * loaded by Neo4j for every database, and only does something for the system database.
+ */
+public class PkiSystemGraphExtensionFactory extends ExtensionFactory<PkiSystemGraphExtensionFactory.Dependencies>
+{
+    public interface Dependencies
+    {
+        GraphDatabaseAPI graphDatabaseAPI();
+    }
+
+    public PkiSystemGraphExtensionFactory()
+    {
+        super( ExtensionType.DATABASE, "pki-system-graph" );
+    }
+
+    @Override
+    public Lifecycle newInstance( ExtensionContext context, Dependencies dependencies )
+    {
+        GraphDatabaseAPI database = dependencies.graphDatabaseAPI();
+        if ( !SYSTEM_DATABASE_NAME.equals( database.databaseName() ) )
+        {
+            return new LifecycleAdapter();
+        }
+        SystemGraphPkiUsers users = new SystemGraphPkiUsers( database );
+        return new LifecycleAdapter()
+        {
+            @Override
+            public void start()
+            {
+                PkiRepository.attachSystemGraph( users );
+            }
+
+            @Override
+            public void stop()
+            {
+                PkiRepository.detachSystemGraph( users );
+            }
+        };
+    }
+}
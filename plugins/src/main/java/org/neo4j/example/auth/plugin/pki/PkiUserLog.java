@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only log of the users added to and removed from the {@link PkiRepository}.
+ *
+ * The file starts with a magic number and a format version, followed by records of the form
+ * {@code [payload length:int][crc32 of payload:int][payload]}. The payload of an add record is
+ * {@code [ADD][username][encoded key][roles]}, the payload of a remove record is {@code [REMOVE][username]}.
+ * A record that is cut short or fails its checksum, with no intact record after it, can only be the result of a
+ * crash in the middle of an append, and is truncated when the log is opened. A broken record followed by intact
+ * ones is corruption, which fails the opening and leaves the file as it is rather than dropping the records.
+ *
+ * Opening the log replays it through a memory mapping of the file. The log grows with every change and is
+ * rewritten with only the live users by {@link #compact(Supplier, Object)}, which is intended to run on a
+ * background thread.
+ *
+ * The log is not thread safe, callers are expected to serialize appends and {@link #close()} with a lock,
+ * which is also passed to {@link #compact(Supplier, Object)}.
+ */
+class PkiUserLog implements Closeable
+{
+    interface Replay
+    {
+        void added( String username, byte[] encodedKey, String[] roles );
+
+        void removed( String username );
+    }
+
+    private static final int MAGIC = 0x504B494C; // "PKIL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final long MAX_MAPPED_WINDOW = 1L << 30;
+
+    private final Path file;
+    private FileChannel channel;
+    private long records;
+    private List<ByteBuffer> appendedDuringCompaction;
+    private boolean closed;
+
+    private PkiUserLog( Path file, FileChannel channel, long records )
+    {
+        this.file = file;
+        this.channel = channel;
+        this.records = records;
+    }
+
+    /**
+     * Replay the log in the given file, creating it if it does not exist, and open it for appending.
+     */
+    static PkiUserLog open( Path file, Replay replay ) throws IOException
+    {
+        Files.createDirectories( file.toAbsolutePath().getParent() );
+        FileChannel channel = FileChannel.open( file, CREATE, READ, WRITE );
+        try
+        {
+            if ( channel.size() < FILE_HEADER_SIZE )
+            {
+                channel.truncate( 0 );
+                writeFileHeader( channel );
+                channel.force( true );
+                return new PkiUserLog( file, channel, 0 );
+            }
+
+            long[] replayed = replay( channel, replay );
+            long endOfLog = replayed[0];
+            if ( endOfLog < channel.size() )
+            {
+                channel.truncate( endOfLog );
+                channel.force( true );
+            }
+            channel.position( endOfLog );
+            return new PkiUserLog( file, channel, replayed[1] );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void appendAdd( String username, UserInfo userInfo ) throws IOException
+    {
+        append( addRecord( username, userInfo.getEncodedKey(), userInfo.getRoles() ) );
+        channel.force( false );
+    }
+
+    void appendRemove( String username ) throws IOException
+    {
+        append( removeRecord( username ) );
+        channel.force( false );
+    }
+
+    /**
+     * Append several additions, but only force them to disk once.
+     */
+    void appendAdds( Map<String,UserInfo> users ) throws IOException
+    {
+        for ( Map.Entry<String,UserInfo> user : users.entrySet() )
+        {
+            append( addRecord( user.getKey(), user.getValue().getEncodedKey(), user.getValue().getRoles() ) );
+        }
+        channel.force( false );
+    }
+
+    /**
+     * @return the number of records in the log, live or not
+     */
+    long records()
+    {
+        return records;
+    }
+
+    /**
+     * Rewrite the log so that it only contains the given users.
+     *
+     * The snapshot of live users is taken while holding {@code lock}, the same lock that serializes appends.
+     * The bulk of the rewrite then happens without holding the lock, and appends made in the meantime are
+     * carried over to the new log before it replaces the old one.
+     */
+    void compact( Supplier<Collection<Map.Entry<String,UserInfo>>> liveUsers, Object lock ) throws IOException
+    {
+        Collection<Map.Entry<String,UserInfo>> snapshot;
+        synchronized ( lock )
+        {
+            snapshot = liveUsers.get();
+            appendedDuringCompaction = new ArrayList<>();
+        }
+
+        Path compactedFile = file.resolveSibling( file.getFileName() + ".compacting" );
+        FileChannel compacted = FileChannel.open( compactedFile, CREATE, WRITE, TRUNCATE_EXISTING );
+        try
+        {
+            writeFileHeader( compacted );
+            for ( Map.Entry<String,UserInfo> user : snapshot )
+            {
+                writeFully( compacted, addRecord( user.getKey(), user.getValue().getEncodedKey(), user.getValue().getRoles() ) );
+            }
+
+            synchronized ( lock )
+            {
+                if ( closed )
+                {
+                    return;
+                }
+                for ( ByteBuffer record : appendedDuringCompaction )
+                {
+                    writeFully( compacted, record.duplicate() );
+                }
+                compacted.force( true );
+                compacted.close();
+                Files.move( compactedFile, file, REPLACE_EXISTING, ATOMIC_MOVE );
+
+                channel.close();
+                channel = FileChannel.open( file, WRITE );
+                channel.position( channel.size() );
+                records = snapshot.size() + appendedDuringCompaction.size();
+                appendedDuringCompaction = null;
+            }
+        }
+        finally
+        {
+            if ( compacted.isOpen() )
+            {
+                compacted.close();
+            }
+            synchronized ( lock )
+            {
+                appendedDuringCompaction = null;
+            }
+            Files.deleteIfExists( compactedFile );
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        channel.close();
+    }
+
+    private void append( ByteBuffer record ) throws IOException
+    {
+        if ( appendedDuringCompaction != null )
+        {
+            appendedDuringCompaction.add( record.duplicate() );
+        }
+        writeFully( channel, record );
+        records++;
+    }
+
+    /**
+     * @return the position of the end of the last intact record, and the number of records replayed
+     */
+    private static long[] replay( FileChannel channel, Replay replay ) throws IOException
+    {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_SIZE );
+        channel.read( header, 0 );
+        header.flip();
+        if ( header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION )
+        {
+            throw new IOException( "Not a PKI user log, or of an unsupported version" );
+        }
+
+        CRC32 crc = new CRC32();
+        long position = FILE_HEADER_SIZE;
+        long records = 0;
+        long windowStart = position;
+        MappedByteBuffer window = map( channel, windowStart, size );
+        while ( position + RECORD_HEADER_SIZE <= size )
+        {
+            if ( position + RECORD_HEADER_SIZE > windowStart + window.capacity() )
+            {
+                windowStart = position;
+                window = map( channel, windowStart, size );
+            }
+            int offset = (int) (position - windowStart);
+            int length = window.getInt( offset );
+            int checksum = window.getInt( offset + 4 );
+            long end = position + RECORD_HEADER_SIZE + length;
+            if ( length <= 0 || length > MAX_MAPPED_WINDOW - RECORD_HEADER_SIZE || end > size )
+            {
+                checkTornTail( channel, position );
+                break;
+            }
+            if ( end > windowStart + window.capacity() )
+            {
+                windowStart = position;
+                window = map( channel, windowStart, size );
+                offset = 0;
+            }
+
+            ByteBuffer payload = window.duplicate();
+            payload.position( offset + RECORD_HEADER_SIZE ).limit( offset + RECORD_HEADER_SIZE + length );
+            crc.reset();
+            crc.update( payload.duplicate() );
+            if ( (int) crc.getValue() != checksum )
+            {
+                checkTornTail( channel, position );
+                break;
+            }
+
+            apply( payload, replay );
+            position = end;
+            records++;
+        }
+        return new long[]{position, records};
+    }
+
+    /**
+     * A crash in the middle of an append can only break the last record, so look for an intact record anywhere
+     * after the broken one, which would make it corruption instead.
+     *
+     * @throws IOException if an intact record follows the broken one
+     */
+    private static void checkTornTail( FileChannel channel, long brokenRecord ) throws IOException
+    {
+        long size = channel.size();
+        CRC32 crc = new CRC32();
+        long windowStart = brokenRecord + 1;
+        MappedByteBuffer window = null;
+        for ( long position = brokenRecord + 1; position + RECORD_HEADER_SIZE < size; position++ )
+        {
+            if ( window == null || position + RECORD_HEADER_SIZE > windowStart + window.capacity() )
+            {
+                windowStart = position;
+                window = map( channel, windowStart, size );
+            }
+            int offset = (int) (position - windowStart);
+            int length = window.getInt( offset );
+            long end = position + RECORD_HEADER_SIZE + length;
+            if ( length <= 0 || length > MAX_MAPPED_WINDOW - RECORD_HEADER_SIZE || end > size )
+            {
+                continue;
+            }
+            if ( end > windowStart + window.capacity() )
+            {
+                windowStart = position;
+                window = map( channel, windowStart, size );
+                offset = 0;
+            }
+
+            ByteBuffer payload = window.duplicate();
+            payload.position( offset + RECORD_HEADER_SIZE ).limit( offset + RECORD_HEADER_SIZE + length );
+            crc.reset();
+            crc.update( payload );
+            if ( (int) crc.getValue() == window.getInt( offset + 4 ) )
+            {
+                throw new IOException( "Corrupt record at offset " + brokenRecord + ", followed by intact records from " +
+                                       "offset " + position + ". The log has been left as it is, restore it from a backup " +
+                                       "or truncate it at offset " + brokenRecord + " to drop the records from there on" );
+            }
+        }
+    }
+
+    private static MappedByteBuffer map( FileChannel channel, long start, long size ) throws IOException
+    {
+        return channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( size - start, MAX_MAPPED_WINDOW ) );
+    }
+
+    private static void apply( ByteBuffer payload, Replay replay ) throws IOException
+    {
+        byte type = payload.get();
+        String username = readString( payload );
+        if ( type == ADD )
+        {
+            byte[] encodedKey = new byte[payload.getInt()];
+            payload.get( encodedKey );
+            String[] roles = new String[payload.getShort()];
+            for ( int i = 0; i < roles.length; i++ )
+            {
+                roles[i] = readString( payload );
+            }
+            replay.added( username, encodedKey, roles );
+        }
+        else if ( type == REMOVE )
+        {
+            replay.removed( username );
+        }
+        else
+        {
+            throw new IOException( "Unknown record type " + type + " in PKI user log" );
+        }
+    }
+
+    private static ByteBuffer addRecord( String username, byte[] encodedKey, Set<String> roles )
+    {
+        byte[] usernameBytes = username.getBytes( UTF_8 );
+        List<byte[]> roleBytes = new ArrayList<>( roles.size() );
+        int length = 1 + 2 + usernameBytes.length + 4 + encodedKey.length + 2;
+        for ( String role : roles )
+        {
+            byte[] bytes = role.getBytes( UTF_8 );
+            roleBytes.add( bytes );
+            length += 2 + bytes.length;
+        }
+
+        ByteBuffer record = recordBuffer( length );
+        record.put( ADD );
+        putBytes( record, usernameBytes );
+        record.putInt( encodedKey.length ).put( encodedKey );
+        record.putShort( (short) roleBytes.size() );
+        roleBytes.forEach( bytes -> putBytes( record, bytes ) );
+        return seal( record );
+    }
+
+    private static ByteBuffer removeRecord( String username )
+    {
+        byte[] usernameBytes = username.getBytes( UTF_8 );
+        ByteBuffer record = recordBuffer( 1 + 2 + usernameBytes.length );
+        record.put( REMOVE );
+        putBytes( record, usernameBytes );
+        return seal( record );
+    }
+
+    private static ByteBuffer recordBuffer( int payloadLength )
+    {
+        ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER_SIZE + payloadLength );
+        record.putInt( payloadLength ).putInt( 0 );
+        return record;
+    }
+
+    private static ByteBuffer seal( ByteBuffer record )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( record.array(), RECORD_HEADER_SIZE, record.position() - RECORD_HEADER_SIZE );
+        record.putInt( 4, (int) crc.getValue() );
+        return record.flip();
+    }
+
+    private static void putBytes( ByteBuffer buffer, byte[] bytes )
+    {
+        if ( bytes.length > Short.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Value is too long to be stored in the PKI user log" );
+        }
+        buffer.putShort( (short) bytes.length ).put( bytes );
+    }
+
+    private static String readString( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get( bytes );
+        return new String( bytes, UTF_8 );
+    }
+
+    private static void writeFileHeader( FileChannel channel ) throws IOException
+    {
+        writeFully( channel, ByteBuffer.allocate( FILE_HEADER_SIZE ).putInt( MAGIC ).putInt( FORMAT_VERSION ).flip() );
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+    }
+}
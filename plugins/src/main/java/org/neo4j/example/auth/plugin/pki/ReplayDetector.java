@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the one-time tokens that have been used to log in for as long as they are fresh enough to be
+ * accepted, so that a captured token cannot be used again.
+ *
+ * Tokens are filed by their own timestamp into a ring of time buckets, enough of them to cover a window
+ * before and after the current time plus one that is made ready ahead of time. A replayed token therefore
+ * always lands in the bucket that holds the original, and once the time of a bucket has passed out of the
+ * window it is cleared and reused for a time that is about to come into it.
+ *
+ * Each bucket is a Bloom filter with all bits of a token in the same 64-bit word, so that a token is tested
+ * and recorded with a single compare-and-set, and of two threads recording the same token exactly one
+ * succeeds. Memory is allocated up front for the configured login rate and never grows. Beyond that rate the
+ * filters fill up and fresh tokens are more and more often mistaken for replays, at the configured rate
+ * fewer than one in a thousand are. A client whose token is rejected can simply try again with a new nonce.
+ */
+final class ReplayDetector
+{
+    private static final int BUCKETS_PER_WINDOW = 8;
+    private static final int BITS_PER_TOKEN = 16;
+    private static final int BITS_SET_PER_TOKEN = 6;
+    private static final int MAX_WORDS = 1 << 28;
+    private static final long CLEARING = Long.MIN_VALUE;
+
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int buckets;
+    private final int wordsPerBucket;
+    private final AtomicLongArray words;
+    private final AtomicLongArray bucketTimes;
+    private final AtomicLong nextRotation;
+    private final long rotationIntervalMillis;
+    private final Clock clock;
+    private final LongAdder replays = new LongAdder();
+    // Tokens recorded before the settings changed, consulted until they have all expired
+    private volatile ReplayDetector previous;
+    private final long previousExpiresAt;
+
+    /**
+     * @param window how far the timestamp of a token may be off from the current time
+     * @param maxLoginsPerSecond the login rate to size the filters for
+     * @param previous the detector this one replaces, or null
+     */
+    ReplayDetector( Duration window, int maxLoginsPerSecond, Clock clock, ReplayDetector previous )
+    {
+        if ( window.toMillis() < BUCKETS_PER_WINDOW || maxLoginsPerSecond < 1 )
+        {
+            throw new IllegalStateException( "The replay window must be at least " + BUCKETS_PER_WINDOW +
+                                             " milliseconds and the login rate at least 1 per second" );
+        }
+        this.clock = clock;
+        windowMillis = window.toMillis();
+        bucketMillis = windowMillis / BUCKETS_PER_WINDOW;
+        // Timestamps up to a window on either side of now are accepted, which may touch a bucket more than the
+        // window divides into, and one more bucket is made ready before its time comes
+        buckets = (int) (2 * windowMillis / bucketMillis) + 3;
+
+        long tokensPerBucket = Math.max( 1, maxLoginsPerSecond * bucketMillis / 1000 );
+        long words = Long.highestOneBit( Math.max( 1, tokensPerBucket * BITS_PER_TOKEN / Long.SIZE - 1 ) ) << 1;
+        if ( words * buckets > MAX_WORDS )
+        {
+            throw new IllegalStateException( "Detecting replays at " + maxLoginsPerSecond + " logins per second over " +
+                                             window.getSeconds() + " seconds would take " +
+                                             (words * buckets * Long.BYTES >> 20) + " MB, lower the rate or the window" );
+        }
+        wordsPerBucket = (int) words;
+        this.words = new AtomicLongArray( wordsPerBucket * buckets );
+        bucketTimes = new AtomicLongArray( buckets );
+        for ( int i = 0; i < buckets; i++ )
+        {
+            bucketTimes.set( i, CLEARING );
+        }
+        long now = clock.millis();
+        rotate( now );
+        rotationIntervalMillis = Math.max( 1, bucketMillis / 4 );
+        nextRotation = new AtomicLong( now + rotationIntervalMillis );
+
+        if ( previous != null )
+        {
+            previous.previous = null;
+        }
+        this.previous = previous;
+        previousExpiresAt = now + 2 * windowMillis;
+    }
+
+    /**
+     * @return whether the timestamp of a token is close enough to the current time for the token to be accepted
+     */
+    boolean isFresh( long timestamp )
+    {
+        // Compared as a range, the difference of a timestamp far in the past or future would overflow
+        long now = clock.millis();
+        return timestamp >= now - windowMillis && timestamp <= now + windowMillis;
+    }
+
+    /**
+     * Check whether a token has been recorded before, so that replays are rejected without verifying them.
+     * The hashes are two independent 64-bit hashes of the token.
+     */
+    boolean seen( long timestamp, long hash1, long hash2 )
+    {
+        if ( contains( timestamp, hash1, hash2 ) || seenBefore( timestamp, hash1, hash2 ) )
+        {
+            replays.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a verified token.
+     *
+     * @return true if the token was recorded now, false if it has been recorded before or cannot be recorded,
+     * either way the login must be rejected
+     */
+    boolean record( long timestamp, long hash1, long hash2 )
+    {
+        rotateIfDue();
+        if ( seenBefore( timestamp, hash1, hash2 ) )
+        {
+            replays.increment();
+            return false;
+        }
+        long time = Math.floorDiv( timestamp, bucketMillis );
+        int bucket = (int) Math.floorMod( time, (long) buckets );
+        if ( bucketTimes.get( bucket ) != time )
+        {
+            // After an idle spell the buckets are only brought up to date by the thread that won the rotation,
+            // so a fresh token waits for that rotation to finish rather than being turned away
+            if ( !isFresh( timestamp ) )
+            {
+                return false;
+            }
+            rotate( clock.millis() );
+            if ( bucketTimes.get( bucket ) != time )
+            {
+                return false;
+            }
+        }
+        int index = bucket * wordsPerBucket + (int) (hash1 & (wordsPerBucket - 1));
+        long mask = mask( hash2 );
+        while ( true )
+        {
+            long word = words.get( index );
+            if ( (word & mask) == mask )
+            {
+                replays.increment();
+                return false;
+            }
+            if ( words.compareAndSet( index, word, word | mask ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    long replays()
+    {
+        return replays.sum();
+    }
+
+    long windowSeconds()
+    {
+        return windowMillis / 1000;
+    }
+
+    long memoryBytes()
+    {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    /**
+     * Read 8 bytes of a digest as a hash for {@link #seen} and {@link #record}.
+     */
+    static long hash( byte[] digest, int offset )
+    {
+        long hash = 0;
+        for ( int i = offset; i < offset + Long.BYTES; i++ )
+        {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    private boolean contains( long timestamp, long hash1, long hash2 )
+    {
+        long time = Math.floorDiv( timestamp, bucketMillis );
+        int bucket = (int) Math.floorMod( time, (long) buckets );
+        if ( bucketTimes.get( bucket ) != time )
+        {
+            return false;
+        }
+        long mask = mask( hash2 );
+        return (words.get( bucket * wordsPerBucket + (int) (hash1 & (wordsPerBucket - 1)) ) & mask) == mask;
+    }
+
+    private boolean seenBefore( long timestamp, long hash1, long hash2 )
+    {
+        ReplayDetector before = previous;
+        if ( before == null )
+        {
+            return false;
+        }
+        if ( clock.millis() > previousExpiresAt )
+        {
+            previous = null;
+            return false;
+        }
+        return before.contains( timestamp, hash1, hash2 );
+    }
+
+    private static long mask( long hash )
+    {
+        long mask = 0;
+        for ( int i = 0; i < BITS_SET_PER_TOKEN; i++ )
+        {
+            mask |= 1L << (hash >>> (i * 6));
+        }
+        return mask;
+    }
+
+    /**
+     * One login thread in a while gets to rotate the buckets, the others carry on meanwhile unless the bucket
+     * they need is not ready yet.
+     */
+    private void rotateIfDue()
+    {
+        long now = clock.millis();
+        long due = nextRotation.get();
+        if ( now >= due && nextRotation.compareAndSet( due, now + rotationIntervalMillis ) )
+        {
+            rotate( now );
+        }
+    }
+
+    /**
+     * Make every bucket hold the earliest time it can hold that is still in the window. Buckets whose time
+     * has passed are cleared for a time in the future, which clearing well before that time comes makes safe.
+     * Rotations run one at a time, and a rotation that finds the buckets up to date changes nothing.
+     */
+    private synchronized void rotate( long now )
+    {
+        long earliest = Math.floorDiv( now - windowMillis, bucketMillis );
+        long first = earliest - Math.floorMod( earliest, (long) buckets );
+        for ( int bucket = 0; bucket < buckets; bucket++ )
+        {
+            long time = first + bucket < earliest ? first + bucket + buckets : first + bucket;
+            if ( bucketTimes.get( bucket ) != time )
+            {
+                // Logins that still see the old time may set bits meanwhile, which can only cause false positives
+                bucketTimes.set( bucket, CLEARING );
+                int start = bucket * wordsPerBucket;
+                for ( int i = start; i < start + wordsPerBucket; i++ )
+                {
+                    words.set( i, 0 );
+                }
+                bucketTimes.set( bucket, time );
+            }
+        }
+    }
+}
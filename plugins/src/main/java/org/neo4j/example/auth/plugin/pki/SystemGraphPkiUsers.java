@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.exceptions.KernelException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.IndexType;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.internal.kernel.api.IndexQueryConstraints;
+import org.neo4j.internal.kernel.api.InternalIndexState;
+import org.neo4j.internal.kernel.api.NodeValueIndexCursor;
+import org.neo4j.internal.kernel.api.PropertyIndexQuery;
+import org.neo4j.internal.kernel.api.SchemaRead;
+import org.neo4j.internal.schema.IndexDescriptor;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.values.storable.Values;
+
+/**
+ * The PKI users as stored in the system database, which a cluster replicates to all of its members.
+ *
+ * Every change to the users increments a version, which is stored on the changed user as well as on a
+ * single {@code PkiUsers} node. A member keeps track of the version it has seen, and only has to read that
+ * one node to find that nothing has changed, and only has to read the users that have changed otherwise,
+ * which it finds through a range index on the version of the users.
+ * A removed user is kept as a tombstone without a key, so that other members learn about the removal.
+ *
+ * Changes can only be made on the member that is allowed to write to the system database.
+ */
+public final class SystemGraphPkiUsers
+{
+    private static final Label PKI_USER = Label.label( "PkiUser" );
+    private static final Label PKI_USERS = Label.label( "PkiUsers" );
+    private static final String USERNAME = "username";
+    private static final String PUBLIC_KEY = "publicKey";
+    private static final String ROLES = "roles";
+    private static final String REMOVED = "removed";
+    private static final String VERSION = "version";
+    private static final String USERNAME_CONSTRAINT = "pki_user_username";
+    private static final String VERSION_INDEX = "pki_user_version";
+
+    private final GraphDatabaseService database;
+    private volatile boolean schemaCreated;
+    private long version;
+
+    public SystemGraphPkiUsers( GraphDatabaseService database )
+    {
+        this.database = database;
+    }
+
+    /**
+     * Add the given users in one transaction, skipping those that already exist.
+     *
+     * @return the names of the users that already existed
+     */
+    public synchronized List<String> addAll( Map<String,UserInfo> users )
+    {
+        createSchema();
+        List<String> existing = new ArrayList<>();
+        try ( Transaction tx = database.beginTx() )
+        {
+            // Taking the lock on the version node serializes all changes, also those made by concurrent calls
+            Node versionNode = versionNode( tx );
+            tx.acquireWriteLock( versionNode );
+            long changeVersion = (long) versionNode.getProperty( VERSION, 0L ) + 1;
+
+            for ( Map.Entry<String,UserInfo> entry : users.entrySet() )
+            {
+                Node user = tx.findNode( PKI_USER, USERNAME, entry.getKey() );
+                if ( user == null )
+                {
+                    user = tx.createNode( PKI_USER );
+                    user.setProperty( USERNAME, entry.getKey() );
+                }
+                else if ( !(boolean) user.getProperty( REMOVED, false ) )
+                {
+                    existing.add( entry.getKey() );
+                    continue;
+                }
+                UserInfo info = entry.getValue();
+                user.setProperty( PUBLIC_KEY, Base64.getEncoder().encodeToString( info.getEncodedKey() ) );
+                user.setProperty( ROLES, info.getRoles().toArray( new String[0] ) );
+                user.setProperty( REMOVED, false );
+                user.setProperty( VERSION, changeVersion );
+            }
+
+            if ( existing.size() < users.size() )
+            {
+                versionNode.setProperty( VERSION, changeVersion );
+                tx.commit();
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @return whether the user existed
+     */
+    public synchronized boolean remove( String username )
+    {
+        try ( Transaction tx = database.beginTx() )
+        {
+            Node versionNode = versionNode( tx );
+            tx.acquireWriteLock( versionNode );
+            Node user = tx.findNode( PKI_USER, USERNAME, username );
+            if ( user == null || (boolean) user.getProperty( REMOVED, false ) )
+            {
+                return false;
+            }
+            long changeVersion = (long) versionNode.getProperty( VERSION, 0L ) + 1;
+            user.removeProperty( PUBLIC_KEY );
+            user.removeProperty( ROLES );
+            user.setProperty( REMOVED, true );
+            user.setProperty( VERSION, changeVersion );
+            versionNode.setProperty( VERSION, changeVersion );
+            tx.commit();
+            return true;
+        }
+    }
+
+    /**
+     * Read the users that have changed since the last call, the first call reads all of them.
+     *
+     * @return the changed users in no particular order, with a null value for each removed user
+     */
+    public synchronized Map<String,UserInfo> changes()
+    {
+        Map<String,UserInfo> changes = new LinkedHashMap<>();
+        if ( !database.isAvailable() )
+        {
+            return changes;
+        }
+        try ( Transaction tx = database.beginTx() )
+        {
+            Node versionNode;
+            try ( ResourceIterator<Node> versionNodes = tx.findNodes( PKI_USERS ) )
+            {
+                versionNode = versionNodes.hasNext() ? versionNodes.next() : null;
+            }
+            long latest = versionNode == null ? 0L : (long) versionNode.getProperty( VERSION, 0L );
+            if ( latest == version )
+            {
+                return changes;
+            }
+            if ( latest < version )
+            {
+                // The system database has been replaced, e.g. restored from a backup
+                version = 0;
+            }
+
+            // Changes are committed in version order, and each one together with the version node. All changes
+            // up to the version read above are therefore visible below, newer ones may or may not be.
+            if ( !readChangedUsers( tx, version, changes ) )
+            {
+                try ( ResourceIterator<Node> users = tx.findNodes( PKI_USER ) )
+                {
+                    while ( users.hasNext() )
+                    {
+                        Node user = users.next();
+                        if ( (long) user.getProperty( VERSION, 0L ) > version )
+                        {
+                            changes.put( (String) user.getProperty( USERNAME ), toUserInfo( user ) );
+                        }
+                    }
+                }
+            }
+            version = latest;
+        }
+        return changes;
+    }
+
+    /**
+     * Read the users changed after the given version by seeking the version index, which the core API cannot do.
+     *
+     * @return false if the index is not online, e.g. before this version of the plugin has made its first change,
+     * in which case nothing has been read
+     */
+    @SuppressWarnings( "deprecation" )
+    private static boolean readChangedUsers( Transaction tx, long since, Map<String,UserInfo> changes )
+    {
+        KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+        SchemaRead schemaRead = ktx.schemaRead();
+        try
+        {
+            IndexDescriptor index = schemaRead.indexGetForName( VERSION_INDEX );
+            if ( index == IndexDescriptor.NO_INDEX || schemaRead.indexGetState( index ) != InternalIndexState.ONLINE )
+            {
+                return false;
+            }
+            try ( NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor( ktx.cursorContext(), ktx.memoryTracker() ) )
+            {
+                ktx.dataRead().nodeIndexSeek( ktx.queryContext(), ktx.dataRead().indexReadSession( index ), cursor,
+                        IndexQueryConstraints.unconstrained(),
+                        PropertyIndexQuery.range( index.schema().getPropertyId(), Values.longValue( since ), false, null, false ) );
+                while ( cursor.next() )
+                {
+                    Node user = tx.getNodeById( cursor.nodeReference() );
+                    changes.put( (String) user.getProperty( USERNAME ), toUserInfo( user ) );
+                }
+            }
+            return true;
+        }
+        catch ( KernelException e )
+        {
+            // The index has been dropped meanwhile
+            changes.clear();
+            return false;
+        }
+    }
+
+    private static UserInfo toUserInfo( Node user )
+    {
+        if ( (boolean) user.getProperty( REMOVED, false ) )
+        {
+            return null;
+        }
+        // Keys were validated before they were stored, parsing them is left until the users log in
+        byte[] encodedKey = Base64.getDecoder().decode( (String) user.getProperty( PUBLIC_KEY ) );
+        return new UserInfo( encodedKey, KeyAlgorithm.of( encodedKey ), Set.of( (String[]) user.getProperty( ROLES ) ) );
+    }
+
+    private static Node versionNode( Transaction tx )
+    {
+        try ( ResourceIterator<Node> versionNodes = tx.findNodes( PKI_USERS ) )
+        {
+            return versionNodes.hasNext() ? versionNodes.next() : tx.createNode( PKI_USERS );
+        }
+    }
+
+    private void createSchema()
+    {
+        if ( schemaCreated )
+        {
+            return;
+        }
+        try ( Transaction tx = database.beginTx() )
+        {
+            Schema schema = tx.schema();
+            boolean hasConstraint = false;
+            for ( ConstraintDefinition constraint : schema.getConstraints( PKI_USER ) )
+            {
+                hasConstraint |= USERNAME_CONSTRAINT.equals( constraint.getName() );
+            }
+            boolean hasVersionIndex = false;
+            for ( IndexDefinition index : schema.getIndexes( PKI_USER ) )
+            {
+                hasVersionIndex |= VERSION_INDEX.equals( index.getName() );
+            }
+            if ( !hasConstraint )
+            {
+                // Makes looking up a user by name an index lookup, and guards against duplicates
+                schema.constraintFor( PKI_USER ).assertPropertyIsUnique( USERNAME ).withName( USERNAME_CONSTRAINT ).create();
+            }
+            if ( !hasVersionIndex )
+            {
+                // Lets every member read only the users that have changed since the version it has seen
+                schema.indexFor( PKI_USER ).on( VERSION ).withIndexType( IndexType.RANGE ).withName( VERSION_INDEX ).create();
+            }
+            tx.commit();
+            schemaCreated = true;
+        }
+    }
+}
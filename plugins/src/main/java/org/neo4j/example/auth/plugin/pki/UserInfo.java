@@ -19,27 +19,167 @@
 package org.neo4j.example.auth.plugin.pki;
 
 import java.security.PublicKey;
-import java.util.Collections;
+import java.security.Signature;
 import java.util.Set;
+import javax.crypto.Cipher;
+
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class UserInfo
 {
-    private final PublicKey publicKey;
+    private final byte[] encodedKey;
+    private final KeyAlgorithm algorithm;
     private final Set<String> roles;
+    private volatile PublicKey publicKey;
+    private volatile byte[] principalBytes;
+    private volatile AuthInfo authInfo;
+    private volatile CryptoPool<Cipher> ciphers;
+    private volatile CryptoPool<Signature> verifiers;
 
     public UserInfo( PublicKey publicKey, Set<String> roles )
+    {
+        this( publicKey, KeyAlgorithm.RSA, roles );
+    }
+
+    public UserInfo( PublicKey publicKey, KeyAlgorithm algorithm, Set<String> roles )
     {
         this.publicKey = publicKey;
-        this.roles = roles;
+        this.encodedKey = null;
+        this.algorithm = algorithm;
+        this.roles = Set.copyOf( roles );
+    }
+
+    /**
+     * Create a user from an X.509 encoded key that has been validated before, e.g. when it is replayed from
+     * the {@link PkiUserLog} or read from the {@link OffHeapUserStore}. Parsing the key is deferred until it is
+     * first needed, so that a repository with a large number of users can be restored without paying for parsing
+     * all of their keys up front.
+     */
+    UserInfo( byte[] encodedKey, KeyAlgorithm algorithm, Set<String> roles )
+    {
+        this.encodedKey = encodedKey;
+        this.algorithm = algorithm;
+        this.roles = Set.copyOf( roles );
     }
 
     public PublicKey getPublicKey()
     {
-        return publicKey;
+        PublicKey key = publicKey;
+        if ( key == null )
+        {
+            // Racing threads may both parse the key, which is harmless
+            key = PkiRepository.readPublicKey( algorithm, encodedKey );
+            publicKey = key;
+        }
+        return key;
     }
 
+    public KeyAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * @return the roles of the user, an immutable set
+     */
     public Set<String> getRoles()
     {
-        return Collections.unmodifiableSet( roles );
+        return roles;
+    }
+
+    /**
+     * The UTF-8 encoding of the name this user is registered under, to compare tokens against without
+     * creating strings. A user is only ever looked up by that one name, so it is captured on first use.
+     */
+    byte[] principalBytes( String username )
+    {
+        byte[] bytes = principalBytes;
+        if ( bytes == null )
+        {
+            bytes = username.getBytes( UTF_8 );
+            principalBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * The result of a successful login as this user, created once and handed out to every login.
+     */
+    AuthInfo authInfo( String username )
+    {
+        AuthInfo info = authInfo;
+        if ( info == null )
+        {
+            info = AuthInfo.of( username, roles );
+            authInfo = info;
+        }
+        return info;
+    }
+
+    byte[] getEncodedKey()
+    {
+        return encodedKey != null ? encodedKey : publicKey.getEncoded();
+    }
+
+    CryptoPool<Cipher> ciphers()
+    {
+        CryptoPool<Cipher> pool = ciphers;
+        if ( pool == null )
+        {
+            synchronized ( this )
+            {
+                pool = ciphers;
+                if ( pool == null )
+                {
+                    pool = new CryptoPool<>( () ->
+                    {
+                        Cipher cipher = Cipher.getInstance( PkiAuthPlugin.CRYPTO_ALGORITHM );
+                        cipher.init( Cipher.DECRYPT_MODE, getPublicKey() );
+                        return cipher;
+                    } );
+                    ciphers = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    CryptoPool<Signature> verifiers()
+    {
+        CryptoPool<Signature> pool = verifiers;
+        if ( pool == null )
+        {
+            synchronized ( this )
+            {
+                pool = verifiers;
+                if ( pool == null )
+                {
+                    pool = new CryptoPool<>( () ->
+                    {
+                        Signature signature = Signature.getInstance( algorithm.signatureAlgorithm() );
+                        signature.initVerify( getPublicKey() );
+                        return signature;
+                    } );
+                    verifiers = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    void close()
+    {
+        CryptoPool<Cipher> cipherPool = ciphers;
+        if ( cipherPool != null )
+        {
+            cipherPool.close();
+        }
+        CryptoPool<Signature> verifierPool = verifiers;
+        if ( verifierPool != null )
+        {
+            verifierPool.close();
+        }
     }
 }
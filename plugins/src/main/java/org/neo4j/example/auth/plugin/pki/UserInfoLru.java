@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The users that have logged in most recently, with their keys parsed and their crypto primitives pooled, for
+ * {@link OffHeapUserStore}. It is split into segments by username, each with its own lock and its own least
+ * recently used order, so that concurrent logins of different users rarely wait for each other.
+ *
+ * Every user is cached together with the version of the record it was read from, and is only handed out for
+ * that same version. A user that has been replaced therefore never comes back from the cache, even if the
+ * cache was filled by a lookup that raced with the replacement.
+ */
+final class UserInfoLru
+{
+    private static final int SEGMENTS = 16;
+
+    private final int maxSize;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    UserInfoLru( int maxSize )
+    {
+        this.maxSize = maxSize;
+        // Sized so that the segments together hold no more than the maximum
+        for ( int i = 0; i < SEGMENTS; i++ )
+        {
+            segments[i] = new Segment( maxSize / SEGMENTS + (i < maxSize % SEGMENTS ? 1 : 0) );
+        }
+    }
+
+    /**
+     * @return the cached user read from the given version of its record, or null
+     */
+    UserInfo get( String username, long version )
+    {
+        Segment segment = segmentOf( username );
+        synchronized ( segment )
+        {
+            Entry entry = segment.get( username );
+            return entry != null && entry.version == version ? entry.info : null;
+        }
+    }
+
+    void put( String username, long version, UserInfo info )
+    {
+        Segment segment = segmentOf( username );
+        synchronized ( segment )
+        {
+            if ( segment.maxSize > 0 )
+            {
+                segment.put( username, new Entry( version, info ) );
+            }
+        }
+    }
+
+    /**
+     * @return the user that was cached, or null
+     */
+    UserInfo remove( String username )
+    {
+        Segment segment = segmentOf( username );
+        synchronized ( segment )
+        {
+            Entry entry = segment.remove( username );
+            return entry == null ? null : entry.info;
+        }
+    }
+
+    void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                segment.values().forEach( entry -> entry.info.close() );
+                segment.clear();
+            }
+        }
+    }
+
+    long size()
+    {
+        long size = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    int maxSize()
+    {
+        return maxSize;
+    }
+
+    private Segment segmentOf( String username )
+    {
+        int hash = username.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment extends LinkedHashMap<String,Entry>
+    {
+        private final int maxSize;
+
+        Segment( int maxSize )
+        {
+            super( 16, 0.75f, true );
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String,Entry> eldest )
+        {
+            // An evicted user may still be in use by a login, it is left for the garbage collector
+            return size() > maxSize;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final long version;
+        private final UserInfo info;
+
+        Entry( long version, UserInfo info )
+        {
+            this.version = version;
+            this.info = info;
+        }
+    }
+}
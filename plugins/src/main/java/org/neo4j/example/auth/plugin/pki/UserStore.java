@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where {@link PkiRepository} keeps its users. Lookups may happen concurrently with anything, changes are
+ * serialized by the repository.
+ */
+interface UserStore
+{
+    /**
+     * @return the user, or null if there is no such user
+     */
+    UserInfo get( String username );
+
+    boolean contains( String username );
+
+    /**
+     * @return whether the store has the user with the same key and roles as the given one
+     */
+    boolean holds( String username, UserInfo info );
+
+    /**
+     * Add or replace a user.
+     *
+     * @return the replaced user for the caller to close, or null
+     */
+    UserInfo put( String username, UserInfo info );
+
+    /**
+     * @return the removed user for the caller to close, or null
+     */
+    UserInfo remove( String username );
+
+    /**
+     * Add, replace or remove several users, which become visible to lookups all at once.
+     *
+     * @param changes the users to add or replace, with a null value for those to remove
+     * @return the replaced and removed users for the caller to close
+     */
+    List<UserInfo> apply( Map<String,UserInfo> changes );
+
+    long size();
+
+    /**
+     * @return all users at this point in time, in a collection of their own that the caller may change
+     */
+    Collection<Map.Entry<String,UserInfo>> snapshot();
+
+    /**
+     * Remove and close all users.
+     */
+    void clear();
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+
+/**
+ * A bounded cache of tokens that have already been verified, so that clients reconnecting with the
+ * same token can skip the public-key operation.
+ *
+ * Entries are keyed by principal and hold the digest of the verified token, so a hit requires both
+ * the principal and the exact token bytes to match. A principal only has one entry, the last token
+ * it verified with. An entry also remembers the {@link UserInfo} it was verified against and is only
+ * used as long as the repository still holds that very instance, so removing or re-adding a user
+ * invalidates its entry even before {@link #invalidate(String)} is called.
+ */
+class VerifiedTokenCache
+{
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    static final VerifiedTokenCache DISABLED = new VerifiedTokenCache( 0, Duration.ZERO, Clock.systemUTC() );
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    VerifiedTokenCache( int maxSize, Duration ttl, Clock clock )
+    {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+    }
+
+    boolean isEnabled()
+    {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * Digest a whole token into a new array.
+     */
+    static byte[] digest( byte[] token )
+    {
+        LoginBuffers buffers = LoginBuffers.get();
+        buffers.sha256().update( token );
+        return buffers.completeDigest().clone();
+    }
+
+    AuthInfo get( String principal, UserInfo userInfo, byte[] tokenDigest )
+    {
+        if ( !isEnabled() )
+        {
+            return null;
+        }
+
+        Entry entry = entries.get( principal );
+        if ( entry != null && entry.userInfo == userInfo && entry.expiresAt > clock.millis() &&
+             MessageDigest.isEqual( entry.tokenDigest, tokenDigest ) )
+        {
+            hits.increment();
+            return entry.authInfo;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put( String principal, UserInfo userInfo, byte[] tokenDigest, AuthInfo authInfo )
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+
+        long now = clock.millis();
+        if ( entries.size() >= maxSize && !entries.containsKey( principal ) )
+        {
+            makeRoom( now );
+        }
+        // The digest may live in a shared buffer, so it is copied
+        entries.put( principal, new Entry( userInfo, tokenDigest.clone(), authInfo, now + ttlMillis ) );
+    }
+
+    void invalidate( String principal )
+    {
+        entries.remove( principal );
+    }
+
+    void clear()
+    {
+        entries.clear();
+    }
+
+    long size()
+    {
+        return entries.size();
+    }
+
+    long hits()
+    {
+        return hits.sum();
+    }
+
+    long misses()
+    {
+        return misses.sum();
+    }
+
+    long evictions()
+    {
+        return evictions.sum();
+    }
+
+    int maxSize()
+    {
+        return maxSize;
+    }
+
+    Duration ttl()
+    {
+        return Duration.ofMillis( ttlMillis );
+    }
+
+    private void makeRoom( long now )
+    {
+        // First get rid of everything that has expired, and if that was not enough drop an arbitrary entry.
+        // Concurrent puts may overshoot the max size slightly, which is fine for a cache.
+        entries.values().removeIf( entry -> entry.expiresAt <= now );
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ( entries.size() >= maxSize && iterator.hasNext() )
+        {
+            iterator.next();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final UserInfo userInfo;
+        private final byte[] tokenDigest;
+        private final AuthInfo authInfo;
+        private final long expiresAt;
+
+        Entry( UserInfo userInfo, byte[] tokenDigest, AuthInfo authInfo, long expiresAt )
+        {
+            this.userInfo = userInfo;
+            this.tokenDigest = tokenDigest;
+            this.authInfo = authInfo;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
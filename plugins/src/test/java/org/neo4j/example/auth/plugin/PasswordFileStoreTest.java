@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PasswordFileStoreTest
+{
+    @Test
+    public void shouldAuthenticateUsersFromFile() throws Exception
+    {
+        // Given, a few iterations keep the test fast
+        PasswordFileStore store = read( 10,
+                "# comment",
+                "",
+                "neo:" + PasswordFileStore.hash( "abc123".toCharArray(), 10 ) + ":admin,reader",
+                "tank:" + PasswordFileStore.hash( "operator".toCharArray(), 20 ) + ":" );
+
+        // When
+        AuthInfo neo = store.authenticate( "neo", "abc123".toCharArray() );
+        AuthInfo tank = store.authenticate( "tank", "operator".toCharArray() );
+
+        // Then
+        assertThat( store.size(), equalTo( 2 ) );
+        assertThat( neo.principal(), equalTo( "neo" ) );
+        assertThat( neo.roles(), containsInAnyOrder( "admin", "reader" ) );
+        assertThat( tank.roles().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldRejectWrongPasswordAndUnknownUser() throws Exception
+    {
+        // Given
+        PasswordFileStore store = read( 10, "neo:" + PasswordFileStore.hash( "abc123".toCharArray(), 10 ) + ":admin" );
+
+        // When & Then
+        assertThat( store.authenticate( "neo", "abc124".toCharArray() ), nullValue() );
+        assertThat( store.authenticate( "smith", "abc123".toCharArray() ), nullValue() );
+        assertThat( store.authenticate( "neo", null ), nullValue() );
+    }
+
+    @Test
+    public void shouldRefusePasswordsHashedWithTooFewIterations()
+    {
+        // When
+        IllegalStateException e = assertThrows( IllegalStateException.class,
+                () -> read( 1000, "neo:" + PasswordFileStore.hash( "abc123".toCharArray(), 10 ) + ":admin" ) );
+
+        // Then
+        assertThat( e.getMessage(), containsString( "fewer than the minimum of 1000" ) );
+    }
+
+    @Test
+    public void shouldRefuseMalformedLines()
+    {
+        // When
+        IllegalStateException e = assertThrows( IllegalStateException.class, () -> read( 10, "neo:plaintext:admin" ) );
+
+        // Then
+        assertThat( e.getMessage(), containsString( "line 1" ) );
+    }
+
+    private static PasswordFileStore read( int minimumIterations, String... lines ) throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new StringReader( String.join( "\n", lines ) ) );
+        return PasswordFileStore.read( reader, "users", minimumIterations, 2, Duration.ofSeconds( 10 ) );
+    }
+}
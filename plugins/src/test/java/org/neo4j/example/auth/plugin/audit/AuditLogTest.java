@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.audit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+
+public class AuditLogTest
+{
+    private final Clock clock = Clock.fixed( Instant.parse( "2017-06-01T12:00:00Z" ), ZoneOffset.UTC );
+    private final AuthProviderOperations.Log log = mock( AuthProviderOperations.Log.class );
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void shouldWriteEventsAsJsonLines()
+    {
+        // Given
+        AuditLog auditLog = new AuditLog( "test", 16, capturingSink( null ), clock, log );
+
+        // When
+        auditLog.record( "neo", AuditLog.Outcome.SUCCESS, TimeUnit.MICROSECONDS.toNanos( 1500 ), List.of( "admin", "reader" ) );
+        auditLog.record( "tank\"\n", AuditLog.Outcome.FAILURE, TimeUnit.MICROSECONDS.toNanos( 20 ), null );
+        auditLog.close();
+
+        // Then
+        assertThat( lines, contains(
+                "{\"time\":\"2017-06-01T12:00:00Z\",\"plugin\":\"test\",\"principal\":\"neo\",\"outcome\":\"SUCCESS\"," +
+                        "\"latencyMicros\":1500,\"roles\":[\"admin\",\"reader\"]}",
+                "{\"time\":\"2017-06-01T12:00:00Z\",\"plugin\":\"test\",\"principal\":\"tank\\\"\\u000a\",\"outcome\":\"FAILURE\"," +
+                        "\"latencyMicros\":20,\"roles\":[]}" ) );
+    }
+
+    @Test
+    public void shouldDropAndCountEventsWhenFull()
+    {
+        // Given a writer that is stuck on the first event
+        CountDownLatch stuck = new CountDownLatch( 1 );
+        AuditLog auditLog = new AuditLog( "test", 2, capturingSink( stuck ), clock, log );
+
+        // When
+        boolean first = auditLog.record( "neo", AuditLog.Outcome.SUCCESS, 0, null );
+        boolean second = auditLog.record( "trinity", AuditLog.Outcome.SUCCESS, 0, null );
+        boolean third = auditLog.record( "tank", AuditLog.Outcome.SUCCESS, 0, null );
+
+        // Then
+        assertThat( first && second, equalTo( true ) );
+        assertThat( third, equalTo( false ) );
+        assertThat( auditLog.droppedEvents(), equalTo( 1L ) );
+
+        stuck.countDown();
+        auditLog.close();
+        assertThat( lines.size(), equalTo( 2 ) );
+    }
+
+    private AuditSink capturingSink( CountDownLatch blockUntil )
+    {
+        return new AuditSink()
+        {
+            @Override
+            public void write( CharSequence line ) throws IOException
+            {
+                if ( blockUntil != null )
+                {
+                    try
+                    {
+                        blockUntil.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        throw new InterruptedIOException();
+                    }
+                }
+                lines.add( line.toString() );
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
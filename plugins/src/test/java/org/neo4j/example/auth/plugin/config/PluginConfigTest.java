@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PluginConfigTest
+{
+    @Test
+    public void shouldOnlyReportChangedSettings()
+    {
+        // Given
+        PluginConfig previous = config( "a", "1", "b", "2" );
+
+        // When
+        PluginConfig config = config( "a", "1", "b", "3", "c", "4" );
+
+        // Then
+        assertThat( config.changed( previous, "a" ), equalTo( false ) );
+        assertThat( config.changed( previous, "a", "b" ), equalTo( true ) );
+        assertThat( config.changed( previous, "c" ), equalTo( true ) );
+        assertThat( config.changed( previous, "d" ), equalTo( false ) );
+        assertThat( config.changed( null, "d" ), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldReadSettingsWithDefaults()
+    {
+        // Given
+        PluginConfig config = config( "size", " 42 ", "enabled", "true" );
+
+        // Then
+        assertThat( config.intSetting( "size", 7 ), equalTo( 42 ) );
+        assertThat( config.intSetting( "missing", 7 ), equalTo( 7 ) );
+        assertThat( config.booleanSetting( "enabled", false ), equalTo( true ) );
+        assertThat( config.booleanSetting( "missing", true ), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldFailOnInvalidNumber()
+    {
+        // Given
+        PluginConfig config = config( "size", "many" );
+
+        // When
+        IllegalStateException e = assertThrows( IllegalStateException.class, () -> config.intSetting( "size", 7 ) );
+
+        // Then
+        assertThat( e.getMessage(), containsString( "size" ) );
+    }
+
+    private static PluginConfig config( String... namesAndValues )
+    {
+        Properties properties = new Properties();
+        for ( int i = 0; i < namesAndValues.length; i += 2 )
+        {
+            properties.setProperty( namesAndValues[i], namesAndValues[i + 1] );
+        }
+        return PluginConfig.of( properties );
+    }
+}
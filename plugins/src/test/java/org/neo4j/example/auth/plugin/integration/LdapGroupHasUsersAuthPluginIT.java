@@ -53,6 +53,7 @@ import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.Logging;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.Value;
+import org.neo4j.driver.exceptions.AuthenticationException;
 import org.neo4j.driver.exceptions.ClientException;
 import org.neo4j.example.auth.plugin.ldap.LdapGroupHasUsersAuthPlugin;
 import org.neo4j.internal.helpers.HostnamePort;
@@ -110,7 +111,11 @@ public class LdapGroupHasUsersAuthPluginIT extends AbstractLdapTestUnit
 
         try ( FileWriter fileWriter = new FileWriter( new File( configDir, "ldap.conf" ) ) )
         {
-            fileWriter.write( LdapGroupHasUsersAuthPlugin.LDAP_SERVER_URL_SETTING + "=ldap://localhost:10389" );
+            fileWriter.write( LdapGroupHasUsersAuthPlugin.LDAP_SERVER_URL_SETTING + "=ldap://localhost:10389\n" );
+            // A single connection, so that every login has to reuse it
+            fileWriter.write( LdapGroupHasUsersAuthPlugin.POOL_MAX_SIZE_SETTING + "=1\n" );
+            // Small pages, so that users in several groups need more than one
+            fileWriter.write( LdapGroupHasUsersAuthPlugin.SEARCH_PAGE_SIZE_SETTING + "=1\n" );
         }
 
         // Start up server with authentication enabled
@@ -166,6 +171,45 @@ public class LdapGroupHasUsersAuthPluginIT extends AbstractLdapTestUnit
         }
     }
 
+    @Test
+    public void shouldGetRolesOfAllGroupsOfUser()
+    {
+        // Login with user that is both a reader and a publisher
+        try( Driver driver = GraphDatabase.driver( boltURI(),
+                AuthTokens.basic( "morpheus", "abc123" ), config );
+             Session session = driver.session() )
+        {
+            Value single = session.run( "CREATE (n) RETURN count(n)" ).single().get( 0 );
+            assertThat( single.asLong(), equalTo( 1L ) );
+        }
+    }
+
+    @Test
+    public void shouldKeepLoggingInOverPooledConnectionsAfterFailedLogins()
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            // A failed bind must not poison the pooled connection for the next user
+            try ( Driver driver = GraphDatabase.driver( boltURI(), AuthTokens.basic( "neo", "wrong" ), config );
+                  Session session = driver.session() )
+            {
+                session.run( "MATCH (n) RETURN count(n)" ).consume();
+                fail( "Should not be possible to log in with the wrong password" );
+            }
+            catch ( AuthenticationException e )
+            {
+                // expected
+            }
+
+            try ( Driver driver = GraphDatabase.driver( boltURI(), AuthTokens.basic( "neo", "abc123" ), config );
+                  Session session = driver.session() )
+            {
+                Value single = session.run( "MATCH (n) RETURN count(n)" ).single().get( 0 );
+                assertThat( single.asLong(), greaterThanOrEqualTo( 0L ) );
+            }
+        }
+    }
+
     private URI boltURI()
     {
         HostnamePort hostPort = connectorPortRegister.getLocalAddress( ConnectorType.BOLT );
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.integration;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.annotations.LoadSchema;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.runner.Description;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import org.neo4j.example.auth.plugin.ldap.LdapGroupHasUsersAuthPlugin;
+import org.neo4j.test.extension.Inject;
+import org.neo4j.test.extension.testdirectory.TestDirectoryExtension;
+import org.neo4j.test.utils.TestDirectory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Logs in with the plugin directly against three in-process replicas of the directory, each with
+ * latency injected into its bind and search operations.
+ */
+@TestDirectoryExtension
+public class LdapReplicaFailoverIT
+{
+    private static final String UNREACHABLE_URL = "ldap://localhost:10399";
+
+    private static Replica replica1;
+    private static Replica replica2;
+    private static Replica replica3;
+
+    @Inject
+    private TestDirectory testDirectory;
+
+    private LdapGroupHasUsersAuthPlugin plugin;
+
+    @BeforeAll
+    public static void beforeClass() throws Exception
+    {
+        replica1 = Replica.start( Replica1.class );
+        replica2 = Replica.start( Replica2.class );
+        replica3 = Replica.start( Replica3.class );
+    }
+
+    @AfterAll
+    public static void afterClass() throws Exception
+    {
+        for ( Replica replica : new Replica[]{replica1, replica2, replica3} )
+        {
+            if ( replica != null )
+            {
+                replica.stop();
+            }
+        }
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        if ( plugin != null )
+        {
+            plugin.shutdown();
+        }
+        for ( Replica replica : new Replica[]{replica1, replica2, replica3} )
+        {
+            replica.latency.reset();
+        }
+    }
+
+    @Test
+    public void shouldRouteLoginsToTheFastestReplica() throws Exception
+    {
+        // Given
+        replica1.latency.delayMillis = 100;
+        replica2.latency.delayMillis = 100;
+        plugin = initializePlugin( replica1.url(), replica2.url(), replica3.url() );
+
+        // When
+        for ( int i = 0; i < 100; i++ )
+        {
+            login( "neo", "abc123" );
+        }
+
+        // Then the slow replicas only see the first logins, which measure how slow they are
+        assertThat( replica3.latency.binds.get(), greaterThanOrEqualTo( 90 ) );
+    }
+
+    @Test
+    public void shouldFailOverWhenReplicaIsUnreachable() throws Exception
+    {
+        // Given
+        plugin = initializePlugin( UNREACHABLE_URL, replica1.url() );
+
+        // When
+        for ( int i = 0; i < 20; i++ )
+        {
+            login( "neo", "abc123" );
+        }
+
+        // Then
+        assertThat( replica1.latency.binds.get(), equalTo( 20 ) );
+    }
+
+    @Test
+    public void shouldFailOverWhenReplicaDoesNotRespondInTime() throws Exception
+    {
+        // Given a replica that takes longer than the read timeout
+        replica1.latency.delayMillis = 3000;
+        plugin = initializePlugin( replica1.url(), replica2.url() );
+
+        // When
+        for ( int i = 0; i < 10; i++ )
+        {
+            login( "neo", "abc123" );
+        }
+
+        // Then the slow replica is backing off after its first timeout
+        assertThat( replica1.latency.binds.get(), equalTo( 1 ) );
+        assertThat( replica2.latency.binds.get(), equalTo( 10 ) );
+    }
+
+    private void login( String username, String password ) throws Exception
+    {
+        assertThat( plugin.authenticateAndAuthorize( token( username, password ) ).principal(), equalTo( username ) );
+    }
+
+    private LdapGroupHasUsersAuthPlugin initializePlugin( String... urls ) throws IOException
+    {
+        Path home = testDirectory.homePath();
+        Path configDir = Files.createDirectories( home.resolve( "conf" ) );
+        try ( Writer writer = Files.newBufferedWriter( configDir.resolve( "ldap.conf" ) ) )
+        {
+            writer.write( LdapGroupHasUsersAuthPlugin.LDAP_SERVER_URL_SETTING + "=" + String.join( ",", urls ) + "\n" );
+            writer.write( LdapGroupHasUsersAuthPlugin.READ_TIMEOUT_MILLIS_SETTING + "=500\n" );
+        }
+
+        AuthProviderOperations api = mock( AuthProviderOperations.class );
+        when( api.neo4jHome() ).thenReturn( home );
+        when( api.clock() ).thenReturn( Clock.systemUTC() );
+        when( api.log() ).thenReturn( mock( AuthProviderOperations.Log.class ) );
+
+        LdapGroupHasUsersAuthPlugin ldapPlugin = new LdapGroupHasUsersAuthPlugin();
+        ldapPlugin.initialize( api );
+        return ldapPlugin;
+    }
+
+    private static AuthToken token( String username, String password )
+    {
+        return new AuthToken()
+        {
+            @Override
+            public String principal()
+            {
+                return username;
+            }
+
+            @Override
+            public char[] credentials()
+            {
+                return password.toCharArray();
+            }
+
+            @Override
+            public Map<String,Object> parameters()
+            {
+                return Map.of();
+            }
+        };
+    }
+
+    private static final class Replica
+    {
+        private final DirectoryService service;
+        private final LdapServer server;
+        private final LatencyInterceptor latency;
+
+        private Replica( DirectoryService service, LdapServer server, LatencyInterceptor latency )
+        {
+            this.service = service;
+            this.server = server;
+            this.latency = latency;
+        }
+
+        static Replica start( Class<?> annotated ) throws Exception
+        {
+            Description description = Description.createSuiteDescription( annotated.getSimpleName(), annotated.getAnnotations() );
+            DirectoryService service = DSAnnotationProcessor.getDirectoryService( description );
+            DSAnnotationProcessor.applyLdifs( description, service );
+            LatencyInterceptor latency = new LatencyInterceptor();
+            service.addFirst( latency );
+            LdapServer server = ServerAnnotationProcessor.createLdapServer( description, service );
+            server.setConfidentialityRequired( false );
+            return new Replica( service, server, latency );
+        }
+
+        String url()
+        {
+            return "ldap://localhost:" + server.getPort();
+        }
+
+        void stop() throws Exception
+        {
+            server.stop();
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Delays binds and searches, and counts the binds.
+     */
+    private static final class LatencyInterceptor extends BaseInterceptor
+    {
+        private final AtomicInteger binds = new AtomicInteger();
+        private volatile long delayMillis;
+
+        LatencyInterceptor()
+        {
+            super( "latencyInterceptor" );
+        }
+
+        @Override
+        public void bind( BindOperationContext bindContext ) throws LdapException
+        {
+            binds.incrementAndGet();
+            delay();
+            next( bindContext );
+        }
+
+        @Override
+        public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+        {
+            delay();
+            return next( searchContext );
+        }
+
+        void reset()
+        {
+            delayMillis = 0;
+            binds.set( 0 );
+        }
+
+        private void delay()
+        {
+            try
+            {
+                Thread.sleep( delayMillis );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @CreateDS(
+            name = "Replica1",
+            partitions = { @CreatePartition( name = "example", suffix = "dc=example,dc=com" ) },
+            loadedSchemas = { @LoadSchema( name = "nis" ) } )
+    @CreateLdapServer( transports = { @CreateTransport( protocol = "LDAP", port = 10392, address = "localhost" ) } )
+    @ApplyLdifFiles( "ldap_group_has_users_test_data.ldif" )
+    private static class Replica1
+    {
+    }
+
+    @CreateDS(
+            name = "Replica2",
+            partitions = { @CreatePartition( name = "example", suffix = "dc=example,dc=com" ) },
+            loadedSchemas = { @LoadSchema( name = "nis" ) } )
+    @CreateLdapServer( transports = { @CreateTransport( protocol = "LDAP", port = 10393, address = "localhost" ) } )
+    @ApplyLdifFiles( "ldap_group_has_users_test_data.ldif" )
+    private static class Replica2
+    {
+    }
+
+    @CreateDS(
+            name = "Replica3",
+            partitions = { @CreatePartition( name = "example", suffix = "dc=example,dc=com" ) },
+            loadedSchemas = { @LoadSchema( name = "nis" ) } )
+    @CreateLdapServer( transports = { @CreateTransport( protocol = "LDAP", port = 10394, address = "localhost" ) } )
+    @ApplyLdifFiles( "ldap_group_has_users_test_data.ldif" )
+    private static class Replica3
+    {
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.integration;
+
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.annotations.LoadSchema;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.runner.Description;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.api.PredefinedRoles;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import org.neo4j.example.auth.plugin.ldap.LdapGroupHasUsersAuthPlugin;
+import org.neo4j.example.auth.plugin.ldap.LdapSslSocketFactory;
+import org.neo4j.test.extension.Inject;
+import org.neo4j.test.extension.testdirectory.TestDirectoryExtension;
+import org.neo4j.test.utils.TestDirectory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Logs in with the plugin directly over ldaps and StartTLS, to count the TLS handshakes it takes.
+ * The connections use TLS 1.2, as resumed TLS 1.3 sessions cannot be told apart from new ones.
+ */
+@CreateDS(
+        name = "TlsTest",
+        partitions = { @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com" )
+        },
+        loadedSchemas = {
+                @LoadSchema( name = "nis" ),
+        } )
+@CreateLdapServer(
+        transports = {
+                @CreateTransport( protocol = "LDAP", port = 10391, address = "localhost" ),
+                @CreateTransport( protocol = "LDAPS", port = 10636, address = "localhost", ssl = true )
+        },
+        extendedOpHandlers = { StartTlsHandler.class }
+)
+@ApplyLdifFiles( "ldap_group_has_users_test_data.ldif" )
+@TestDirectoryExtension
+public class LdapTlsIT extends AbstractLdapTestUnit
+{
+    private static final int LOGINS = 1000;
+    private static final int THREADS = 8;
+    private static final int POOL_SIZE = 4;
+
+    @Inject
+    private TestDirectory testDirectory;
+
+    private LdapGroupHasUsersAuthPlugin plugin;
+
+    @BeforeAll
+    public static void beforeClass() throws Exception
+    {
+        processLdapAnnotations( LdapTlsIT.class );
+    }
+
+    @BeforeEach
+    public void setup()
+    {
+        getLdapServer().setConfidentialityRequired( false );
+        LdapSslSocketFactory.resetStatistics();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        if ( plugin != null )
+        {
+            plugin.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldDoASingleFullHandshakePerThousandLoginsOverLdaps() throws Exception
+    {
+        // Given
+        plugin = initializePlugin( "ldaps://localhost:10636", false );
+
+        // When
+        loginConcurrently( "neo", "abc123", PredefinedRoles.READER );
+
+        // Then
+        assertHandshakesPerThousandLogins();
+    }
+
+    @Test
+    public void shouldDoASingleFullHandshakePerThousandLoginsOverStartTls() throws Exception
+    {
+        // Given
+        plugin = initializePlugin( "ldap://localhost:10391", true );
+
+        // When
+        loginConcurrently( "neo", "abc123", PredefinedRoles.READER );
+
+        // Then
+        assertHandshakesPerThousandLogins();
+    }
+
+    @Test
+    public void shouldKeepStartTlsConnectionAfterFailedLogin() throws Exception
+    {
+        // Given
+        plugin = initializePlugin( "ldap://localhost:10391", true );
+
+        // When
+        for ( int i = 0; i < 10; i++ )
+        {
+            try
+            {
+                plugin.authenticateAndAuthorize( token( "neo", "wrong" ) );
+                fail( "Should not be possible to log in with the wrong password" );
+            }
+            catch ( AuthenticationException e )
+            {
+                // expected
+            }
+            assertThat( plugin.authenticateAndAuthorize( token( "neo", "abc123" ) ).principal(), equalTo( "neo" ) );
+        }
+
+        // Then
+        assertThat( LdapSslSocketFactory.handshakes(), equalTo( 1L ) );
+    }
+
+    private void loginConcurrently( String username, String password, String expectedRole ) throws Exception
+    {
+        // The first login establishes the session that all other connections of the pool resume
+        assertThat( plugin.authenticateAndAuthorize( token( username, password ) ).roles(), contains( expectedRole ) );
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        try
+        {
+            List<Future<AuthInfo>> logins = new ArrayList<>();
+            for ( int i = 1; i < LOGINS; i++ )
+            {
+                logins.add( executor.submit( () -> plugin.authenticateAndAuthorize( token( username, password ) ) ) );
+            }
+            for ( Future<AuthInfo> login : logins )
+            {
+                assertThat( login.get().principal(), equalTo( username ) );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertHandshakesPerThousandLogins()
+    {
+        long handshakes = LdapSslSocketFactory.handshakes();
+        long fullHandshakes = handshakes - LdapSslSocketFactory.resumedHandshakes();
+
+        // One handshake per pooled connection at most, and only the very first one is a full handshake
+        assertThat( handshakes, lessThanOrEqualTo( (long) POOL_SIZE ) );
+        assertThat( fullHandshakes, equalTo( 1L ) );
+    }
+
+    private LdapGroupHasUsersAuthPlugin initializePlugin( String url, boolean startTls ) throws IOException
+    {
+        Path home = testDirectory.homePath();
+        Path configDir = Files.createDirectories( home.resolve( "conf" ) );
+        try ( Writer writer = Files.newBufferedWriter( configDir.resolve( "ldap.conf" ) ) )
+        {
+            writer.write( LdapGroupHasUsersAuthPlugin.LDAP_SERVER_URL_SETTING + "=" + url + "\n" );
+            writer.write( LdapGroupHasUsersAuthPlugin.USE_STARTTLS_SETTING + "=" + startTls + "\n" );
+            writer.write( LdapGroupHasUsersAuthPlugin.POOL_MAX_SIZE_SETTING + "=" + POOL_SIZE + "\n" );
+            writer.write( LdapGroupHasUsersAuthPlugin.TLS_PROTOCOLS_SETTING + "=TLSv1.2\n" );
+            // The test server uses a generated self-signed certificate
+            writer.write( LdapGroupHasUsersAuthPlugin.TLS_INSECURE_TRUST_ALL_SETTING + "=true\n" );
+        }
+
+        AuthProviderOperations api = mock( AuthProviderOperations.class );
+        when( api.neo4jHome() ).thenReturn( home );
+        when( api.clock() ).thenReturn( Clock.systemUTC() );
+        when( api.log() ).thenReturn( mock( AuthProviderOperations.Log.class ) );
+
+        LdapGroupHasUsersAuthPlugin ldapPlugin = new LdapGroupHasUsersAuthPlugin();
+        ldapPlugin.initialize( api );
+        return ldapPlugin;
+    }
+
+    private static AuthToken token( String username, String password )
+    {
+        return new AuthToken()
+        {
+            @Override
+            public String principal()
+            {
+                return username;
+            }
+
+            @Override
+            public char[] credentials()
+            {
+                return password.toCharArray();
+            }
+
+            @Override
+            public Map<String,Object> parameters()
+            {
+                return Map.of();
+            }
+        };
+    }
+
+    private static void processLdapAnnotations( Class<?> clazz ) throws Exception
+    {
+        Description description = Description.createSuiteDescription( clazz.getSimpleName(), clazz.getAnnotations() );
+        service = DSAnnotationProcessor.getDirectoryService( description );
+        DSAnnotationProcessor.applyLdifs( description, service );
+        ldapServer = ServerAnnotationProcessor.createLdapServer( description, service );
+    }
+}
@@ -32,11 +32,13 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Cipher;
 
 import org.neo4j.configuration.GraphDatabaseSettings;
@@ -53,6 +55,7 @@ import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.Logging;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.Value;
+import org.neo4j.example.auth.plugin.pki.KeyAlgorithm;
 import org.neo4j.example.auth.plugin.pki.PkiAuthPlugin;
 import org.neo4j.example.auth.plugin.pki.PkiProcedures;
 import org.neo4j.example.auth.plugin.pki.PkiRepository;
@@ -76,6 +79,8 @@ import static org.neo4j.configuration.connectors.BoltConnector.DEFAULT_PORT;
 import static org.neo4j.example.auth.plugin.pki.PkiAuthPlugin.CRYPTO_ALGORITHM;
 import static org.neo4j.example.auth.plugin.pki.PkiAuthPlugin.DEFAULT_USER;
 import static org.neo4j.example.auth.plugin.pki.PkiAuthPlugin.ENCRYPTED_USERNAME_PARAMETER_NAME;
+import static org.neo4j.example.auth.plugin.pki.PkiAuthPlugin.SIGNATURE_PARAMETER_NAME;
+import static org.neo4j.example.auth.plugin.pki.PkiAuthPlugin.TIMESTAMP_PARAMETER_NAME;
 
 @TestDirectoryExtension
 public class PkiAuthPluginIT
@@ -94,17 +99,30 @@ public class PkiAuthPluginIT
     {
         defaultUserKeys = generateKeyPair();
 
-        Neo4jLayout home = Neo4jLayout.of( testDirectory.homePath() );
+        writeConfig();
+        startDatabase();
+    }
 
+    private void writeConfig( String... settings ) throws Exception
+    {
         // Create directories and write out test config file
-        File configDir = new File( home.homeDirectory().toFile(), "conf" );
+        File configDir = new File( testDirectory.homePath().toFile(), "conf" );
         configDir.mkdirs();
 
         try ( FileWriter fileWriter = new FileWriter( new File( configDir, "pki.conf" ) ) )
         {
             fileWriter.write( PkiAuthPlugin.DEFAULT_USER_PUBLIC_KEY_SETTING + "=" +
-                              publicKeyAsString( defaultUserKeys.getPublic() ) );
+                              publicKeyAsString( defaultUserKeys.getPublic() ) + "\n" );
+            for ( String setting : settings )
+            {
+                fileWriter.write( setting + "\n" );
+            }
         }
+    }
+
+    private void startDatabase() throws Exception
+    {
+        Neo4jLayout home = Neo4jLayout.of( testDirectory.homePath() );
 
         // Start up server with authentication enabled
         databases = new TestEnterpriseDatabaseManagementServiceBuilder( home )
@@ -180,10 +198,169 @@ public class PkiAuthPluginIT
         }
     }
 
+    @Test
+    public void authenticateUsersWithSignatures()
+    {
+        for ( KeyAlgorithm algorithm : List.of( KeyAlgorithm.ED25519, KeyAlgorithm.EC, KeyAlgorithm.RSA ) )
+        {
+            String testUser = "testUser" + algorithm;
+            KeyPair keyPair = generateKeyPair( algorithm.keyFactoryAlgorithm() );
+            addUser( defaultUserKeys.getPrivate(), testUser, keyPair, ADMIN );
+
+            createNode( signatureAuthToken( testUser, keyPair.getPrivate(), algorithm ) );
+        }
+    }
+
+    @Test
+    public void rejectSignatureWithWrongTimestamp()
+    {
+        KeyPair keyPair = generateKeyPair( KeyAlgorithm.ED25519.keyFactoryAlgorithm() );
+        addUser( defaultUserKeys.getPrivate(), "testUser", keyPair, ADMIN );
+
+        long timestamp = System.currentTimeMillis();
+        AuthToken tamperedToken = signatureAuthToken( "testUser", keyPair.getPrivate(), KeyAlgorithm.ED25519, timestamp, timestamp + 1 );
+
+        try
+        {
+            createNode( tamperedToken );
+            fail( "Should not be possible to log in with a signature for another timestamp" );
+        }
+        catch ( Exception e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void addedUsersSurviveRestartWithPersistence() throws Exception
+    {
+        restartDatabase( PkiAuthPlugin.PERSISTENCE_ENABLED_SETTING + "=true" );
+        assertAddedUsersSurviveRestart();
+    }
+
+    @Test
+    public void addedUsersSurviveRestartInSystemDatabase() throws Exception
+    {
+        restartDatabase( PkiAuthPlugin.SYSTEM_GRAPH_ENABLED_SETTING + "=true" );
+        assertAddedUsersSurviveRestart();
+    }
+
+    private void assertAddedUsersSurviveRestart() throws Exception
+    {
+        String testUser = "testUser";
+        PrivateKey testUserPrivateKey = addNewUser( defaultUserKeys.getPrivate(), testUser, ADMIN );
+        addNewUser( defaultUserKeys.getPrivate(), "removedUser", ADMIN );
+        removeUser( defaultUserKeys.getPrivate(), "removedUser" );
+
+        restartDatabase();
+
+        awaitUser( testUser );
+        createNode( testUser, testUserPrivateKey );
+        createNode( DEFAULT_USER, defaultUserKeys.getPrivate() );
+        try
+        {
+            PkiRepository.infoFor( "removedUser" );
+            fail( "Removed user should not be restored" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void addUsersInBatchAndReportRejectedEntries()
+    {
+        KeyPair firstKeys = generateKeyPair();
+        KeyPair secondKeys = generateKeyPair();
+
+        List<Map<String,Object>> users = List.of(
+                Map.of( "username", "first", "publicKey", publicKeyAsString( firstKeys.getPublic() ), "roles", List.of( ADMIN ) ),
+                Map.of( "username", "second", "publicKey", publicKeyAsString( secondKeys.getPublic() ), "roles", List.of( READER ) ),
+                Map.of( "username", "first", "publicKey", publicKeyAsString( secondKeys.getPublic() ), "roles", List.of( ADMIN ) ),
+                Map.of( "username", "broken", "publicKey", "not a key", "roles", List.of( ADMIN ) ),
+                Map.of( "username", DEFAULT_USER, "publicKey", publicKeyAsString( secondKeys.getPublic() ), "roles", List.of( ADMIN ) ) );
+
+        AuthToken authToken = pkiAuthToken( DEFAULT_USER, defaultUserKeys.getPrivate() );
+        try ( Driver driver = GraphDatabase.driver( boltURI(), authToken, config );
+                Session session = driver.session() )
+        {
+            List<String> rejected = session.run( "CALL addPkiUsers($users) YIELD username RETURN username",
+                    singletonMap( "users", users ) ).list( record -> record.get( "username" ).asString() );
+            assertThat( rejected, equalTo( List.of( "first", "broken", DEFAULT_USER ) ) );
+        }
+
+        createNode( "first", firstKeys.getPrivate() );
+        readNodes( "second", secondKeys.getPrivate() );
+    }
+
+    @Test
+    public void rejectBatchEntriesOfTheWrongType()
+    {
+        KeyPair keys = generateKeyPair();
+
+        List<Map<String,Object>> users = List.of(
+                Map.of( "username", "numbers", "publicKey", 42L, "roles", List.of( ADMIN ) ),
+                Map.of( "username", "nested", "publicKey", publicKeyAsString( keys.getPublic() ), "roles", List.of( List.of( ADMIN ) ) ),
+                Map.of( "username", "single", "publicKey", publicKeyAsString( keys.getPublic() ), "roles", ADMIN ),
+                Map.of( "username", "valid", "publicKey", publicKeyAsString( keys.getPublic() ), "roles", List.of( READER ) ) );
+
+        AuthToken authToken = pkiAuthToken( DEFAULT_USER, defaultUserKeys.getPrivate() );
+        try ( Driver driver = GraphDatabase.driver( boltURI(), authToken, config );
+                Session session = driver.session() )
+        {
+            List<String> rejected = session.run( "CALL addPkiUsers($users) YIELD username RETURN username",
+                    singletonMap( "users", users ) ).list( record -> record.get( "username" ).asString() );
+            assertThat( rejected, equalTo( List.of( "numbers", "nested", "single" ) ) );
+        }
+
+        readNodes( "valid", keys.getPrivate() );
+    }
+
+    private void restartDatabase( String... settings ) throws Exception
+    {
+        databases.shutdown();
+        PkiRepository.reset();
+        if ( settings.length > 0 )
+        {
+            writeConfig( settings );
+        }
+        startDatabase();
+    }
+
+    /**
+     * Users in the system database are only known once the repository has caught up with it after a restart.
+     */
+    private static void awaitUser( String username ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis( 1 );
+        while ( true )
+        {
+            try
+            {
+                PkiRepository.infoFor( username );
+                return;
+            }
+            catch ( IllegalArgumentException e )
+            {
+                if ( System.currentTimeMillis() > deadline )
+                {
+                    throw e;
+                }
+                Thread.sleep( 100 );
+            }
+        }
+    }
+
     private PrivateKey addNewUser( PrivateKey defaultUserPrivateKey, String username, String... roles )
     {
         KeyPair newUserKeyPair = generateKeyPair();
+        addUser( defaultUserPrivateKey, username, newUserKeyPair, roles );
+        return newUserKeyPair.getPrivate();
+    }
 
+    private void addUser( PrivateKey defaultUserPrivateKey, String username, KeyPair newUserKeyPair, String... roles )
+    {
         AuthToken authToken = pkiAuthToken( DEFAULT_USER, defaultUserPrivateKey );
         try ( Driver driver = GraphDatabase.driver( boltURI(), authToken, config );
                 Session session = driver.session() )
@@ -197,8 +374,6 @@ public class PkiAuthPluginIT
 
             session.run( query, params ).consume();
         }
-
-        return newUserKeyPair.getPrivate();
     }
 
     private void removeUser( PrivateKey defaultUserPrivateKey, String username )
@@ -216,8 +391,11 @@ public class PkiAuthPluginIT
 
     private void createNode( String username, PrivateKey privateKey )
     {
-        AuthToken authToken = pkiAuthToken( username, privateKey );
+        createNode( pkiAuthToken( username, privateKey ) );
+    }
 
+    private void createNode( AuthToken authToken )
+    {
         try ( Driver driver = GraphDatabase.driver( boltURI(), authToken, config );
                 Session session = driver.session() )
         {
@@ -247,12 +425,46 @@ public class PkiAuthPluginIT
         return AuthTokens.custom( username, "", "", "", authParams );
     }
 
+    private static AuthToken signatureAuthToken( String username, PrivateKey privateKey, KeyAlgorithm algorithm )
+    {
+        long timestamp = System.currentTimeMillis();
+        return signatureAuthToken( username, privateKey, algorithm, timestamp, timestamp );
+    }
+
+    private static AuthToken signatureAuthToken( String username, PrivateKey privateKey, KeyAlgorithm algorithm,
+            long signedTimestamp, long sentTimestamp )
+    {
+        try
+        {
+            Signature signature = Signature.getInstance( algorithm.signatureAlgorithm() );
+            signature.initSign( privateKey );
+            signature.update( PkiAuthPlugin.signedMessage( username, signedTimestamp ) );
+
+            Map<String,Object> authParams = new HashMap<>();
+            authParams.put( SIGNATURE_PARAMETER_NAME, Base64.getEncoder().encodeToString( signature.sign() ) );
+            authParams.put( TIMESTAMP_PARAMETER_NAME, sentTimestamp );
+            return AuthTokens.custom( username, "", "", "", authParams );
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
     private static KeyPair generateKeyPair()
+    {
+        return generateKeyPair( CRYPTO_ALGORITHM );
+    }
+
+    private static KeyPair generateKeyPair( String algorithm )
     {
         try
         {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance( CRYPTO_ALGORITHM );
-            keyPairGenerator.initialize( 2048 );
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance( algorithm );
+            if ( CRYPTO_ALGORITHM.equals( algorithm ) )
+            {
+                keyPairGenerator.initialize( 2048 );
+            }
             return keyPairGenerator.generateKeyPair();
         }
         catch ( NoSuchAlgorithmException e )
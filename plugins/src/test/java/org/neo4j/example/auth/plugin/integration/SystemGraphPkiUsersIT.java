@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.integration;
+
+import com.neo4j.causalclustering.common.Cluster;
+import com.neo4j.causalclustering.common.ClusterMember;
+import com.neo4j.test.causalclustering.ClusterConfig;
+import com.neo4j.test.causalclustering.ClusterExtension;
+import com.neo4j.test.causalclustering.ClusterFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.example.auth.plugin.pki.SystemGraphPkiUsers;
+import org.neo4j.example.auth.plugin.pki.UserInfo;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.extension.Inject;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.aMapWithSize;
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.neo4j.configuration.GraphDatabaseSettings.SYSTEM_DATABASE_NAME;
+
+/**
+ * Two in-process instances in a cluster, which replicates the system database from the one that can write to
+ * it, the leader, to the other, the follower. Each instance has the {@link SystemGraphPkiUsers} of its own
+ * system database, as it would in a member of the cluster.
+ */
+@ClusterExtension
+public class SystemGraphPkiUsersIT
+{
+    @Inject
+    private ClusterFactory clusterFactory;
+
+    private Cluster cluster;
+    private ClusterMember leader;
+    private ClusterMember follower;
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        cluster = clusterFactory.createCluster( ClusterConfig.clusterConfig().withNumberOfPrimaries( 2 ).withNumberOfSecondaries( 0 ) );
+        cluster.start();
+        leader = cluster.awaitLeader( SYSTEM_DATABASE_NAME );
+        follower = cluster.primaryMembers().stream().filter( member -> member != leader ).findFirst().orElseThrow();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        if ( cluster != null )
+        {
+            cluster.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldReconcileOnlyTheChangesOfOtherMembers() throws Exception
+    {
+        // Given
+        SystemGraphPkiUsers writer = users( leader );
+        SystemGraphPkiUsers member = users( follower );
+        writer.addAll( Map.of( "neo", user( "reader" ), "trinity", user( "reader" ) ) );
+        assertThat( awaitChanges( member, 2 ).keySet(), containsInAnyOrder( "neo", "trinity" ) );
+
+        // When
+        writer.addAll( Map.of( "morpheus", user( "admin" ) ) );
+        writer.remove( "neo" );
+
+        // Then
+        Map<String,UserInfo> changes = awaitChanges( member, 2 );
+        assertThat( changes, aMapWithSize( 2 ) );
+        assertThat( changes.get( "morpheus" ).getRoles(), equalTo( Set.of( "admin" ) ) );
+        assertThat( changes.get( "neo" ), nullValue() );
+        assertThat( member.changes(), anEmptyMap() );
+    }
+
+    @Test
+    public void shouldNotReadUsersThatHaveNotChanged() throws Exception
+    {
+        // Given
+        SystemGraphPkiUsers writer = users( leader );
+        SystemGraphPkiUsers member = users( follower );
+        UserInfo reader = user( "reader" );
+        Map<String,UserInfo> users = new HashMap<>();
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            users.put( "user" + i, reader );
+        }
+        writer.addAll( users );
+        assertThat( awaitChanges( member, 10_000 ), aMapWithSize( 10_000 ) );
+        try ( Transaction tx = systemDatabase( follower ).beginTx() )
+        {
+            tx.schema().awaitIndexesOnline( 1, TimeUnit.MINUTES );
+        }
+
+        // A user that is read again fails the follower, as its version is no longer a number
+        try ( Transaction tx = systemDatabase( leader ).beginTx() )
+        {
+            tx.findNode( Label.label( "PkiUser" ), "username", "user0" ).setProperty( "version", "unreadable" );
+            tx.commit();
+        }
+
+        // When
+        writer.addAll( Map.of( "neo", user( "admin" ) ) );
+
+        // Then
+        assertThat( awaitChanges( member, 1 ).keySet(), contains( "neo" ) );
+    }
+
+    @Test
+    public void shouldRejectExistingUsersButAllowRemovedOnesBack()
+    {
+        // Given only the leader can make changes
+        SystemGraphPkiUsers first = users( leader );
+        SystemGraphPkiUsers second = users( leader );
+        first.addAll( Map.of( "neo", user( "reader" ) ) );
+
+        // When
+        List<String> existing = second.addAll( Map.of( "neo", user( "admin" ) ) );
+
+        // Then
+        assertThat( existing, contains( "neo" ) );
+        assertThat( second.remove( "neo" ), equalTo( true ) );
+        assertThat( second.remove( "neo" ), equalTo( false ) );
+        assertThat( first.addAll( Map.of( "neo", user( "architect" ) ) ), empty() );
+        assertThat( users( leader ).changes().get( "neo" ).getRoles(), equalTo( Set.of( "architect" ) ) );
+    }
+
+    @Test
+    public void shouldKeepUsersOverRestart() throws Exception
+    {
+        // Given
+        users( leader ).addAll( Map.of( "neo", user( "reader" ) ) );
+        awaitChanges( users( follower ), 1 );
+
+        // When
+        follower.shutdown();
+        follower.start();
+
+        // Then
+        assertThat( awaitChanges( users( follower ), 1 ).keySet(), contains( "neo" ) );
+    }
+
+    private static SystemGraphPkiUsers users( ClusterMember member )
+    {
+        return new SystemGraphPkiUsers( systemDatabase( member ) );
+    }
+
+    private static GraphDatabaseService systemDatabase( ClusterMember member )
+    {
+        return member.database( SYSTEM_DATABASE_NAME );
+    }
+
+    /**
+     * A change reaches the follower some time after the leader has committed it, so keep reading changes until
+     * the given number of users have changed, or a minute has passed.
+     */
+    private static Map<String,UserInfo> awaitChanges( SystemGraphPkiUsers member, int users ) throws InterruptedException
+    {
+        Map<String,UserInfo> changes = new HashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos( 1 );
+        while ( true )
+        {
+            changes.putAll( member.changes() );
+            if ( changes.size() >= users || System.nanoTime() - deadline > 0 )
+            {
+                return changes;
+            }
+            Thread.sleep( 10 );
+        }
+    }
+
+    private static UserInfo user( String... roles )
+    {
+        try
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+            generator.initialize( 2048 );
+            return new UserInfo( generator.generateKeyPair().getPublic(), Set.of( roles ) );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+}
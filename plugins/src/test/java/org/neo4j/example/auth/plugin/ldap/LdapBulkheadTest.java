@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LdapBulkheadTest
+{
+    private final LdapBulkhead bulkhead = new LdapBulkhead( 1 );
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    @AfterEach
+    public void tearDown()
+    {
+        release.countDown();
+        bulkhead.close();
+    }
+
+    @Test
+    public void shouldReturnResultOfOperation() throws Exception
+    {
+        // When
+        String result = bulkhead.call( () -> "reader", Duration.ofSeconds( 10 ) );
+
+        // Then
+        assertThat( result, equalTo( "reader" ) );
+    }
+
+    @Test
+    public void shouldGiveUpOnSlowOperationAtDeadline()
+    {
+        // Given
+        long start = System.nanoTime();
+
+        // When
+        assertThrows( TimeLimitExceededException.class,
+                () -> bulkhead.call( this::blockUninterruptibly, Duration.ofMillis( 100 ) ) );
+
+        // Then
+        assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ), lessThan( 5000L ) );
+    }
+
+    @Test
+    public void shouldKeepOperationsThatTimedOutWithinTheLimit() throws Exception
+    {
+        // Given the only permit is held by an operation that its caller gave up on
+        assertThrows( TimeLimitExceededException.class,
+                () -> bulkhead.call( this::blockUninterruptibly, Duration.ofMillis( 100 ) ) );
+
+        // When
+        assertThrows( ServiceUnavailableException.class, () -> bulkhead.call( () -> "reader", Duration.ofMillis( 100 ) ) );
+
+        // Then
+        assertThat( bulkhead.activeOperations(), equalTo( 1 ) );
+        release.countDown();
+        assertThat( bulkhead.call( () -> "reader", Duration.ofSeconds( 10 ) ), equalTo( "reader" ) );
+    }
+
+    @Test
+    public void shouldHandBackPermitOfOperationThatNeverStarted() throws Exception
+    {
+        // Given a bulkhead whose only thread is busy, like one whose callers used up their deadline waiting
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit( this::blockUninterruptibly );
+        LdapBulkhead busy = new LdapBulkhead( 1, executor );
+        try
+        {
+            // When
+            assertThrows( TimeLimitExceededException.class, () -> busy.call( () -> "reader", Duration.ofMillis( 100 ) ) );
+
+            // Then the next caller gets the permit, and does not find the bulkhead full
+            assertThat( busy.activeOperations(), equalTo( 0 ) );
+            assertThrows( TimeLimitExceededException.class, () -> busy.call( () -> "reader", Duration.ofMillis( 100 ) ) );
+            release.countDown();
+            assertThat( busy.call( () -> "reader", Duration.ofSeconds( 10 ) ), equalTo( "reader" ) );
+        }
+        finally
+        {
+            busy.close();
+        }
+    }
+
+    private String blockUninterruptibly()
+    {
+        // Like a JNDI call blocked in a socket read, which interrupting it does not end
+        boolean released = false;
+        while ( !released )
+        {
+            try
+            {
+                released = release.await( 10, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                // keep blocking
+            }
+        }
+        return "released";
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapCircuitBreakerTest
+{
+    private final Clock clock = mock( Clock.class );
+    private final AtomicInteger calls = new AtomicInteger();
+    private final LdapCircuitBreaker.Operation<String> unreachable = () ->
+    {
+        calls.incrementAndGet();
+        throw new CommunicationException( "Connection refused" );
+    };
+    private final LdapCircuitBreaker.Operation<String> reachable = () ->
+    {
+        calls.incrementAndGet();
+        return "reader";
+    };
+
+    // Opens once half of at least 4 of the last 10 operations failed, and probes after a second
+    private final LdapCircuitBreaker breaker = new LdapCircuitBreaker( 10, 4, 0.5, Duration.ofSeconds( 1 ), clock,
+            mock( AuthProviderOperations.Log.class ) );
+
+    @Test
+    public void shouldOpenAndRejectWithoutCallingOnceFailureRateIsReached() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        breaker.call( reachable );
+        breaker.call( reachable );
+        assertThrows( CommunicationException.class, () -> breaker.call( unreachable ) );
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.CLOSED ) );
+
+        // When
+        assertThrows( CommunicationException.class, () -> breaker.call( unreachable ) );
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.OPEN ) );
+        assertThrows( ServiceUnavailableException.class, () -> breaker.call( reachable ) );
+        assertThat( calls.get(), equalTo( 4 ) );
+        assertThat( breaker.rejectedCalls(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void shouldCloseAfterSuccessfulProbe() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        open();
+
+        // When
+        when( clock.millis() ).thenReturn( 1000L );
+        assertThat( breaker.call( reachable ), equalTo( "reader" ) );
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.CLOSED ) );
+        assertThat( breaker.recordedCalls(), equalTo( 0 ) );
+    }
+
+    @Test
+    public void shouldOpenAgainAfterFailedProbe()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        open();
+
+        // When
+        when( clock.millis() ).thenReturn( 1000L );
+        assertThrows( CommunicationException.class, () -> breaker.call( unreachable ) );
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.OPEN ) );
+        assertThat( breaker.millisUntilProbe(), equalTo( 1000L ) );
+    }
+
+    @Test
+    public void shouldNotCountWrongPasswordsAsFailures()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+
+        // When
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertThrows( AuthenticationException.class, () -> breaker.call( () ->
+            {
+                throw new AuthenticationException( "Invalid credentials" );
+            } ) );
+        }
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.CLOSED ) );
+        assertThat( breaker.failureRate(), equalTo( 0.0 ) );
+    }
+
+    @Test
+    public void shouldNotCountOperationsRejectedByBulkheadAsFailures() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+
+        // When the bulkhead is full
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertThrows( ServiceUnavailableException.class, () -> breaker.call( () ->
+            {
+                throw new LdapBulkhead.RejectedException( "All 1 concurrent LDAP operations are busy" );
+            } ) );
+        }
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.CLOSED ) );
+        assertThat( breaker.recordedCalls(), equalTo( 0 ) );
+        assertThat( breaker.call( reachable ), equalTo( "reader" ) );
+    }
+
+    @Test
+    public void shouldNotCountOperationsWithoutPooledConnectionAsFailures() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+
+        // When the connection pool is exhausted
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertThrows( ServiceUnavailableException.class, () -> breaker.call( () ->
+            {
+                throw new LdapConnectionPool.ExhaustedException(
+                        "Timed out waiting for one of 1 LDAP connections to become available" );
+            } ) );
+        }
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.CLOSED ) );
+        assertThat( breaker.recordedCalls(), equalTo( 0 ) );
+        assertThat( breaker.call( reachable ), equalTo( "reader" ) );
+    }
+
+    @Test
+    public void shouldCountReadTimeoutsAsFailures()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+
+        // When the directory does not answer in time, which JNDI reports as a plain NamingException
+        for ( int i = 0; i < 4; i++ )
+        {
+            assertThrows( NamingException.class, () -> breaker.call( () ->
+            {
+                throw new NamingException( "LDAP response read timed out, timeout used: 500 ms." );
+            } ) );
+        }
+
+        // Then
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.OPEN ) );
+    }
+
+    private void open()
+    {
+        for ( int i = 0; i < 4; i++ )
+        {
+            assertThrows( CommunicationException.class, () -> breaker.call( unreachable ) );
+        }
+        assertThat( breaker.state(), equalTo( LdapCircuitBreaker.State.OPEN ) );
+    }
+}
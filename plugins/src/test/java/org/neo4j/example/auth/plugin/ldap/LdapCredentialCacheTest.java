@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapCredentialCacheTest
+{
+    private final Clock clock = mock( Clock.class );
+    // A single iteration keeps the test fast, the work factor does not change the behaviour
+    private final LdapCredentialCache cache = new LdapCredentialCache( 10, Duration.ofSeconds( 60 ), 1, clock );
+
+    @Test
+    public void shouldVerifyCachedPassword()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        cache.put( "neo", "abc123".toCharArray() );
+
+        // When
+        when( clock.millis() ).thenReturn( 59_000L );
+
+        // Then
+        assertThat( cache.verify( "neo", "abc123".toCharArray() ), equalTo( true ) );
+        assertThat( cache.verify( "tank", "abc123".toCharArray() ), equalTo( false ) );
+    }
+
+    @Test
+    public void shouldEvictOnMismatch()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        cache.put( "neo", "abc123".toCharArray() );
+
+        // When
+        boolean verified = cache.verify( "neo", "wrong".toCharArray() );
+
+        // Then the right password has to be bound again as well
+        assertThat( verified, equalTo( false ) );
+        assertThat( cache.verify( "neo", "abc123".toCharArray() ), equalTo( false ) );
+        assertThat( cache.size(), equalTo( 0L ) );
+    }
+
+    @Test
+    public void shouldExpireAfterTtl()
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        cache.put( "neo", "abc123".toCharArray() );
+
+        // When
+        when( clock.millis() ).thenReturn( 60_000L );
+
+        // Then
+        assertThat( cache.verify( "neo", "abc123".toCharArray() ), equalTo( false ) );
+        assertThat( cache.size(), equalTo( 0L ) );
+    }
+}
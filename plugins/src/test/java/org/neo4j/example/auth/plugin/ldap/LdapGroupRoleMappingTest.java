@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LdapGroupRoleMappingTest
+{
+    @Test
+    public void shouldCombineAllRolesOfGroup()
+    {
+        // When
+        LdapGroupRoleMapping mapping = LdapGroupRoleMapping.compile( List.of(
+                "500=reader", "501=publisher,reader", "500=architect", "cn=admins,ou=groups,dc=example,dc=com=admin" ) );
+
+        // Then
+        assertThat( mapping.size(), equalTo( 3 ) );
+        assertThat( mapping.rolesOf( "500" ), equalTo( Set.of( "reader", "architect" ) ) );
+        assertThat( mapping.rolesOf( "501" ), equalTo( Set.of( "publisher", "reader" ) ) );
+        assertThat( mapping.rolesOf( "cn=admins,ou=groups,dc=example,dc=com" ), equalTo( Set.of( "admin" ) ) );
+        assertThat( mapping.rolesOf( "502" ), equalTo( Set.of() ) );
+        assertThat( mapping.rolesOf( "admins" ), equalTo( Set.of() ) );
+    }
+
+    @Test
+    public void shouldFindEveryGroupOfLargeMapping()
+    {
+        // Given
+        List<String> entries = new ArrayList<>();
+        for ( int gid = 0; gid < 100_000; gid++ )
+        {
+            entries.add( gid + "=role" + gid % 10 );
+        }
+
+        // When
+        LdapGroupRoleMapping mapping = LdapGroupRoleMapping.compile( entries );
+
+        // Then
+        for ( int gid = 0; gid < 100_000; gid++ )
+        {
+            assertThat( mapping.rolesOf( Integer.toString( gid ) ), equalTo( Set.of( "role" + gid % 10 ) ) );
+        }
+        assertThat( mapping.rolesOf( "100000" ), equalTo( Set.of() ) );
+    }
+
+    @Test
+    public void shouldRejectEntryWithoutGroup()
+    {
+        assertThrows( IllegalArgumentException.class, () -> LdapGroupRoleMapping.compile( List.of( "reader" ) ) );
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.ldap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapRoleCacheTest
+{
+    private final Clock clock = mock( Clock.class );
+    private final AtomicInteger searches = new AtomicInteger();
+    private final LdapRoleCache.Loader loader = username ->
+    {
+        searches.incrementAndGet();
+        return Set.of( "reader" );
+    };
+
+    private LdapRoleCache cache;
+
+    @AfterEach
+    public void tearDown()
+    {
+        cache.close();
+    }
+
+    @Test
+    public void shouldOnlySearchAgainOnceExpired() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        cache = newCache( null );
+
+        // When
+        cache.get( "neo", loader );
+        cache.get( "neo", loader );
+
+        // Then
+        assertThat( searches.get(), equalTo( 1 ) );
+
+        // When
+        when( clock.millis() ).thenReturn( Duration.ofSeconds( 10 ).toMillis() );
+        cache.get( "neo", loader );
+
+        // Then
+        assertThat( searches.get(), equalTo( 2 ) );
+    }
+
+    @Test
+    public void shouldServeCachedRolesWhileRefreshingInBackground() throws Exception
+    {
+        // Given
+        CountDownLatch refreshed = new CountDownLatch( 1 );
+        cache = newCache( username ->
+        {
+            refreshed.countDown();
+            return Set.of( "publisher" );
+        } );
+        when( clock.millis() ).thenReturn( 0L );
+        cache.get( "neo", loader );
+
+        // When
+        when( clock.millis() ).thenReturn( Duration.ofSeconds( 9 ).toMillis() );
+        Set<String> roles = cache.get( "neo", loader );
+
+        // Then
+        assertThat( roles, equalTo( Set.of( "reader" ) ) );
+        assertThat( refreshed.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+        assertThat( searches.get(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void shouldSearchAgainAfterFlush() throws Exception
+    {
+        // Given
+        when( clock.millis() ).thenReturn( 0L );
+        cache = newCache( null );
+        cache.get( "neo", loader );
+        cache.get( "trinity", loader );
+
+        // When
+        cache.invalidate( "neo" );
+        cache.get( "neo", loader );
+        cache.get( "trinity", loader );
+
+        // Then
+        assertThat( searches.get(), equalTo( 3 ) );
+
+        // When
+        cache.clear();
+
+        // Then
+        assertThat( cache.size(), equalTo( 0L ) );
+    }
+
+    private LdapRoleCache newCache( LdapRoleCache.Loader backgroundLoader )
+    {
+        return new LdapRoleCache( 10, Duration.ofSeconds( 10 ), Duration.ofSeconds( 8 ), backgroundLoader, clock,
+                mock( AuthProviderOperations.Log.class ) );
+    }
+}
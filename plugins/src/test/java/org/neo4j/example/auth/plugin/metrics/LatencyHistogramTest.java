@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+public class LatencyHistogramTest
+{
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision()
+    {
+        // Given
+        for ( long micros = 1; micros <= 1000; micros++ )
+        {
+            histogram.record( micros * 1000 );
+        }
+
+        // When
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        // Then every percentile is within the 1/32 width of its bucket
+        assertThat( snapshot.count(), equalTo( 1000L ) );
+        assertThat( (double) snapshot.valueAt( 0.5 ), closeTo( 500_000, 500_000 / 32.0 ) );
+        assertThat( (double) snapshot.valueAt( 0.99 ), closeTo( 990_000, 990_000 / 32.0 ) );
+        assertThat( (double) snapshot.valueAt( 0.999 ), closeTo( 999_000, 999_000 / 32.0 ) );
+        assertThat( snapshot.valueAt( 1.0 ), equalTo( 1_000_000L ) );
+        assertThat( snapshot.mean(), closeTo( 500_500, 0.001 ) );
+    }
+
+    @Test
+    public void shouldMergeRecordingsFromAllThreads() throws InterruptedException
+    {
+        // Given
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread( () ->
+            {
+                for ( int j = 0; j < 10_000; j++ )
+                {
+                    histogram.record( 42 );
+                }
+            } );
+            threads[i].start();
+        }
+
+        // When
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        // Then
+        assertThat( histogram.snapshot().count(), equalTo( 80_000L ) );
+        assertThat( histogram.snapshot().valueAt( 0.999 ), equalTo( 42L ) );
+    }
+
+    @Test
+    public void shouldBeEmptyAfterReset()
+    {
+        // Given
+        histogram.record( 1_000_000 );
+
+        // When
+        histogram.reset();
+
+        // Then
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat( snapshot.count(), equalTo( 0L ) );
+        assertThat( snapshot.valueAt( 0.99 ), equalTo( 0L ) );
+        assertThat( snapshot.max(), equalTo( 0L ) );
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The certificates in {@code pki/clients.p12} are valid for a hundred years: alice is issued by an intermediate CA
+ * under the root CA in {@code pki/ca.pem}, mallory is self-signed.
+ */
+public class CertificateValidatorTest
+{
+    private static final long NOW = System.currentTimeMillis();
+
+    private final Clock clock = mock( Clock.class );
+    private CertificateValidator validator;
+    private String alice;
+    private String intermediate;
+    private String mallory;
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        when( clock.millis() ).thenReturn( NOW );
+        Path caCertificates = Path.of( getClass().getResource( "/pki/ca.pem" ).toURI() );
+        validator = CertificateValidator.load( caCertificates, "CN", "OU", 10, Duration.ofSeconds( 60 ), clock );
+
+        KeyStore clients = KeyStore.getInstance( "PKCS12" );
+        try ( InputStream input = getClass().getResourceAsStream( "/pki/clients.p12" ) )
+        {
+            clients.load( input, "changeit".toCharArray() );
+        }
+        Certificate[] chain = clients.getCertificateChain( "alice" );
+        alice = encode( chain[0] );
+        intermediate = encode( chain[1] );
+        mallory = encode( clients.getCertificate( "mallory" ) );
+    }
+
+    @Test
+    public void shouldTakeUserFromCertificateSubject()
+    {
+        // When
+        UserInfo info = validator.userInfo( "alice", alice, List.of( intermediate ) );
+
+        // Then
+        assertThat( info.getAlgorithm(), equalTo( KeyAlgorithm.EC ) );
+        assertThat( info.getRoles(), containsInAnyOrder( "reader", "publisher" ) );
+    }
+
+    @Test
+    public void shouldRejectCertificateWithoutPathToTrustedCa()
+    {
+        // When
+        UserInfo withoutIntermediate = validator.userInfo( "alice", alice, null );
+        UserInfo selfSigned = validator.userInfo( "mallory", mallory, null );
+
+        // Then
+        assertThat( withoutIntermediate, nullValue() );
+        assertThat( selfSigned, nullValue() );
+    }
+
+    @Test
+    public void shouldRejectCertificateIssuedToOtherUser()
+    {
+        // When
+        UserInfo info = validator.userInfo( "mallory", alice, List.of( intermediate ) );
+
+        // Then
+        assertThat( info, nullValue() );
+    }
+
+    @Test
+    public void shouldSkipPathValidationOfCachedCertificate()
+    {
+        // Given
+        UserInfo info = validator.userInfo( "alice", alice, List.of( intermediate ) );
+
+        // When the intermediate certificate is left out, which would fail a full validation
+        UserInfo cached = validator.userInfo( "alice", alice, null );
+
+        // Then
+        assertThat( cached, sameInstance( info ) );
+        assertThat( validator.hits(), equalTo( 1L ) );
+        assertThat( validator.misses(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void shouldValidateAgainAfterTtl()
+    {
+        // Given
+        validator.userInfo( "alice", alice, List.of( intermediate ) );
+
+        // When
+        when( clock.millis() ).thenReturn( NOW + 60_000 );
+        UserInfo info = validator.userInfo( "alice", alice, null );
+
+        // Then
+        assertThat( info, nullValue() );
+        assertThat( validator.misses(), equalTo( 2L ) );
+    }
+
+    private static String encode( Certificate certificate ) throws Exception
+    {
+        return Base64.getEncoder().encodeToString( certificate.getEncoded() );
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class OffHeapUserStoreTest
+{
+    private static final Set<String> READER = Set.of( "reader" );
+    private static byte[] baseKey;
+
+    private OffHeapUserStore store = new OffHeapUserStore( 100 );
+
+    @BeforeAll
+    public static void generateKey() throws Exception
+    {
+        baseKey = KeyPairGenerator.getInstance( "Ed25519" ).generateKeyPair().getPublic().getEncoded();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        store.clear();
+    }
+
+    @Test
+    public void shouldGetUserAsStored()
+    {
+        // Given
+        store.put( "neo", user( 1, "reader", "publisher" ) );
+
+        // When
+        UserInfo info = store.get( "neo" );
+
+        // Then
+        assertThat( info.getEncodedKey(), equalTo( key( 1 ) ) );
+        assertThat( info.getAlgorithm(), equalTo( KeyAlgorithm.ED25519 ) );
+        assertThat( info.getRoles(), equalTo( Set.of( "reader", "publisher" ) ) );
+        assertThat( store.holds( "neo", user( 1, "reader", "publisher" ) ), equalTo( true ) );
+        assertThat( store.holds( "neo", user( 2, "reader", "publisher" ) ), equalTo( false ) );
+        assertThat( store.get( "trinity" ), nullValue() );
+    }
+
+    @Test
+    public void shouldKeepParsedUserUntilReplaced()
+    {
+        // Given
+        store.put( "neo", user( 1 ) );
+        UserInfo info = store.get( "neo" );
+
+        // When
+        UserInfo replaced = store.put( "neo", user( 2 ) );
+
+        // Then
+        assertThat( store.get( "neo" ), not( sameInstance( info ) ) );
+        assertThat( replaced, sameInstance( info ) );
+        UserInfo current = store.get( "neo" );
+        assertThat( current.getEncodedKey(), equalTo( key( 2 ) ) );
+        assertThat( store.get( "neo" ), sameInstance( current ) );
+    }
+
+    @Test
+    public void shouldApplyAdditionsAndRemovalsTogether()
+    {
+        // Given
+        store.put( "neo", user( 1 ) );
+        Map<String,UserInfo> changes = new HashMap<>();
+        changes.put( "neo", null );
+        changes.put( "trinity", user( 2 ) );
+
+        // When
+        store.apply( changes );
+
+        // Then
+        assertThat( store.contains( "neo" ), equalTo( false ) );
+        assertThat( store.get( "trinity" ).getEncodedKey(), equalTo( key( 2 ) ) );
+        assertThat( store.size(), equalTo( 1L ) );
+        assertThat( store.snapshot().stream().map( Map.Entry::getKey ).toList(), contains( "trinity" ) );
+    }
+
+    @Test
+    public void shouldReclaimRoomOfReplacedUsers()
+    {
+        // Given
+        store.put( "neo", user( 0 ) );
+        long initialBytes = store.offHeapBytes();
+
+        // When
+        for ( int i = 1; i <= 100_000; i++ )
+        {
+            store.put( "neo", user( i ) );
+        }
+
+        // Then
+        assertThat( store.offHeapBytes(), lessThan( initialBytes * 4 ) );
+        assertThat( store.get( "neo" ).getEncodedKey(), equalTo( key( 100_000 ) ) );
+    }
+
+    @Test
+    public void shouldKeepOnlyRecentlyUsedUsersParsed()
+    {
+        // Given
+        store.clear();
+        store = new OffHeapUserStore( 1_000 );
+        int users = 100_000;
+        addUsers( users );
+
+        // When
+        for ( int i = 0; i < users; i++ )
+        {
+            assertThat( store.get( "user" + i ).getEncodedKey(), equalTo( key( i ) ) );
+        }
+
+        // Then the key with some overhead off the heap, and no more parsed users than asked for
+        assertThat( store.size(), equalTo( (long) users ) );
+        assertThat( store.offHeapBytes() / users, lessThan( baseKey.length + 128L ) );
+        assertThat( store.parsedUsers(), lessThanOrEqualTo( 1_000L ) );
+    }
+
+    /**
+     * Measures the heap, which is only reliable in a JVM of its own, run with {@code -Dpki.footprint.large=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "pki.footprint.large", matches = "true" )
+    public void shouldStoreMillionUsersOffHeap()
+    {
+        assertFootprint( 1_000_000 );
+    }
+
+    /**
+     * Takes about a gigabyte of direct memory, run with {@code -Dpki.footprint.large=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "pki.footprint.large", matches = "true" )
+    public void shouldStoreTenMillionUsersOffHeap()
+    {
+        assertFootprint( 10_000_000 );
+    }
+
+    private void assertFootprint( int users )
+    {
+        // Given
+        store.clear();
+        long heapBefore = usedHeap();
+        store = new OffHeapUserStore( 10_000 );
+
+        // When
+        addUsers( users );
+        long heapPerUser = (usedHeap() - heapBefore) / users;
+
+        // Then a few bytes per user at most on the heap, where a parsed key alone takes hundreds,
+        // and the key with some overhead off the heap
+        assertThat( store.size(), equalTo( (long) users ) );
+        assertThat( heapPerUser, lessThan( 16L ) );
+        assertThat( store.offHeapBytes() / users, lessThan( baseKey.length + 128L ) );
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            int user = random.nextInt( users );
+            assertThat( store.get( "user" + user ).getEncodedKey(), equalTo( key( user ) ) );
+        }
+    }
+
+    private void addUsers( int users )
+    {
+        int batchSize = 100_000;
+        for ( int from = 0; from < users; from += batchSize )
+        {
+            Map<String,UserInfo> batch = new LinkedHashMap<>();
+            for ( int i = from; i < Math.min( users, from + batchSize ); i++ )
+            {
+                batch.put( "user" + i, user( i ) );
+            }
+            store.apply( batch );
+        }
+    }
+
+    private static long usedHeap()
+    {
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static UserInfo user( long id, String... roles )
+    {
+        return new UserInfo( key( id ), KeyAlgorithm.ED25519, roles.length == 0 ? READER : Set.of( roles ) );
+    }
+
+    /**
+     * A distinct key per id, which is never parsed by the store, so it does not have to be a valid point.
+     */
+    private static byte[] key( long id )
+    {
+        byte[] key = baseKey.clone();
+        for ( int i = 0; i < Long.BYTES; i++ )
+        {
+            key[key.length - 1 - i] = (byte) (id >>> (8 * i));
+        }
+        return key;
+    }
+}
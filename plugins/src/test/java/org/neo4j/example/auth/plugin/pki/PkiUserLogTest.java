@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PkiUserLogTest
+{
+    @TempDir
+    Path directory;
+
+    private final List<String> replayed = new ArrayList<>();
+    private final PkiUserLog.Replay replay = new PkiUserLog.Replay()
+    {
+        @Override
+        public void added( String username, byte[] encodedKey, String[] roles )
+        {
+            replayed.add( username );
+        }
+
+        @Override
+        public void removed( String username )
+        {
+            replayed.remove( username );
+        }
+    };
+
+    @Test
+    public void shouldTruncateRecordCutShortByCrash() throws Exception
+    {
+        // Given
+        Path file = logOf( "neo", "trinity", "morpheus" );
+        byte[] written = Files.readAllBytes( file );
+        Files.write( file, Arrays.copyOf( written, written.length - 5 ) );
+
+        // When
+        try ( PkiUserLog log = PkiUserLog.open( file, replay ) )
+        {
+            log.appendRemove( "neo" );
+        }
+
+        // Then
+        replayed.clear();
+        PkiUserLog.open( file, replay ).close();
+        assertThat( replayed, contains( "trinity" ) );
+    }
+
+    @Test
+    public void shouldRefuseLogCorruptedBeforeItsLastRecord() throws Exception
+    {
+        // Given
+        Path file = logOf( "neo", "trinity", "morpheus" );
+        byte[] corrupted = Files.readAllBytes( file );
+        corrupted[corrupted.length / 2] ^= 1;
+        Files.write( file, corrupted );
+
+        // When
+        IOException e = assertThrows( IOException.class, () -> PkiUserLog.open( file, replay ) );
+
+        // Then
+        assertThat( e.getMessage(), containsString( "followed by intact records" ) );
+        assertThat( Arrays.equals( Files.readAllBytes( file ), corrupted ), equalTo( true ) );
+    }
+
+    private Path logOf( String... usernames ) throws IOException
+    {
+        Path file = directory.resolve( "pki-users.log" );
+        try ( PkiUserLog log = PkiUserLog.open( file, replay ) )
+        {
+            for ( String username : usernames )
+            {
+                log.appendAdd( username, new UserInfo( new byte[64], KeyAlgorithm.RSA, Set.of( "reader" ) ) );
+            }
+        }
+        replayed.clear();
+        return file;
+    }
+}
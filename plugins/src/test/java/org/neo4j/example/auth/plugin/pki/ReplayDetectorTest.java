@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReplayDetectorTest
+{
+    private static final long NOW = 1_600_000_000_000L;
+
+    private final Clock clock = mock( Clock.class );
+    private ReplayDetector detector;
+
+    @BeforeEach
+    public void setUp()
+    {
+        when( clock.millis() ).thenReturn( NOW );
+        detector = new ReplayDetector( Duration.ofSeconds( 60 ), 1000, clock, null );
+    }
+
+    @Test
+    public void shouldRejectTokenUsedBefore()
+    {
+        // When
+        boolean first = detector.record( NOW - 1000, 1, 2 );
+
+        // Then
+        assertThat( first, equalTo( true ) );
+        assertThat( detector.seen( NOW - 1000, 1, 2 ), equalTo( true ) );
+        assertThat( detector.record( NOW - 1000, 1, 2 ), equalTo( false ) );
+        assertThat( detector.seen( NOW - 1000, 3, 4 ), equalTo( false ) );
+        assertThat( detector.replays(), equalTo( 2L ) );
+    }
+
+    @Test
+    public void shouldOnlyAcceptFreshTimestamps()
+    {
+        assertThat( detector.isFresh( NOW + 60_000 ), equalTo( true ) );
+        assertThat( detector.isFresh( NOW - 60_000 ), equalTo( true ) );
+        assertThat( detector.isFresh( NOW + 60_001 ), equalTo( false ) );
+        assertThat( detector.isFresh( NOW - 60_001 ), equalTo( false ) );
+        assertThat( detector.isFresh( Long.MIN_VALUE + 1 ), equalTo( false ) );
+        assertThat( detector.isFresh( Long.MAX_VALUE ), equalTo( false ) );
+    }
+
+    @Test
+    public void shouldReuseBucketsOnceTheirTimeHasPassed()
+    {
+        // Given
+        detector.record( NOW, 1, 2 );
+        long memory = detector.memoryBytes();
+
+        // When a whole ring of buckets has gone by
+        for ( long later = NOW; later <= NOW + 300_000; later += 1000 )
+        {
+            when( clock.millis() ).thenReturn( later );
+            assertThat( detector.record( later + 60_000, later, later ), equalTo( true ) );
+        }
+
+        // Then the buckets have been cleared and reused, without taking more memory
+        long now = NOW + 300_000;
+        assertThat( detector.record( now, 1, 2 ), equalTo( true ) );
+        assertThat( detector.memoryBytes(), equalTo( memory ) );
+    }
+
+    @Test
+    public void shouldRecordTokenOnlyOnceUnderContention() throws Exception
+    {
+        // Given
+        int threads = 8;
+        int tokens = 1000;
+        AtomicInteger recorded = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List<Future<?>> futures = new ArrayList<>();
+
+        // When every thread records the same tokens
+        for ( int i = 0; i < threads; i++ )
+        {
+            futures.add( executor.submit( () ->
+            {
+                start.await();
+                for ( long token = 0; token < tokens; token++ )
+                {
+                    if ( detector.record( NOW, token * 0x9E3779B97F4A7C15L, token * 0xC2B2AE3D27D4EB4FL ) )
+                    {
+                        recorded.incrementAndGet();
+                    }
+                }
+                return null;
+            } ) );
+        }
+        start.countDown();
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Then each token was accepted once, by a single thread
+        assertThat( recorded.get(), equalTo( tokens ) );
+    }
+
+    @Test
+    public void shouldRecordFreshTokensFromAllThreadsAfterIdleSpell() throws Exception
+    {
+        // Given no logins for longer than the window
+        long later = NOW + 600_000;
+        when( clock.millis() ).thenReturn( later );
+        int threads = 8;
+        int tokens = 100;
+        AtomicInteger recorded = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List<Future<?>> futures = new ArrayList<>();
+
+        // When every thread logs in at once, so that only one of them rotates the buckets
+        for ( int i = 0; i < threads; i++ )
+        {
+            long first = (long) i * tokens;
+            futures.add( executor.submit( () ->
+            {
+                start.await();
+                for ( long token = first; token < first + tokens; token++ )
+                {
+                    if ( detector.record( later, token * 0x9E3779B97F4A7C15L, token * 0xC2B2AE3D27D4EB4FL ) )
+                    {
+                        recorded.incrementAndGet();
+                    }
+                }
+                return null;
+            } ) );
+        }
+        start.countDown();
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Then none of them was turned away while the buckets were out of date
+        assertThat( recorded.get(), equalTo( threads * tokens ) );
+    }
+
+    @Test
+    public void shouldRememberTokensRecordedBeforeReplacement()
+    {
+        // Given
+        detector.record( NOW, 1, 2 );
+
+        // When
+        ReplayDetector replacement = new ReplayDetector( Duration.ofSeconds( 30 ), 1000, clock, detector );
+
+        // Then
+        assertThat( replacement.record( NOW, 1, 2 ), equalTo( false ) );
+        assertThat( replacement.record( NOW, 3, 4 ), equalTo( true ) );
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.example.auth.plugin.pki;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class VerifiedTokenCacheTest
+{
+    private final Clock clock = mock( Clock.class );
+    private final UserInfo userInfo = new UserInfo( null, Collections.singleton( "reader" ) );
+    private final AuthInfo authInfo = AuthInfo.of( "alice", userInfo.getRoles() );
+    private final byte[] digest = VerifiedTokenCache.digest( "token".getBytes( UTF_8 ) );
+
+    private VerifiedTokenCache cache;
+
+    @BeforeEach
+    public void setUp()
+    {
+        when( clock.millis() ).thenReturn( 0L );
+        cache = new VerifiedTokenCache( 2, Duration.ofSeconds( 10 ), clock );
+    }
+
+    @Test
+    public void shouldHitOnlyForSameTokenAndUser()
+    {
+        // Given
+        cache.put( "alice", userInfo, digest, authInfo );
+
+        // Then
+        assertThat( cache.get( "alice", userInfo, digest ), sameInstance( authInfo ) );
+        assertThat( cache.get( "alice", userInfo, VerifiedTokenCache.digest( "other".getBytes( UTF_8 ) ) ), nullValue() );
+        assertThat( cache.get( "bob", userInfo, digest ), nullValue() );
+        assertThat( cache.hits(), equalTo( 1L ) );
+        assertThat( cache.misses(), equalTo( 2L ) );
+    }
+
+    @Test
+    public void shouldMissWhenUserHasBeenReplaced()
+    {
+        // Given
+        cache.put( "alice", userInfo, digest, authInfo );
+
+        // When
+        UserInfo replacement = new UserInfo( null, Collections.singleton( "admin" ) );
+
+        // Then
+        assertThat( cache.get( "alice", replacement, digest ), nullValue() );
+    }
+
+    @Test
+    public void shouldExpireEntries()
+    {
+        // Given
+        cache.put( "alice", userInfo, digest, authInfo );
+
+        // When
+        when( clock.millis() ).thenReturn( Duration.ofSeconds( 10 ).toMillis() );
+
+        // Then
+        assertThat( cache.get( "alice", userInfo, digest ), nullValue() );
+    }
+
+    @Test
+    public void shouldStayWithinMaxSize()
+    {
+        // When
+        cache.put( "alice", userInfo, digest, authInfo );
+        cache.put( "bob", userInfo, digest, authInfo );
+        cache.put( "carol", userInfo, digest, authInfo );
+
+        // Then
+        assertThat( cache.size(), equalTo( 2L ) );
+        assertThat( cache.evictions(), equalTo( 1L ) );
+        assertThat( cache.get( "carol", userInfo, digest ), sameInstance( authInfo ) );
+    }
+
+    @Test
+    public void shouldForgetInvalidatedUser()
+    {
+        // Given
+        cache.put( "alice", userInfo, digest, authInfo );
+
+        // When
+        cache.invalidate( "alice" );
+
+        // Then
+        assertThat( cache.get( "alice", userInfo, digest ), nullValue() );
+        assertThat( cache.size(), equalTo( 0L ) );
+    }
+}